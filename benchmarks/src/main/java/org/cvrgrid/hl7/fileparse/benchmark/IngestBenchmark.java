@@ -0,0 +1,132 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+
+package org.cvrgrid.hl7.fileparse.benchmark;
+
+/*
+ * Benchmark of the whole path a message takes through the loader, in messages per second: parsing, hashing
+ * the subject, normalizing the observations and sending the points to a FakeOpenTSDB on the loopback
+ * interface, in batches through the put API or line by line through the telnet put command, with no latency
+ * unless one is given, and through a SeriesBuffer of the given size unless it is 0, with the given share of
+ * OBX segments sent with OBX-5 empty.  Each invocation loads a run of messages the way StagedFileLoader
+ * hands them to a processor, and flushes the writer, so every point has been answered by the stub before it
+ * ends.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.cvrgrid.hl7.fileparse.FakeOpenTSDB;
+import org.cvrgrid.hl7.fileparse.HL7FileGenerator;
+import org.cvrgrid.hl7.fileparse.HL7FileProcessor;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+import org.cvrgrid.hl7.fileparse.normalize.SeriesNameNormalizer;
+import org.cvrgrid.hl7.fileparse.parser.LocationFilter;
+import org.cvrgrid.hl7.fileparse.parser.ObservationTimeParser;
+import org.cvrgrid.hl7.fileparse.store.BatchingTimeSeriesWriter;
+import org.cvrgrid.hl7.fileparse.store.SeriesBuffer;
+import org.cvrgrid.hl7.fileparse.store.TelnetTimeSeriesSink;
+import org.cvrgrid.hl7.fileparse.store.TimeSeriesSink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IngestBenchmark {
+
+	private static final int MESSAGES = 1000;
+
+	@Param({"fast", "hapi"})
+	public String parserMode;
+
+	@Param({"12"})
+	public int observations;
+
+	@Param({"0"})
+	public long latencyMillis;
+
+	@Param({"0"})
+	public double emptyShare;
+
+	@Param({"http", "telnet"})
+	public String sink;
+
+	@Param({"10000"})
+	public int bufferPoints;
+
+	private FakeOpenTSDB openTSDB;
+	private TimeSeriesSink timeSeriesSink;
+	private HL7FileProcessor processor;
+	private List<String> messages;
+
+	@Setup
+	public void setUp() throws IOException {
+		openTSDB = new FakeOpenTSDB(0, "/api/put", 4, 1);
+		openTSDB.setLatency(latencyMillis, 0);
+		if (sink.equals("telnet"))
+			timeSeriesSink = new TelnetTimeSeriesSink("127.0.0.1", openTSDB.startTelnet(0), 1000);
+		else
+			timeSeriesSink = new BatchingTimeSeriesWriter("http://127.0.0.1:" + openTSDB.getPort(), "/api/put", 50, 524288, 1000, false, 2, 8);
+		if (bufferPoints > 0)
+			timeSeriesSink = new SeriesBuffer(timeSeriesSink, bufferPoints, 1000);
+		SeriesNameNormalizer normalizer = new SeriesNameNormalizer(HL7FileGenerator.measurementNames(), 10000);
+		processor = new HL7FileProcessor(normalizer, timeSeriesSink, parserMode, 10000, null, 
+				new ObservationTimeParser(TimeZone.getTimeZone("UTC")), new LocationFilter("", ""), new MetricsRegistry());
+		HL7FileGenerator generator = new HL7FileGenerator(50, observations, 10, 1, 1);
+		generator.setEmptyShare(emptyShare);
+		messages = generator.nextMessages(MESSAGES);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		timeSeriesSink.close();
+		openTSDB.close();
+		openTSDB.report();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public HashMap<String,PatientInfo> loadMessages() throws Exception {
+		HashMap<String,PatientInfo> subjects = new HashMap<String,PatientInfo>();
+		processor.processMessages(messages, subjects);
+		timeSeriesSink.flush();
+		return subjects;
+	}
+
+}
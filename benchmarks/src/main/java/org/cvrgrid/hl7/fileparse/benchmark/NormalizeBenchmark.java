@@ -0,0 +1,92 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+
+package org.cvrgrid.hl7.fileparse.benchmark;
+
+/*
+ * Benchmarks of turning an observation identifier and its units into a metric name: the usual case of a
+ * pair already in the cache of the SeriesNameNormalizer, and the case of a pair never seen before, which
+ * runs the name and units rewriting.  A normalizer holding a single entry keeps missing, as the pairs
+ * are asked for in turn.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.cvrgrid.hl7.fileparse.HL7FileGenerator;
+import org.cvrgrid.hl7.fileparse.normalize.SeriesNameNormalizer;
+import org.cvrgrid.hl7.fileparse.normalize.SeriesNameNormalizer.NormalizedSeries;
+import org.cvrgrid.hl7.fileparse.parser.FastObservationScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NormalizeBenchmark {
+
+	private String[] ids;
+	private String[] units;
+	private SeriesNameNormalizer cached;
+	private SeriesNameNormalizer uncached;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		FastObservationScanner scanner = new FastObservationScanner(null);
+		scanner.scan(new HL7FileGenerator(1, 12, 10, 0.75, 1).nextMessage());
+		ids = new String[scanner.getObservationCount()];
+		units = new String[ids.length];
+		for (int o = 0; o < ids.length; o++) {
+			ids[o] = scanner.getObservationId(o);
+			units[o] = scanner.getObservationUnits(o);
+		}
+		cached = new SeriesNameNormalizer(HL7FileGenerator.measurementNames(), 10000);
+		uncached = new SeriesNameNormalizer(HL7FileGenerator.measurementNames(), 1);
+	}
+
+	private int nextIndex() {
+		next = (next + 1 == ids.length) ? 0 : next + 1;
+		return next;
+	}
+
+	@Benchmark
+	public NormalizedSeries cachedNormalize() {
+		int i = nextIndex();
+		return cached.normalize(ids[i], units[i]);
+	}
+
+	@Benchmark
+	public NormalizedSeries uncachedNormalize() {
+		int i = nextIndex();
+		return uncached.normalize(ids[i], units[i]);
+	}
+
+}
@@ -0,0 +1,105 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+
+package org.cvrgrid.hl7.fileparse.benchmark;
+
+/*
+ * Benchmarks of getting the fields the loader reads out of a message: a full HAPI parse, an encode and
+ * parse again of a parsed message, the Terser reads that HapiObservationMessage makes of a parsed message,
+ * and the FastObservationScanner, which is what the loader uses in the fast parser mode.
+ */
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cvrgrid.hl7.fileparse.HL7FileGenerator;
+import org.cvrgrid.hl7.fileparse.parser.FastObservationScanner;
+import org.cvrgrid.hl7.fileparse.parser.HapiObservationMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v23.message.ORU_R01;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+	private List<String> messages;
+	private ORU_R01[] parsed;
+	private FastObservationScanner scanner;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws HL7Exception {
+		messages = new HL7FileGenerator(50, 12, 10, 0.75, 1).nextMessages(1000);
+		parsed = new ORU_R01[messages.size()];
+		for (int i = 0; i < parsed.length; i++) {
+			parsed[i] = new ORU_R01();
+			parsed[i].parse(messages.get(i));
+		}
+		scanner = new FastObservationScanner(null);
+	}
+
+	private int nextIndex() {
+		next = (next + 1 == messages.size()) ? 0 : next + 1;
+		return next;
+	}
+
+	@Benchmark
+	public ORU_R01 hapiParse() throws HL7Exception {
+		ORU_R01 oru = new ORU_R01();
+		oru.parse(messages.get(nextIndex()));
+		return oru;
+	}
+
+	@Benchmark
+	public ORU_R01 hapiEncodeReparse() throws HL7Exception {
+		String encoded = parsed[nextIndex()].encode();
+		ORU_R01 oru = new ORU_R01();
+		oru.parse(encoded);
+		return oru;
+	}
+
+	@Benchmark
+	public HapiObservationMessage terserExtraction() throws HL7Exception {
+		return new HapiObservationMessage(parsed[nextIndex()]);
+	}
+
+	@Benchmark
+	public int fastScan() {
+		if (!scanner.scan(messages.get(nextIndex())))
+			throw new IllegalStateException("The scanner declined a synthetic message");
+		return scanner.getObservationCount() + scanner.getLocation().length();
+	}
+
+}
@@ -0,0 +1,70 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+
+package org.cvrgrid.hl7.fileparse.benchmark;
+
+/*
+ * Benchmarks of the subject hash: PatientInfo.getHash() on a new subject, which joins the demographic
+ * fields before taking the SHA-256 of them, and PatientInfo.hashOf on fields already joined, which is what
+ * HL7FileProcessor does the first time it sees a patient.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubjectHashBenchmark {
+
+	private int next = 0;
+
+	@Benchmark
+	public String getHash() {
+		int subject = next++ & 1023;
+		PatientInfo patInfo = new PatientInfo();
+		patInfo.setFirstName("First" + subject);
+		patInfo.setLastName("Last" + subject);
+		patInfo.setBirthDateTime("20100101");
+		patInfo.setGender("M");
+		patInfo.setBirthplace("Baltimore");
+		return patInfo.getHash();
+	}
+
+	@Benchmark
+	public String hashOf() {
+		int subject = next++ & 1023;
+		return PatientInfo.hashOf("First" + subject + "Last" + subject + "20100101MBaltimore");
+	}
+
+}
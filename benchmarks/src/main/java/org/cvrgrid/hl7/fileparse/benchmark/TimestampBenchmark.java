@@ -0,0 +1,90 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+
+package org.cvrgrid.hl7.fileparse.benchmark;
+
+/*
+ * Benchmarks of handling the observation time of a message: the SimpleDateFormat parse and format the
+ * loader used to make for every message, against the ObservationTimeParser that replaced them, with and
+ * without the earliest data point text, which the loader now only makes for a subject's first message.
+ */
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.cvrgrid.hl7.fileparse.parser.ObservationTimeParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimestampBenchmark {
+
+	private final String[] times = new String[1024];
+	private SimpleDateFormat fromUser;
+	private SimpleDateFormat myFormat;
+	private ObservationTimeParser timeParser;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		TimeZone zone = TimeZone.getTimeZone("America/New_York");
+		fromUser = new SimpleDateFormat("yyyyMMddHHmmss");
+		fromUser.setTimeZone(zone);
+		myFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		myFormat.setTimeZone(zone);
+		timeParser = new ObservationTimeParser(zone);
+		for (int i = 0; i < times.length; i++) {
+			times[i] = fromUser.format(new Date(1425513600000L + i * 7919000L));
+		}
+	}
+
+	@Benchmark
+	public String simpleDateFormat() throws ParseException {
+		Date timepoint = fromUser.parse(times[next++ & 1023]);
+		return myFormat.format(timepoint);
+	}
+
+	@Benchmark
+	public long observationTimeParser() throws ParseException {
+		return timeParser.parse(times[next++ & 1023]);
+	}
+
+	@Benchmark
+	public String observationTimeParserFormat() throws ParseException {
+		return timeParser.format(timeParser.parse(times[next++ & 1023]));
+	}
+
+}
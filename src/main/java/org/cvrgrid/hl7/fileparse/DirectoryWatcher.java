@@ -0,0 +1,287 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class keeps the loader running against the rootDir, so the translation table, subject registry
+ * and manifest are loaded once instead of on every run.  New and changed files are picked up from a
+ * WatchService registered on every directory under the rootDir, and a file is only loaded once its size
+ * and modification time have stayed the same for watchSettleSeconds, so files still being copied in are
+ * left alone.  The whole tree is rescanned every watchPollSeconds, and whenever the WatchService drops
+ * events, which also makes polling the only mechanism on file systems the WatchService does not support.
+ * The registry and lookup workbook are checkpointed every checkpointSeconds and once more on shutdown.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cvrgrid.hl7.fileparse.model.OpenTSDBConfiguration;
+
+public class DirectoryWatcher {
+
+	private final PicuDataLoader loader;
+	private final Path root;
+	private final long pollMillis;
+	private final long settleMillis;
+	private final long checkpointMillis;
+	private final HashMap<WatchKey,Path> keys = new HashMap<WatchKey,Path>();
+	private final HashMap<String,PendingFile> pending = new HashMap<String,PendingFile>();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private WatchService watchService;
+	private volatile boolean running = true;
+	private long nextPoll = 0;
+
+	/**
+	 * @param loader an opened loader
+	 */
+	public DirectoryWatcher(PicuDataLoader loader) {
+		OpenTSDBConfiguration openTSDBConfiguration = loader.getOpenTSDBConfiguration();
+		this.loader = loader;
+		this.root = Paths.get(openTSDBConfiguration.getRootDir());
+		this.pollMillis = Math.max(1, openTSDBConfiguration.getWatchPollSeconds()) * 1000L;
+		this.settleMillis = Math.max(0, openTSDBConfiguration.getWatchSettleSeconds()) * 1000L;
+		this.checkpointMillis = Math.max(1, openTSDBConfiguration.getCheckpointSeconds()) * 1000L;
+	}
+
+	/**
+	 * Loads files as they arrive until stop is called, then closes the loader.
+	 */
+	public void run() throws Exception {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			registerTree(root);
+			System.out.println("Watching " + root + " (rescan every " + pollMillis / 1000 + " seconds)");
+		} catch (IOException e) {
+			System.out.println("Unable to watch " + root + ", polling every " + pollMillis / 1000 + " seconds: " + e);
+			watchService = null;
+		} catch (UnsupportedOperationException e) {
+			System.out.println("Unable to watch " + root + ", polling every " + pollMillis / 1000 + " seconds: " + e);
+			watchService = null;
+		}
+		long nextCheckpoint = System.currentTimeMillis() + checkpointMillis;
+		try {
+			while (running) {
+				long now = System.currentTimeMillis();
+				if (now >= nextPoll) {
+					for (String path : loader.getManifest().findNewFiles(root.toString())) {
+						track(path, now);
+					}
+					nextPoll = now + pollMillis;
+				}
+				List<String> ready = takeSettledFiles(now);
+				if (ready.size() > 0) {
+					try {
+						loader.ingest(ready);
+					} catch (Exception e) {
+						// The files that failed are not in the manifest, so the next rescan picks them up again.
+						System.out.println("Unable to load new files, retrying after the next rescan: " + e);
+						e.printStackTrace();
+					}
+				}
+				if (now >= nextCheckpoint) {
+					try {
+						loader.checkpoint();
+					} catch (Exception e) {
+						System.out.println("Unable to checkpoint, retrying at the next checkpoint: " + e);
+						e.printStackTrace();
+					}
+					nextCheckpoint = System.currentTimeMillis() + checkpointMillis;
+				}
+				long wait = Math.min(nextPoll, nextCheckpoint) - System.currentTimeMillis();
+				if (pending.size() > 0)
+					wait = Math.min(wait, Math.max(100, settleMillis / 2));
+				if (running && wait > 0)
+					waitForEvents(wait);
+			}
+		} finally {
+			if (watchService != null) {
+				try {
+					watchService.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			try {
+				loader.close(true);
+			} finally {
+				stopped.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Asks the watcher to stop and waits for the loader to be closed.
+	 */
+	public void stop() {
+		running = false;
+		WatchService service = watchService;
+		if (service != null) {
+			try {
+				service.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			stopped.await(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void waitForEvents(long wait) throws InterruptedException {
+		if (watchService == null) {
+			Thread.sleep(wait);
+			return;
+		}
+		WatchKey key;
+		try {
+			key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+			long now = System.currentTimeMillis();
+			while (key != null) {
+				handleEvents(key, now);
+				key = watchService.poll();
+			}
+		} catch (ClosedWatchServiceException e) {
+			running = false;
+		}
+	}
+
+	private void handleEvents(WatchKey key, long now) {
+		Path dir = keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+				nextPoll = 0;
+				continue;
+			}
+			Path child = dir.resolve((Path) event.context());
+			if (Files.isDirectory(child)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					// Files may have landed in the directory before it was registered, so rescan as well.
+					try {
+						registerTree(child);
+					} catch (IOException e) {
+						System.out.println("Unable to watch " + child + ": " + e);
+					}
+					nextPoll = 0;
+				}
+				continue;
+			}
+			String name = child.getFileName().toString();
+			if (!name.endsWith(".txt") && !name.endsWith(".msg"))
+				continue;
+			try {
+				String path = child.toRealPath().toString();
+				if (!loader.getManifest().contains(path) && !path.equals(new File(loader.getOpenTSDBConfiguration().getProcessedFile()).getCanonicalPath()))
+					track(path, now);
+			} catch (IOException e) {
+				// the file went away before it could be looked at
+			}
+		}
+		if (!key.reset())
+			keys.remove(key);
+	}
+
+	private void registerTree(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				keys.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.err.println("Unable to read " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void track(String path, long now) {
+		if (!pending.containsKey(path)) {
+			File file = new File(path);
+			pending.put(path, new PendingFile(file.length(), file.lastModified(), now));
+		}
+	}
+
+	/*
+	 * Removes and returns the pending files that have not changed for the settle time.
+	 */
+	private List<String> takeSettledFiles(long now) {
+		List<String> ready = new ArrayList<String>();
+		Iterator<Map.Entry<String,PendingFile>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,PendingFile> entry = it.next();
+			File file = new File(entry.getKey());
+			PendingFile pendingFile = entry.getValue();
+			if (!file.exists() || loader.getManifest().contains(entry.getKey())) {
+				it.remove();
+			} else if (file.length() != pendingFile.size || file.lastModified() != pendingFile.lastModified) {
+				pendingFile.size = file.length();
+				pendingFile.lastModified = file.lastModified();
+				pendingFile.since = now;
+			} else if (now - pendingFile.since >= settleMillis) {
+				ready.add(entry.getKey());
+				it.remove();
+			}
+		}
+		Collections.sort(ready);
+		return ready;
+	}
+
+	/*
+	 * A file seen but not yet loaded, with the size and modification time it had when it last changed.
+	 */
+	private static class PendingFile {
+
+		private long size;
+		private long lastModified;
+		private long since;
+
+		PendingFile(long size, long lastModified, long since) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.since = since;
+		}
+
+	}
+
+}
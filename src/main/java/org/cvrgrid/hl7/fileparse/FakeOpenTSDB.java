@@ -0,0 +1,698 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class stands in for OpenTSDB when the loader is tried out or measured away from the real server.
+ * It answers the put API the way OpenTSDB does: the body is one data point or a JSON array of them,
+ * gzip compressed when the Content-Encoding header says so, and every point needs a metric, a timestamp, a
+ * numeric value and at least one tag.  A body whose points are all good is answered with 204 No Content, and
+ * one with bad points with 400 and the number that failed, or with 200 and a summary when the request asks
+ * for ?summary or ?details.  The points are only counted, by metric, so the server can run for as long as a
+ * test needs without filling the heap.
+ *
+ * Every request can be held for a latency, with a random jitter on top, and a share of the requests can be
+ * answered with an error status instead of being stored, to see how the loader copes with a slow or failing
+ * server.  The random numbers come from a seed, so a failure test can be run again with the same failures.
+ * It can be started inside a test or benchmark through the constructor, or on its own from the command line.
+ *
+ * The telnet interface can be opened as well, on a port of its own.  It takes the put command, answering
+ * only for a point it turns away, with a line starting "put:", and the version command, which it answers
+ * with two lines as OpenTSDB does.  Points put this way are counted with the others, and the error rate
+ * applies to each of them, but they are not held for the latency.
+ *
+ * Usage: FakeOpenTSDB port [latencyMillis [jitterMillis [errorRate [errorStatus [apiPut [telnetPort]]]]]]
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FakeOpenTSDB {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final String apiPut;
+	private final Random random;
+	private volatile long latencyMillis = 0;
+	private volatile long jitterMillis = 0;
+	private volatile double errorRate = 0;
+	private volatile int errorStatus = 500;
+	private final ConcurrentHashMap<String,AtomicLong> pointsByMetric = new ConcurrentHashMap<String,AtomicLong>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong points = new AtomicLong();
+	private final AtomicLong failedPoints = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final Set<Socket> telnetSockets = Collections.synchronizedSet(new HashSet<Socket>());
+	private ServerSocket telnetServer = null;
+
+	/**
+	 * Starts the server.
+	 *
+	 * @param port the port to listen on, 0 for any free port
+	 * @param apiPut the path of the put API, /api/put when empty
+	 * @param threads the number of requests handled at the same time
+	 * @param seed the seed of the latency jitter and the injected errors
+	 */
+	public FakeOpenTSDB(int port, String apiPut, int threads, long seed) throws IOException {
+		this.apiPut = (apiPut == null || apiPut.trim().length() == 0) ? "/api/put" : apiPut.trim();
+		this.random = new Random(seed);
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handleRequest(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.out.println("Usage: FakeOpenTSDB port [latencyMillis [jitterMillis [errorRate [errorStatus [apiPut [telnetPort]]]]]]");
+			return;
+		}
+		final FakeOpenTSDB openTSDB = new FakeOpenTSDB(Integer.parseInt(args[0]), (args.length > 5) ? args[5] : "", 16, System.nanoTime());
+		if (args.length > 1)
+			openTSDB.setLatency(Long.parseLong(args[1]), (args.length > 2) ? Long.parseLong(args[2]) : 0);
+		if (args.length > 3)
+			openTSDB.setErrors(Double.parseDouble(args[3]), (args.length > 4) ? Integer.parseInt(args[4]) : 500);
+		System.out.println("Fake OpenTSDB listening on port " + openTSDB.getPort() + openTSDB.apiPut);
+		if (args.length > 6)
+			System.out.println("Fake OpenTSDB telnet interface on port " + openTSDB.startTelnet(Integer.parseInt(args[6])));
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				openTSDB.close();
+				openTSDB.report();
+			}
+		});
+		long lastPoints = 0;
+		while (true) {
+			Thread.sleep(10000);
+			long total = openTSDB.getPoints();
+			System.out.println("Requests: " + openTSDB.getRequests() + ", Points: " + total + " (" + (total - lastPoints) / 10 + " points/sec), Failed Points: "
+					+ openTSDB.getFailedPoints() + ", Injected Errors: " + openTSDB.getInjectedErrors());
+			lastPoints = total;
+		}
+	}
+
+	/**
+	 * Opens the telnet interface, which takes the put and version commands.
+	 *
+	 * @param port the port to listen on, 0 for any free port
+	 * @return the port the telnet interface listens on
+	 */
+	public synchronized int startTelnet(int port) throws IOException {
+		final ServerSocket server = new ServerSocket(port);
+		telnetServer = server;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						telnetSockets.add(socket);
+						Thread connection = new Thread(new Runnable() {
+							public void run() {
+								handleTelnet(socket);
+							}
+						}, "fake-telnet");
+						connection.setDaemon(true);
+						connection.start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}, "fake-telnet-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Holds every request for a while before it is answered.
+	 *
+	 * @param latencyMillis the time every request is held for
+	 * @param jitterMillis the most extra time, picked at random for each request
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = Math.max(0, latencyMillis);
+		this.jitterMillis = Math.max(0, jitterMillis);
+	}
+
+	/**
+	 * Answers a share of the put requests with an error, without storing their points.
+	 *
+	 * @param errorRate the share of requests to fail, from 0 to 1
+	 * @param errorStatus the HTTP status to fail them with
+	 */
+	public void setErrors(double errorRate, int errorStatus) {
+		this.errorRate = errorRate;
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the number of put requests received
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of points stored
+	 */
+	public long getPoints() {
+		return points.get();
+	}
+
+	/**
+	 * @return the number of points turned away because they were not valid
+	 */
+	public long getFailedPoints() {
+		return failedPoints.get();
+	}
+
+	/**
+	 * @return the number of requests answered with an injected error
+	 */
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	/**
+	 * @return the number of bytes of request body received, after any decompression
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return the number of points stored for each metric, in order of metric
+	 */
+	public Map<String,Long> getPointsByMetric() {
+		TreeMap<String,Long> counts = new TreeMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> entry : pointsByMetric.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * Prints the counts and the points of each metric.
+	 */
+	public void report() {
+		System.out.println("Requests: " + getRequests() + ", Points: " + getPoints() + ", Failed Points: " + getFailedPoints() + ", Injected Errors: "
+				+ getInjectedErrors() + ", Bytes: " + getBytesReceived());
+		for (Map.Entry<String,Long> entry : getPointsByMetric().entrySet()) {
+			System.out.println("     " + entry.getKey() + ": " + entry.getValue());
+		}
+	}
+
+	/**
+	 * Stops the server without waiting for the requests still being answered.
+	 */
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+		synchronized (this) {
+			if (telnetServer != null) {
+				try {
+					telnetServer.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+		synchronized (telnetSockets) {
+			for (Socket socket : telnetSockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+	}
+
+	/*
+	 * Answers the commands of one telnet connection until it is closed.  Answers are written out whenever
+	 * nothing more has arrived, so a client sending lines in bulk gets them in bulk too.
+	 */
+	private void handleTelnet(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				bytesReceived.addAndGet(line.length() + 1);
+				String[] words = line.trim().split("\\s+");
+				if (words[0].equals("put")) {
+					String error = putLine(words);
+					if (error != null)
+						out.write("put: " + error + "\n");
+				} else if (words[0].equals("version")) {
+					out.write("net.opentsdb.tools FakeOpenTSDB built at revision 0 (MINT)\n");
+					out.write("Built on 2015/01/01 00:00:00 +0000 by fake on localhost\n");
+				} else if (words[0].length() > 0) {
+					out.write("unknown command: " + words[0] + ".  Try `help'.\n");
+				}
+				if (!in.ready())
+					out.flush();
+			}
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			telnetSockets.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	/*
+	 * Stores one put command, given as its words, and returns why it was turned away, or null if it was not.
+	 */
+	private String putLine(String[] words) {
+		boolean fail;
+		synchronized (random) {
+			fail = errorRate > 0 && random.nextDouble() < errorRate;
+		}
+		if (fail) {
+			injectedErrors.incrementAndGet();
+			return "HBase error: Injected error";
+		}
+		String error = null;
+		if (words.length < 5) {
+			error = "illegal argument: not enough arguments (need at least 4, got " + (words.length - 1) + ")";
+		} else {
+			try {
+				if (Long.parseLong(words[2]) <= 0)
+					error = "illegal argument: invalid timestamp: " + words[2];
+				Double.parseDouble(words[3]);
+			} catch (NumberFormatException e) {
+				error = "illegal argument: invalid value or timestamp: " + words[2] + " " + words[3];
+			}
+			for (int i = 4; i < words.length && error == null; i++) {
+				int equals = words[i].indexOf('=');
+				if (equals <= 0 || equals == words[i].length() - 1)
+					error = "illegal argument: invalid tag: " + words[i];
+			}
+		}
+		if (error != null) {
+			failedPoints.incrementAndGet();
+			return error;
+		}
+		countPoint(words[1]);
+		points.incrementAndGet();
+		return null;
+	}
+
+	private void countPoint(String metric) {
+		AtomicLong count = pointsByMetric.get(metric);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = pointsByMetric.putIfAbsent(metric, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	private void handleRequest(HttpExchange exchange) throws IOException {
+		byte[] body = readBody(exchange);
+		if (!exchange.getRequestURI().getPath().equals(apiPut)) {
+			respond(exchange, 404, "{\"error\":{\"code\":404,\"message\":\"Endpoint not found\"}}");
+			return;
+		}
+		if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+			respond(exchange, 405, "{\"error\":{\"code\":405,\"message\":\"Method not allowed\"}}");
+			return;
+		}
+		requests.incrementAndGet();
+		bytesReceived.addAndGet(body.length);
+		long delay = latencyMillis;
+		boolean fail;
+		synchronized (random) {
+			if (jitterMillis > 0)
+				delay += (long) (random.nextDouble() * (jitterMillis + 1));
+			fail = errorRate > 0 && random.nextDouble() < errorRate;
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (fail) {
+			injectedErrors.incrementAndGet();
+			respond(exchange, errorStatus, "{\"error\":{\"code\":" + errorStatus + ",\"message\":\"Injected error\"}}");
+			return;
+		}
+		List<Object> dataPoints = new ArrayList<Object>();
+		try {
+			Object json = new JsonReader(new String(body, UTF8)).readDocument();
+			if (json instanceof List) {
+				for (Object dataPoint : (List<?>) json) {
+					dataPoints.add(dataPoint);
+				}
+			} else {
+				dataPoints.add(json);
+			}
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, "{\"error\":{\"code\":400,\"message\":\"Unable to parse the given JSON\",\"details\":\"" + e.getMessage().replace("\"", "\\\"") + "\"}}");
+			return;
+		}
+		int success = 0;
+		int failed = 0;
+		for (Object dataPoint : dataPoints) {
+			String metric = validMetric(dataPoint);
+			if (metric == null) {
+				failed++;
+				continue;
+			}
+			success++;
+			countPoint(metric);
+		}
+		points.addAndGet(success);
+		failedPoints.addAndGet(failed);
+		String query = exchange.getRequestURI().getQuery();
+		boolean summary = query != null && (query.contains("summary") || query.contains("details"));
+		if (summary)
+			respond(exchange, (failed > 0) ? 400 : 200, "{\"failed\":" + failed + ",\"success\":" + success + "}");
+		else if (failed > 0)
+			respond(exchange, 400, "{\"error\":{\"code\":400,\"message\":\"One or more data points had errors\",\"details\":\"" + failed + " of "
+					+ (failed + success) + " data points failed\"}}");
+		else
+			respond(exchange, 204, null);
+	}
+
+	/*
+	 * Returns the metric of a data point, or null if the point is not one OpenTSDB would store.
+	 */
+	private static String validMetric(Object dataPoint) {
+		if (!(dataPoint instanceof Map))
+			return null;
+		Map<?,?> fields = (Map<?,?>) dataPoint;
+		Object metric = fields.get("metric");
+		Object timestamp = fields.get("timestamp");
+		Object value = fields.get("value");
+		Object tags = fields.get("tags");
+		if (!(metric instanceof String) || ((String) metric).length() == 0)
+			return null;
+		if (!(tags instanceof Map) || ((Map<?,?>) tags).isEmpty())
+			return null;
+		try {
+			if (timestamp instanceof Double) {
+				double seconds = ((Double) timestamp).doubleValue();
+				if (seconds <= 0 || seconds != Math.floor(seconds))
+					return null;
+			} else if (!(timestamp instanceof String) || Long.parseLong((String) timestamp) <= 0) {
+				return null;
+			}
+			if (value instanceof String)
+				Double.parseDouble((String) value);
+			else if (!(value instanceof Double))
+				return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return (String) metric;
+	}
+
+	/*
+	 * Reads the whole body off the connection before decompressing it, so the connection is left at the
+	 * start of the next request and can be kept alive.
+	 */
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		byte[] body = readFully(exchange.getRequestBody());
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+			body = readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+		return body;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		if (body == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		byte[] bytes = body.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/*
+	 * Reads just enough JSON for a put body: objects become maps, arrays lists, strings strings, numbers
+	 * doubles and true, false and null themselves.
+	 */
+	private static class JsonReader {
+
+		private final String text;
+		private int position = 0;
+
+		JsonReader(String text) {
+			this.text = text;
+		}
+
+		Object readDocument() {
+			Object value = readValue();
+			skipWhitespace();
+			if (position < text.length())
+				throw error("Unexpected text after the end");
+			return value;
+		}
+
+		private Object readValue() {
+			skipWhitespace();
+			if (position >= text.length())
+				throw error("Unexpected end");
+			char c = text.charAt(position);
+			if (c == '{')
+				return readObject();
+			if (c == '[')
+				return readArray();
+			if (c == '"')
+				return readString();
+			if (text.startsWith("true", position)) {
+				position += 4;
+				return Boolean.TRUE;
+			}
+			if (text.startsWith("false", position)) {
+				position += 5;
+				return Boolean.FALSE;
+			}
+			if (text.startsWith("null", position)) {
+				position += 4;
+				return null;
+			}
+			return readNumber();
+		}
+
+		private Map<String,Object> readObject() {
+			Map<String,Object> object = new LinkedHashMap<String,Object>();
+			position++;
+			skipWhitespace();
+			if (peek() == '}') {
+				position++;
+				return object;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"')
+					throw error("Expected a field name");
+				String name = readString();
+				skipWhitespace();
+				expect(':');
+				object.put(name, readValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect('}');
+					return object;
+				}
+			}
+		}
+
+		private List<Object> readArray() {
+			List<Object> array = new ArrayList<Object>();
+			position++;
+			skipWhitespace();
+			if (peek() == ']') {
+				position++;
+				return array;
+			}
+			while (true) {
+				array.add(readValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect(']');
+					return array;
+				}
+			}
+		}
+
+		private String readString() {
+			StringBuilder value = new StringBuilder();
+			position++;
+			while (true) {
+				if (position >= text.length())
+					throw error("Unterminated string");
+				char c = text.charAt(position++);
+				if (c == '"')
+					return value.toString();
+				if (c != '\\') {
+					value.append(c);
+					continue;
+				}
+				if (position >= text.length())
+					throw error("Unterminated string");
+				char escaped = text.charAt(position++);
+				switch (escaped) {
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'u':
+					if (position + 4 > text.length())
+						throw error("Bad unicode escape");
+					value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+					position += 4;
+					break;
+				default:
+					value.append(escaped);
+				}
+			}
+		}
+
+		private Double readNumber() {
+			int start = position;
+			while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+				position++;
+			}
+			if (start == position)
+				throw error("Unexpected character '" + text.charAt(position) + "'");
+			try {
+				return Double.valueOf(text.substring(start, position));
+			} catch (NumberFormatException e) {
+				throw error("Bad number");
+			}
+		}
+
+		private char peek() {
+			if (position >= text.length())
+				throw error("Unexpected end");
+			return text.charAt(position);
+		}
+
+		private void expect(char c) {
+			if (peek() != c)
+				throw error("Expected '" + c + "'");
+			position++;
+		}
+
+		private void skipWhitespace() {
+			while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+				position++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at character " + position);
+		}
+
+	}
+
+}
@@ -0,0 +1,413 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class follows HL7 files that the monitor gateway is still appending to.  Every file under the rootDir
+ * that is not in the manifest is kept open, and every tailPollMillis the bytes appended since the last poll
+ * are read with positional reads from the offset reached so far, so nothing before it is read again.  Only
+ * complete messages are loaded: a message is complete once the next MSH follows it, and the last message
+ * in a file is taken once the file has not grown for tailSettleMillis and ends with a segment terminator.
+ * After each poll the points and subjects are made durable and the offset of every file that moved on is
+ * recorded in the file checkpoints, so a restart carries on where the last poll left off.  A file that
+ * shrinks has been truncated and one whose file key changes has been replaced by a new file of the same
+ * name; either way it is read again from the start, after the rest of a replaced file is read from the old
+ * handle.  Once a file has not grown for tailCloseMinutes it is recorded in the manifest and closed.  The
+ * rootDir is rescanned for new files every watchPollSeconds.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.cvrgrid.hl7.fileparse.model.OpenTSDBConfiguration;
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+import org.cvrgrid.hl7.fileparse.parser.HL7MessageReader;
+import org.cvrgrid.hl7.fileparse.registry.FileCheckpoints.Checkpoint;
+
+public class FileTailer {
+
+	private final PicuDataLoader loader;
+	private final String rootDir;
+	private final long pollMillis;
+	private final long rescanMillis;
+	private final long settleMillis;
+	private final long closeMillis;
+	private final long checkpointMillis;
+	private final HL7FileProcessor processor;
+	private final TreeMap<String,TailedFile> files = new TreeMap<String,TailedFile>();
+	private final CountDownLatch stopRequested = new CountDownLatch(1);
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private long messageCount = 0;
+
+	/**
+	 * @param loader an opened loader
+	 */
+	public FileTailer(PicuDataLoader loader) {
+		OpenTSDBConfiguration openTSDBConfiguration = loader.getOpenTSDBConfiguration();
+		this.loader = loader;
+		this.rootDir = openTSDBConfiguration.getRootDir();
+		this.pollMillis = Math.max(10, openTSDBConfiguration.getTailPollMillis());
+		this.rescanMillis = Math.max(1, openTSDBConfiguration.getWatchPollSeconds()) * 1000L;
+		this.settleMillis = Math.max(0, openTSDBConfiguration.getTailSettleMillis());
+		this.closeMillis = Math.max(1, openTSDBConfiguration.getTailCloseMinutes()) * 60000L;
+		this.checkpointMillis = Math.max(1, openTSDBConfiguration.getCheckpointSeconds()) * 1000L;
+		this.processor = loader.newFileProcessor();
+	}
+
+	/**
+	 * Follows the files until stop is called, then closes the loader.
+	 */
+	public void run() throws Exception {
+		System.out.println("Tailing " + rootDir + " (poll every " + pollMillis + " ms, rescan every " + rescanMillis / 1000 + " seconds)");
+		long nextRescan = 0;
+		long nextCheckpoint = System.currentTimeMillis() + checkpointMillis;
+		try {
+			while (stopRequested.getCount() > 0) {
+				long now = System.currentTimeMillis();
+				if (now >= nextRescan) {
+					for (String path : loader.getManifest().findNewFiles(rootDir)) {
+						if (!files.containsKey(path))
+							open(path, now);
+					}
+					nextRescan = now + rescanMillis;
+				}
+				try {
+					poll(now);
+				} catch (Exception e) {
+					// Offsets are only recorded after a successful poll, so the same messages are read again.
+					System.out.println("Unable to load appended messages, retrying: " + e);
+					e.printStackTrace();
+					processor.takeMessageKeys();
+					loader.rollback();
+					rewind();
+				}
+				if (now >= nextCheckpoint) {
+					try {
+						loader.checkpoint();
+					} catch (Exception e) {
+						System.out.println("Unable to checkpoint, retrying at the next checkpoint: " + e);
+						e.printStackTrace();
+					}
+					nextCheckpoint = System.currentTimeMillis() + checkpointMillis;
+				}
+				stopRequested.await(pollMillis, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			for (TailedFile file : files.values()) {
+				file.close();
+			}
+			try {
+				System.out.println("Messages Tailed: " + messageCount);
+				loader.close(true);
+			} finally {
+				stopped.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Asks the tailer to stop and waits for the loader to be closed.
+	 */
+	public void stop() {
+		stopRequested.countDown();
+		try {
+			stopped.await(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void open(String path, long now) {
+		try {
+			TailedFile file = new TailedFile(path, now);
+			Checkpoint checkpoint = loader.getFileCheckpoints().get(path);
+			if (checkpoint != null) {
+				if (file.resume(checkpoint))
+					System.out.println("     Tailing " + path + " from message " + checkpoint.getMessages());
+				else
+					System.out.println("     " + path + " changed since its checkpoint, tailing it from the start");
+			} else {
+				System.out.println("     Tailing " + path);
+			}
+			files.put(path, file);
+		} catch (IOException e) {
+			System.out.println("Unable to open " + path + ": " + e);
+		}
+	}
+
+	/*
+	 * Reads what was appended to every file, loads it and records the new offsets once it is stored.
+	 */
+	private void poll(long now) throws Exception {
+		HashMap<String,PatientInfo> subjects = new HashMap<String,PatientInfo>();
+		List<TailedFile> moved = new ArrayList<TailedFile>();
+		List<TailedFile> finished = new ArrayList<TailedFile>();
+		for (TailedFile file : files.values()) {
+			if (!file.path.toFile().exists()) {
+				// the file was moved away, so whatever is left in it is read from the handle still open
+				file.readAppended(Long.MAX_VALUE, true, subjects);
+				file.gone = true;
+				finished.add(file);
+				continue;
+			}
+			file.checkReplaced(subjects);
+			long size = file.channel.size();
+			if (size != file.size) {
+				file.size = size;
+				file.since = now;
+			}
+			long idle = now - file.since;
+			if (size > file.offset) {
+				boolean takeLast = idle >= settleMillis && (file.endsWithTerminator(size) || idle >= closeMillis);
+				if (file.readAppended(size, takeLast, subjects))
+					moved.add(file);
+			}
+			if (file.offset >= size && idle >= closeMillis)
+				finished.add(file);
+		}
+		if (moved.isEmpty() && finished.isEmpty())
+			return;
+		loader.mergeSubjects(subjects, processor.takeMessageKeys());
+		loader.flush();
+		for (TailedFile file : moved) {
+			file.commit();
+			loader.getFileCheckpoints().record(file.path.toString(), file.offset, file.messages, file.checksum.getValue());
+		}
+		for (TailedFile file : finished) {
+			if (file.gone) {
+				System.out.println("     " + file.path + " went away after " + file.messages + " messages");
+			} else {
+				loader.getManifest().record(file.path.toString(), file.offset, file.path.toFile().lastModified(), file.checksum.getValue());
+				System.out.println("     Finished tailing " + file.path + " after " + file.messages + " messages");
+			}
+			loader.getFileCheckpoints().remove(file.path.toString());
+			file.close();
+			files.remove(file.path.toString());
+		}
+	}
+
+	/*
+	 * Goes back to the offsets last recorded, after a poll that could not be stored.
+	 */
+	private void rewind() {
+		for (TailedFile file : files.values()) {
+			file.rollback();
+		}
+	}
+
+	/*
+	 * One file being followed.  The offset, message count and checksum move on as messages are read, and
+	 * are copied to the committed values once those messages are stored, so a failed poll can go back.
+	 */
+	private class TailedFile {
+
+		private final Path path;
+		private FileChannel channel;
+		private Object fileKey;
+		private long offset = 0;
+		private long messages = 0;
+		private CRC32 checksum = new CRC32();
+		private long committedOffset = 0;
+		private long committedMessages = 0;
+		private long size;
+		private long since;
+		private boolean gone = false;
+
+		TailedFile(String path, long now) throws IOException {
+			this.path = Paths.get(path);
+			this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+			this.fileKey = fileKey();
+			this.size = channel.size();
+			// a file that stopped growing before the tailer started does not wait the whole close time again
+			this.since = Math.min(now, this.path.toFile().lastModified());
+		}
+
+		/*
+		 * Carries on from a checkpoint if the bytes before it are unchanged, which is the one time a
+		 * file is read from the start.
+		 */
+		boolean resume(Checkpoint checkpoint) throws IOException {
+			if (checkpoint.getOffset() > channel.size())
+				return false;
+			CRC32 prefix = new CRC32();
+			InputStream in = new ChannelInputStream(channel, 0, checkpoint.getOffset());
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer, 0, buffer.length)) > 0) {
+				prefix.update(buffer, 0, read);
+			}
+			if (prefix.getValue() != checkpoint.getChecksum())
+				return false;
+			offset = committedOffset = checkpoint.getOffset();
+			messages = committedMessages = checkpoint.getMessages();
+			checksum = prefix;
+			return true;
+		}
+
+		/*
+		 * Starts the file again from the start if it was truncated, or if another file took its name, in
+		 * which case the rest of the old file is loaded first.
+		 */
+		void checkReplaced(HashMap<String,PatientInfo> subjects) throws Exception {
+			Object currentKey = fileKey();
+			if (currentKey != null && !currentKey.equals(fileKey)) {
+				readAppended(channel.size(), true, subjects);
+				System.out.println("     " + path + " was replaced after " + messages + " messages, tailing the new file from the start");
+				channel.close();
+				channel = FileChannel.open(path, StandardOpenOption.READ);
+				fileKey = currentKey;
+				restart();
+			} else if (channel.size() < offset) {
+				System.out.println("     " + path + " was truncated after " + messages + " messages, tailing it from the start");
+				restart();
+			}
+		}
+
+		private void restart() throws IOException {
+			offset = committedOffset = 0;
+			messages = committedMessages = 0;
+			checksum = new CRC32();
+			size = channel.size();
+			// the old offset is no longer any use, and the new one is recorded after the next read
+			loader.getFileCheckpoints().remove(path.toString());
+		}
+
+		boolean endsWithTerminator(long size) throws IOException {
+			if (size == 0)
+				return false;
+			ByteBuffer last = ByteBuffer.allocate(1);
+			if (channel.read(last, size - 1) != 1)
+				return false;
+			byte b = last.get(0);
+			return b == '\r' || b == '\n';
+		}
+
+		/*
+		 * Loads the complete messages between the offset and the given end of the file.
+		 *
+		 * @return true if the offset moved on
+		 */
+		boolean readAppended(long end, boolean takeLast, HashMap<String,PatientInfo> subjects) throws Exception {
+			long limit = Math.min(end, channel.size());
+			if (limit <= offset)
+				return false;
+			HL7MessageReader reader = new HL7MessageReader(new ChannelInputStream(channel, offset, limit), offset,
+					Charset.defaultCharset(), checksum);
+			List<String> batch = new ArrayList<String>();
+			String message;
+			while ((message = reader.next(takeLast)) != null) {
+				batch.add(message);
+			}
+			if (reader.getOffset() == offset)
+				return false;
+			processor.processMessages(batch, subjects);
+			offset = reader.getOffset();
+			messages += batch.size();
+			messageCount += batch.size();
+			return true;
+		}
+
+		void commit() {
+			committedOffset = offset;
+			committedMessages = messages;
+		}
+
+		void rollback() {
+			if (offset == committedOffset)
+				return;
+			// the checksum cannot be wound back, so it is taken again up to the committed offset
+			try {
+				Checkpoint checkpoint = loader.getFileCheckpoints().get(path.toString());
+				offset = 0;
+				messages = 0;
+				checksum = new CRC32();
+				if (checkpoint != null && checkpoint.getOffset() == committedOffset)
+					resume(checkpoint);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private Object fileKey() throws IOException {
+			if (!Files.exists(path))
+				return fileKey;
+			return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		}
+
+	}
+
+	/*
+	 * Reads a range of a file with positional reads, leaving the position of the channel alone.
+	 */
+	private static class ChannelInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		ChannelInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end)
+				return -1;
+			int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (read < 0)
+				return -1;
+			position += read;
+			return read;
+		}
+
+	}
+
+}
@@ -0,0 +1,322 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class makes HL7 files that look like the exports of the monitor gateway, for trying out the loader
+ * without patient data.  Every message is an ORU^R01 with MSH, PID, PV1 and OBR and then one OBX for each
+ * vital sign, from a fixed set of subjects sent in turn, so each subject has a message every so many
+ * seconds as on a real unit.  Each subject keeps a bed on a unit for the whole run, most of them on the PICU
+ * (ZB04) and the rest on other units, and each vital sign wanders about from one message to the next within
+ * a normal range.  The messages come from a seeded Random, so the same settings always give the same files.
+ *
+ * The messages are shared out over the files by subject, as they would be by bed, and written one after the
+ * other at the given rate of messages a second, in observation time.  Run in real time, the files are also
+ * written at that rate, a message at a time, so the tail and watch modes can be tried against files that are
+ * still growing.  The translation workbook for the vital signs can be written as well, in the layout the
+ * loader reads awareSupportedParams in.  A share of the OBX segments can be written with OBX-5 empty, as a
+ * monitor sends a vital sign it has no reading for, to try the loader against observations with no value.
+ *
+ * Usage: HL7FileGenerator out=directory [subjects=50] [vitals=12] [rate=10] [seconds=3600] [files=1] [seed=1]
+ *        [start=yyyyMMddHHmmss] [picuShare=0.75] [emptyShare=0] [realtime=false] [params=workbook.xlsx]
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+public class HL7FileGenerator {
+
+	/*
+	 * The HL7 identifier, measurement name, units, low and high of the normal range and the largest step
+	 * between messages of each vital sign.
+	 */
+	private static final String[][] VITALS = {
+		{"0002-4182", "Heart Rate", "bpm", "70", "160", "4"},
+		{"0002-4a15", "NBP Systolic", "mm(hg)", "70", "120", "3"},
+		{"0002-4a16", "SpO2", "%", "88", "100", "1"},
+		{"0002-4a17", "Respiratory Rate", "rpm", "15", "50", "2"},
+		{"0002-480a", "PEEP", "cm_h2o", "4", "12", "1"},
+		{"0002-4b50", "Pulse Rate", "/min", "70", "160", "4"},
+		{"0002-4bb0", "PVC Count", "#", "0", "5", "1"},
+		{"0002-4bb8", "Minute Volume", "l/min", "1", "8", "1"},
+		{"0002-500a", "Temperature", "celiters", "36", "39", "1"},
+		{"0002-4a1d", "Cardiac Index", "l/(min/m2)", "2", "5", "1"},
+		{"0002-4a05", "NBP Diastolic", "mm(hg)", "40", "80", "3"},
+		{"0002-4bb4", "Tidal Volume", "ml", "30", "300", "10"}
+	};
+	private static final String PICU = "ZB04";
+	private static final String[] OTHER_UNITS = {"ZC02", "ZA01", "ZD03"};
+	private static final String[] FIRST_NAMES = {"Avery", "Jordan", "Riley", "Casey", "Morgan", "Quinn", "Rowan", "Emerson", "Parker", "Reese"};
+	private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Miller", "Davis", "Wilson", "Moore", "Taylor"};
+	private static final String[] BIRTHPLACES = {"Baltimore", "Towson", "Columbia", "Annapolis", "Frederick"};
+
+	private final int vitalsPerMessage;
+	private final double messagesPerSecond;
+	private final Random random;
+	private final Subject[] subjects;
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+	private long startTime = 1425513600000L;
+	private double emptyShare = 0;
+	private long messageCount = 0;
+
+	/**
+	 * @param subjects the number of subjects
+	 * @param vitalsPerMessage the number of OBX segments in each message, the vital signs repeating when
+	 *            there are more than there are vital signs
+	 * @param messagesPerSecond the number of messages a second, over all the subjects
+	 * @param picuShare the share of subjects on the PICU, from 0 to 1
+	 * @param seed the seed of the random values
+	 */
+	public HL7FileGenerator(int subjects, int vitalsPerMessage, double messagesPerSecond, double picuShare, long seed) {
+		this.vitalsPerMessage = vitalsPerMessage;
+		this.messagesPerSecond = messagesPerSecond;
+		this.random = new Random(seed);
+		this.subjects = new Subject[Math.max(1, subjects)];
+		for (int s = 0; s < this.subjects.length; s++) {
+			this.subjects[s] = new Subject(s, random.nextDouble() < picuShare);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		Map<String,String> options = new HashMap<String,String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0)
+				options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		if (!options.containsKey("out")) {
+			System.out.println("Usage: HL7FileGenerator out=directory [subjects=50] [vitals=12] [rate=10] [seconds=3600] [files=1] [seed=1]");
+			System.out.println("       [start=yyyyMMddHHmmss] [picuShare=0.75] [emptyShare=0] [realtime=false] [params=workbook.xlsx]");
+			return;
+		}
+		HL7FileGenerator generator = new HL7FileGenerator(Integer.parseInt(option(options, "subjects", "50")),
+				Integer.parseInt(option(options, "vitals", "12")), Double.parseDouble(option(options, "rate", "10")),
+				Double.parseDouble(option(options, "picuShare", "0.75")), Long.parseLong(option(options, "seed", "1")));
+		if (options.containsKey("start"))
+			generator.setStartTime(new SimpleDateFormat("yyyyMMddHHmmss").parse(options.get("start")).getTime());
+		generator.setEmptyShare(Double.parseDouble(option(options, "emptyShare", "0")));
+		if (options.containsKey("params")) {
+			writeMeasurementWorkbook(options.get("params"));
+			System.out.println("Translation workbook written to " + options.get("params"));
+		}
+		long messages = (long) (Double.parseDouble(option(options, "seconds", "3600")) * Double.parseDouble(option(options, "rate", "10")));
+		long start = System.currentTimeMillis();
+		generator.writeFiles(new File(options.get("out")), Integer.parseInt(option(options, "files", "1")), messages,
+				Boolean.parseBoolean(option(options, "realtime", "false")));
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Messages Written: " + generator.getMessageCount() + " (" + (generator.getMessageCount() * 1000L / elapsed) + " messages/sec)");
+	}
+
+	private static String option(Map<String,String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return (value == null) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * @param startTime the observation time of the first message, in epoch milliseconds
+	 */
+	public void setStartTime(long startTime) {
+		this.startTime = startTime;
+	}
+
+	/**
+	 * @param emptyShare the share of OBX segments written with OBX-5 empty, from 0 to 1
+	 */
+	public void setEmptyShare(double emptyShare) {
+		this.emptyShare = emptyShare;
+	}
+
+	/**
+	 * @return the number of messages made so far
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return the HL7 identifier to measurement name table for the vital signs, as the loader reads it from
+	 *         the translation workbook
+	 */
+	public static Map<String,String> measurementNames() {
+		Map<String,String> names = new HashMap<String,String>();
+		for (String[] vital : VITALS) {
+			names.put(vital[0], vital[1]);
+		}
+		return names;
+	}
+
+	/**
+	 * Writes the translation workbook for the vital signs: a heading row, then the measurement name in the
+	 * second column and the HL7 identifier in the third, as the loader reads awareSupportedParams.
+	 */
+	public static void writeMeasurementWorkbook(String path) throws IOException {
+		XSSFWorkbook workbook = new XSSFWorkbook();
+		XSSFSheet sheet = workbook.createSheet("Parameters");
+		XSSFRow heading = sheet.createRow(0);
+		heading.createCell(0).setCellValue("Label");
+		heading.createCell(1).setCellValue("Measurement");
+		heading.createCell(2).setCellValue("HL7 Identifier");
+		for (int v = 0; v < VITALS.length; v++) {
+			XSSFRow row = sheet.createRow(v + 1);
+			row.createCell(0).setCellValue(VITALS[v][1]);
+			row.createCell(1).setCellValue(VITALS[v][1]);
+			row.createCell(2).setCellValue(VITALS[v][0]);
+		}
+		new File(path).getAbsoluteFile().getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			workbook.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Makes the next message, from the next subject in turn.
+	 *
+	 * @return the message, its segments ended by carriage returns
+	 */
+	public String nextMessage() {
+		return subjects[(int) (messageCount % subjects.length)].message();
+	}
+
+	/**
+	 * @param count the number of messages to make
+	 * @return the next messages, as nextMessage makes them
+	 */
+	public List<String> nextMessages(int count) {
+		List<String> messages = new ArrayList<String>(count);
+		for (int m = 0; m < count; m++) {
+			messages.add(nextMessage());
+		}
+		return messages;
+	}
+
+	/**
+	 * Writes messages to files named generated-n.txt in a directory, each subject to one file.  The .txt ending
+	 * is one the loader looks for.
+	 *
+	 * @param directory the directory, made if it is not there
+	 * @param files the number of files
+	 * @param messages the number of messages over all the files
+	 * @param realtime true to write the messages at the rate of the generator, false to write them at once
+	 */
+	public void writeFiles(File directory, int files, long messages, boolean realtime) throws IOException, InterruptedException {
+		directory.mkdirs();
+		files = Math.max(1, Math.min(files, subjects.length));
+		Writer[] writers = new Writer[files];
+		try {
+			for (int f = 0; f < files; f++) {
+				writers[f] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, "generated-" + f + ".txt")), "UTF-8"));
+			}
+			long wallStart = System.currentTimeMillis();
+			for (long m = 0; m < messages; m++) {
+				int file = (int) (messageCount % subjects.length) % files;
+				writers[file].write(nextMessage());
+				writers[file].write('\n');
+				if (realtime) {
+					writers[file].flush();
+					long due = wallStart + (long) ((m + 1) * 1000 / messagesPerSecond);
+					long wait = due - System.currentTimeMillis();
+					if (wait > 0)
+						Thread.sleep(wait);
+				}
+			}
+		} finally {
+			for (Writer writer : writers) {
+				if (writer != null)
+					writer.close();
+			}
+		}
+	}
+
+	/*
+	 * One subject, with its identity, its bed and the last value of each of its vital signs.
+	 */
+	private class Subject {
+
+		private final String mrn;
+		private final String firstName;
+		private final String lastName;
+		private final String birthDate;
+		private final String gender;
+		private final String birthplace;
+		private final String location;
+		private final int[] values = new int[VITALS.length];
+
+		Subject(int index, boolean picu) {
+			mrn = "MRN" + (100000 + index);
+			firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + index;
+			lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+			birthDate = String.format("%04d%02d%02d", 2000 + random.nextInt(15), 1 + random.nextInt(12), 1 + random.nextInt(28));
+			gender = random.nextBoolean() ? "M" : "F";
+			birthplace = BIRTHPLACES[random.nextInt(BIRTHPLACES.length)];
+			String unit = picu ? PICU : OTHER_UNITS[random.nextInt(OTHER_UNITS.length)];
+			location = unit + "^Bed" + (index % 24 + 1);
+			for (int v = 0; v < VITALS.length; v++) {
+				int low = Integer.parseInt(VITALS[v][3]);
+				int high = Integer.parseInt(VITALS[v][4]);
+				values[v] = low + random.nextInt(high - low + 1);
+			}
+		}
+
+		String message() {
+			String time = timeFormat.format(new Date(startTime + (long) (messageCount * 1000 / messagesPerSecond)));
+			StringBuilder message = new StringBuilder(64 * (vitalsPerMessage + 4));
+			message.append("MSH|^~\\&|MONITOR|GW|LOADER|CVRG|").append(time).append("||ORU^R01|MSG").append(messageCount).append("|P|2.3\r");
+			message.append("PID|||").append(mrn).append("||").append(lastName).append('^').append(firstName).append("||").append(birthDate);
+			message.append('|').append(gender).append("|||||||||||||").append(birthplace).append('\r');
+			message.append("PV1||I|").append(location).append('\r');
+			message.append("OBR|||||||").append(time).append('\r');
+			for (int o = 0; o < vitalsPerMessage; o++) {
+				int v = o % VITALS.length;
+				String[] vital = VITALS[v];
+				int low = Integer.parseInt(vital[3]);
+				int high = Integer.parseInt(vital[4]);
+				int step = Integer.parseInt(vital[5]);
+				values[v] = Math.max(low, Math.min(high, values[v] + random.nextInt(2 * step + 1) - step));
+				message.append("OBX|").append(o + 1).append("|NM|").append(vital[0]).append('^').append(vital[1].replace(' ', '_')).append("||");
+				if (emptyShare == 0 || random.nextDouble() >= emptyShare)
+					message.append(values[v]);
+				message.append('|').append(vital[2]).append("|||||F\r");
+			}
+			messageCount++;
+			return message.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,230 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class loads HL7 messages: it parses each one, stores the observations through the sinks with the subject
+ * hash in the subjectId tag and collects what was learned about each subject.  The subjects are collected
+ * in a map that belongs to the caller, not in the shared lookup, so several runs of messages can be loaded
+ * at the same time and their results merged into the lookup afterwards, in file order.  A processor holds
+ * a parser and a cache of subject hashes, so it must only be used by one thread at a time, but the parser
+ * of observation times has no state and is shared by every processor of a loader.
+ * The cache maps the demographic fields of a message, joined the way PatientInfo joins them for hashing,
+ * to the tags of the subject, which hold the subject hash, so the SHA-256 is only worked out and the tags
+ * only made the first time a processor sees a patient.
+ * Every processor of a loader counts the messages, observations and unknown observation codes it sees into
+ * the same metrics, and times the parsing of each message, the hashing of each new subject and the
+ * normalizing and queueing of the observations of each message.
+ * With the duplicate filter on, a processor also keeps the keys of the messages it has loaded, which the
+ * caller takes along with the subjects and hands to the loader when it merges them.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cvrgrid.hl7.fileparse.metrics.Counter;
+import org.cvrgrid.hl7.fileparse.metrics.Histogram;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+import org.cvrgrid.hl7.fileparse.model.NameSet;
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+import org.cvrgrid.hl7.fileparse.normalize.SeriesNameNormalizer;
+import org.cvrgrid.hl7.fileparse.normalize.SeriesNameNormalizer.NormalizedSeries;
+import org.cvrgrid.hl7.fileparse.parser.LocationFilter;
+import org.cvrgrid.hl7.fileparse.parser.ObservationMessage;
+import org.cvrgrid.hl7.fileparse.parser.ObservationMessageParser;
+import org.cvrgrid.hl7.fileparse.parser.ObservationTimeParser;
+import org.cvrgrid.hl7.fileparse.registry.DuplicateFilter;
+import org.cvrgrid.hl7.fileparse.store.TimeSeriesSink;
+
+public class HL7FileProcessor {
+
+	private final SeriesNameNormalizer normalizer;
+	private final TimeSeriesSink timeSeriesSink;
+	private final ObservationMessageParser parser;
+	private final ObservationTimeParser timeParser;
+	private final LocationFilter locationFilter;
+	private final LinkedHashMap<String,Map<String,String>> subjectTags;
+	private final DuplicateFilter duplicates;
+	private final Counter messages;
+	private final Counter observations;
+	private final Counter unknownObservations;
+	private final Histogram parseLatency;
+	private final Histogram hashLatency;
+	private final Histogram normalizeLatency;
+	private long[] messageKeys = new long[256];
+	private int messageKeyCount = 0;
+
+	/**
+	 * @param subjectCacheSize the number of subject hashes to keep, the least recently used going first
+	 * @param duplicates the filter of messages already stored, or null to store every message
+	 * @param timeParser the parser of observation times
+	 * @param locationFilter the filter of locations to load
+	 * @param metrics the metrics of the loader, shared by all of its processors
+	 */
+	public HL7FileProcessor(SeriesNameNormalizer normalizer, TimeSeriesSink timeSeriesSink, String parserMode, final int subjectCacheSize, 
+			DuplicateFilter duplicates, ObservationTimeParser timeParser, LocationFilter locationFilter, MetricsRegistry metrics) {
+		this.normalizer = normalizer;
+		this.timeSeriesSink = timeSeriesSink;
+		this.timeParser = timeParser;
+		this.locationFilter = locationFilter;
+		this.duplicates = duplicates;
+		this.parser = new ObservationMessageParser(parserMode, locationFilter);
+		this.messages = metrics.counter("messages");
+		this.observations = metrics.counter("observations");
+		this.unknownObservations = metrics.counter("unknownObservations");
+		this.parseLatency = metrics.latency("parse");
+		this.hashLatency = metrics.latency("hash");
+		this.normalizeLatency = metrics.latency("normalize");
+		this.subjectTags = new LinkedHashMap<String,Map<String,String>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Map<String,String>> eldest) {
+				return size() > subjectCacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Parses and stores a run of messages from one file, in order, recording the subjects in the given map.
+	 */
+	public void processMessages(List<String> messages, HashMap<String,PatientInfo> subjects) throws Exception {
+		for (String message : messages) {
+			long start = System.nanoTime();
+			ObservationMessage parsed = parser.parse(message);
+			parseLatency.recordSince(start);
+			processMessage(parsed, subjects);
+		}
+	}
+
+	/**
+	 * Stores the observations of one message and records the subject in the given map, unless the message
+	 * comes from a location that is not loaded.
+	 */
+	public void processMessage(ObservationMessage message, HashMap<String,PatientInfo> subjects) throws Exception {
+		messages.increment();
+		String location = message.getLocation();
+		if (!locationFilter.accepts(location)) {
+			locationFilter.countFiltered(location);
+			return;
+		}
+		String firstName = trim(message.getFirstName());
+		String lastName = trim(message.getLastName());
+		String birthDateTime = trim(message.getBirthDateTime());
+		String gender = trim(message.getGender());
+		String birthplace = trim(message.getBirthplace());
+		String key = firstName + lastName + birthDateTime + gender + birthplace;
+		Map<String,String> tags = subjectTags.get(key);
+		if (tags == null) {
+			long start = System.nanoTime();
+			tags = Collections.singletonMap("subjectId", PatientInfo.hashOf(key));
+			hashLatency.recordSince(start);
+			subjectTags.put(key, tags);
+		}
+		String hash = tags.get("subjectId");
+		String time = message.getObservationTime();
+		long timepoint = timeParser.parse(time);
+		int observationCount = message.getObservationCount();
+		long messageKey = 0;
+		if (duplicates != null) {
+			long observationHashes = 0;
+			for (int o = 0; o < observationCount; o++) {
+				observationHashes += DuplicateFilter.observationHash(message.getObservationId(o), message.getObservationUnits(o), message.getObservationValue(o));
+			}
+			messageKey = DuplicateFilter.keyOf(hash, time, observationHashes);
+			// a message stored before is dropped before any of its observations are normalized or queued, and
+			// one that fails from here on is forgotten again when the caller rolls back
+			if (duplicates.seenBefore(messageKey))
+				return;
+		}
+		PatientInfo patInfo = subjects.get(hash);
+		if (patInfo == null) {
+			patInfo = new PatientInfo();
+			patInfo.setFirstName(firstName);
+			patInfo.setLastName(lastName);
+			patInfo.setBirthDateTime(birthDateTime);
+			patInfo.setGender(gender);
+			patInfo.setBirthplace(birthplace);
+			patInfo.setHash(hash);
+		}
+		NameSet variables = patInfo.getVariables();
+		if (patInfo.getLocations().add(location)) {
+			if (location.startsWith("ZB04"))
+				patInfo.setPicuSubject(true);
+		}
+		if (patInfo.getEarliestDataPoint().equalsIgnoreCase("")) {
+			patInfo.setEarliestDataPoint(timeParser.format(timepoint));
+		}
+		observations.add(observationCount);
+		long start = System.nanoTime();
+		for (int o = 0; o < observationCount; o++) {
+			NormalizedSeries series = normalizer.normalize(message.getObservationId(o), message.getObservationUnits(o));
+			if (series == null) {
+				unknownObservations.increment();
+				continue;
+			}
+			String measurementValue = message.getObservationValue(o);
+			variables.addId(series.getVariableId());
+			timeSeriesSink.add(series.getMetric(), timepoint, measurementValue, tags);
+		}
+		normalizeLatency.recordSince(start);
+		subjects.put(patInfo.getHash(), patInfo);
+		if (duplicates != null) {
+			if (messageKeyCount == messageKeys.length)
+				messageKeys = Arrays.copyOf(messageKeys, messageKeyCount * 2);
+			messageKeys[messageKeyCount++] = messageKey;
+		}
+	}
+
+	/**
+	 * Hands over the keys of the messages loaded since the last call, for the caller to pass to the loader
+	 * with their subjects.
+	 *
+	 * @return the keys, empty when the duplicate filter is off
+	 */
+	public long[] takeMessageKeys() {
+		long[] keys = Arrays.copyOf(messageKeys, messageKeyCount);
+		messageKeyCount = 0;
+		return keys;
+	}
+
+	private static String trim(String field) {
+		return (field == null) ? "" : field.trim();
+	}
+
+	/**
+	 * @return the number of messages handled by the fast scanner
+	 */
+	public long getScannedCount() {
+		return parser.getScannedCount();
+	}
+
+	/**
+	 * @return the number of messages parsed by HAPI
+	 */
+	public long getHapiCount() {
+		return parser.getHapiCount();
+	}
+
+}
@@ -0,0 +1,122 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class writes the idMatch lookup workbook from the subject registry: one sheet with every subject and a second sheet, named
+ * by idMatchSheet, with the PICU subjects on the same row numbers.  Rows are written in hash order through
+ * a streaming SXSSFWorkbook, which keeps only a small window of rows in memory, so the cost of writing
+ * the lookup does not grow with the heap as the subject count grows.  The workbook is written to a
+ * temporary file first and moved over the old one, so a crash while writing never leaves a truncated
+ * lookup behind.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+import org.cvrgrid.hl7.fileparse.registry.SubjectRegistry;
+
+public class IdMatchWorkbookWriter {
+
+	private static final int ROW_WINDOW = 100;
+	private static final String[] HEADERS = {"Count", "PICU Subject?", "Hash", "First Name", "Last Name", "Birth Date/Time",
+		"Gender", "Birthplace", "First Time Point", "Location Count", "Locations", "Variable Count", "Variables"};
+
+	/**
+	 * Writes the lookup workbook.
+	 *
+	 * @param idMatch the subject registry
+	 * @param idMatchPath the path of the workbook
+	 * @param idMatchSheet the name of the sheet listing the PICU subjects
+	 */
+	public static void write(SubjectRegistry idMatch, String idMatchPath, String idMatchSheet) throws IOException {
+		SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+		try {
+			Sheet sheetOut = workbook.createSheet("idMatch");
+			Sheet sheetOut2 = workbook.createSheet(idMatchSheet);
+			writeHeader(sheetOut.createRow(0));
+			writeHeader(sheetOut2.createRow(0));
+			int rowNum = 1;
+			for (String key : idMatch.getHashes()) {
+				PatientInfo patInfo = idMatch.read(key);
+				writeSubject(sheetOut.createRow(rowNum), rowNum, key, patInfo);
+				Row row2 = sheetOut2.createRow(rowNum);
+				if (patInfo.isPicuSubject())
+					writeSubject(row2, rowNum, key, patInfo);
+				rowNum++;
+			}
+			File target = new File(idMatchPath);
+			File temporary = new File(idMatchPath + ".tmp");
+			FileOutputStream out = new FileOutputStream(temporary);
+			try {
+				workbook.write(out);
+			} finally {
+				out.close();
+			}
+			Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			workbook.dispose();
+		}
+	}
+
+	private static void writeHeader(Row row) {
+		for (int c = 0; c < HEADERS.length; c++) {
+			row.createCell(c).setCellValue(HEADERS[c]);
+		}
+	}
+
+	private static void writeSubject(Row row, int rowNum, String key, PatientInfo patInfo) {
+		Cell cell = row.createCell(0);
+		cell.setCellValue(rowNum);
+		cell = row.createCell(1);
+		cell.setCellValue(patInfo.isPicuSubject());
+		cell = row.createCell(2);
+		cell.setCellValue(key);
+		cell = row.createCell(3);
+		cell.setCellValue(patInfo.getFirstName());
+		cell = row.createCell(4);
+		cell.setCellValue(patInfo.getLastName());
+		cell = row.createCell(5);
+		cell.setCellValue(patInfo.getBirthDateTime());
+		cell = row.createCell(6);
+		cell.setCellValue(patInfo.getGender());
+		cell = row.createCell(7);
+		cell.setCellValue(patInfo.getBirthplace());
+		cell = row.createCell(8);
+		cell.setCellValue(patInfo.getEarliestDataPoint());
+		cell = row.createCell(9);
+		cell.setCellValue(patInfo.getLocations().size());
+		cell = row.createCell(10);
+		cell.setCellValue(patInfo.getLocations().toString());
+		cell = row.createCell(11);
+		cell.setCellValue(patInfo.getVariables().size());
+		cell = row.createCell(12);
+		cell.setCellValue(patInfo.getVariables().toString());
+	}
+
+}
@@ -0,0 +1,251 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class receives ORU^R01 messages over MLLP on the mllpPort and loads them the same way as messages
+ * read from files: the subject hash goes in the subjectId tag, the series names go through the normalizer
+ * and the points go to the batching writer, with the subjects merged into the registry.  HAPI parses each
+ * message once into the v2.3 structure, which is read directly, and every message is acknowledged with AA
+ * only once its points are stored and its subject is on disk, or AE if it could not be loaded.  The
+ * messages loaded at the same time share one flush of the loader: the first to finish flushes for all of
+ * those finished by then, and the rest wait for it, so a sender is never told a message was accepted that
+ * a crash or an OpenTSDB failure could still lose.  A message loaded while a flush failed, or while
+ * another message failed and the points kept back since the last flush were discarded, is answered with
+ * AE as well, as its points may have been lost with them.  At most mllpConcurrency messages are loaded at
+ * the same time.  A message that cannot start within mllpWaitSeconds is answered with AR, so the sender
+ * holds back and resends instead of the listener queueing without bound; senders wait for the ACK before
+ * sending the next message, so a slow OpenTSDB slows them down in turn.  The registry and lookup workbook
+ * are checkpointed every checkpointSeconds and once more on shutdown, and a checkpoint that fails is
+ * tried again at the next one.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cvrgrid.hl7.fileparse.model.OpenTSDBConfiguration;
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+import org.cvrgrid.hl7.fileparse.parser.HapiObservationMessage;
+
+import ca.uhn.hl7v2.AcknowledgmentCode;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.app.HL7Service;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v23.message.ORU_R01;
+import ca.uhn.hl7v2.parser.CanonicalModelClassFactory;
+import ca.uhn.hl7v2.protocol.MetadataKeys;
+import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
+import ca.uhn.hl7v2.validation.ValidationContext;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+
+public class MllpListener {
+
+	private final PicuDataLoader loader;
+	private final int port;
+	private final long waitMillis;
+	private final long checkpointMillis;
+	private final Semaphore permits;
+	private final CountDownLatch stopRequested = new CountDownLatch(1);
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong flushFailures = new AtomicLong();
+	private final Object flushLock = new Object();
+	private FlushGroup group = new FlushGroup();
+	private final ThreadLocal<HL7FileProcessor> processors = new ThreadLocal<HL7FileProcessor>() {
+		@Override
+		protected HL7FileProcessor initialValue() {
+			return loader.newFileProcessor();
+		}
+	};
+
+	/**
+	 * @param loader an opened loader
+	 */
+	public MllpListener(PicuDataLoader loader) {
+		OpenTSDBConfiguration openTSDBConfiguration = loader.getOpenTSDBConfiguration();
+		this.loader = loader;
+		this.port = openTSDBConfiguration.getMllpPort();
+		this.permits = new Semaphore(Math.max(1, openTSDBConfiguration.getMllpConcurrency()));
+		this.waitMillis = Math.max(0, openTSDBConfiguration.getMllpWaitSeconds()) * 1000L;
+		this.checkpointMillis = Math.max(1, openTSDBConfiguration.getCheckpointSeconds()) * 1000L;
+	}
+
+	/**
+	 * Receives messages until stop is called, then closes the loader.
+	 */
+	public void run() throws Exception {
+		HapiContext context = new DefaultHapiContext();
+		// Messages are read as v2.3 whatever version they claim, as the file loader reads them.
+		context.setModelClassFactory(new CanonicalModelClassFactory("2.3"));
+		context.setValidationContext((ValidationContext) ValidationContextFactory.noValidation());
+		HL7Service server = context.newServer(port, false);
+		ReceivingApplication application = new ObservationApplication();
+		server.registerApplication("ORU", "R01", application);
+		try {
+			server.startAndWait();
+			System.out.println("Listening for MLLP on port " + port);
+			while (!stopRequested.await(checkpointMillis, TimeUnit.MILLISECONDS)) {
+				try {
+					loader.checkpoint();
+				} catch (Exception e) {
+					System.out.println("Unable to checkpoint, retrying at the next checkpoint: " + e);
+					e.printStackTrace();
+				}
+				System.out.println("     Messages Received: " + received.get() + ", Rejected: " + rejected.get() + ", Failed: " + failed.get());
+			}
+		} finally {
+			server.stopAndWait();
+			// Messages already being loaded are finished before the loader closes.
+			permits.acquireUninterruptibly(Math.max(1, loader.getOpenTSDBConfiguration().getMllpConcurrency()));
+			try {
+				System.out.println("Messages Received: " + received.get() + ", Rejected: " + rejected.get() + ", Failed: " + failed.get());
+				loader.close(true);
+			} finally {
+				context.close();
+				stopped.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Asks the listener to stop and waits for the loader to be closed.
+	 */
+	public void stop() {
+		stopRequested.countDown();
+		try {
+			stopped.await(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Loads each ORU^R01 on the connection thread that received it.
+	 */
+	private class ObservationApplication implements ReceivingApplication {
+
+		public Message processMessage(Message message, Map<String,Object> metadata) throws ReceivingApplicationException, HL7Exception {
+			boolean acquired;
+			try {
+				acquired = permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				acquired = false;
+			}
+			if (!acquired || stopRequested.getCount() == 0) {
+				if (acquired)
+					permits.release();
+				rejected.incrementAndGet();
+				try {
+					return message.generateACK(AcknowledgmentCode.AR, new HL7Exception("Listener busy, resend later"));
+				} catch (IOException e) {
+					throw new HL7Exception(e);
+				}
+			}
+			try {
+				long failuresBefore = flushFailures.get();
+				HashMap<String,PatientInfo> subjects = new HashMap<String,PatientInfo>();
+				HL7FileProcessor processor = processors.get();
+				long[] messageKeys;
+				try {
+					processor.processMessage(new HapiObservationMessage((ORU_R01) message), subjects);
+				} finally {
+					messageKeys = processor.takeMessageKeys();
+				}
+				loader.mergeSubjects(subjects, messageKeys);
+				awaitStored(failuresBefore);
+				received.incrementAndGet();
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				// counted first, so a message whose points the rollback discards sees it before it is accepted
+				flushFailures.incrementAndGet();
+				// the sender resends the message after AE, so it must not be dropped as a duplicate then
+				loader.rollback();
+				System.out.println("Unable to load message from " + metadata.get(MetadataKeys.IN_SENDING_IP) + ": " + e);
+				throw new ReceivingApplicationException(e);
+			} finally {
+				permits.release();
+			}
+			try {
+				return message.generateACK();
+			} catch (IOException e) {
+				throw new HL7Exception(e);
+			}
+		}
+
+		public boolean canProcess(Message message) {
+			return message instanceof ORU_R01;
+		}
+
+	}
+
+	/*
+	 * Waits until the points and subjects of a message just loaded are stored, flushing the loader for
+	 * every message loaded so far unless a flush that covers this one has already been done.
+	 *
+	 * @param failuresBefore the number of failed flushes when the message started loading
+	 */
+	private void awaitStored(long failuresBefore) throws IOException {
+		FlushGroup mine;
+		synchronized (this) {
+			mine = group;
+		}
+		synchronized (flushLock) {
+			if (!mine.flushed) {
+				// only the current group is ever left unflushed, so the messages in it are the ones flushed now
+				synchronized (this) {
+					group = new FlushGroup();
+				}
+				try {
+					loader.flush();
+				} catch (IOException e) {
+					flushFailures.incrementAndGet();
+					mine.failure = e;
+				}
+				mine.flushed = true;
+			}
+		}
+		if (mine.failure != null)
+			throw mine.failure;
+		if (flushFailures.get() != failuresBefore)
+			throw new IOException("A flush failed while the message was loaded");
+	}
+
+	/*
+	 * The messages loaded since the last flush began, which are acknowledged together once it completes.
+	 */
+	private static class FlushGroup {
+
+		private boolean flushed = false;
+		private IOException failure = null;
+
+	}
+
+}
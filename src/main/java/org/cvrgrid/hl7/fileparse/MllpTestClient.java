@@ -0,0 +1,126 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class is a command line client for trying out the MLLP listener: it sends every message in the
+ * given HL7 files to a host and port, with the files sent at the same time over one connection, and
+ * reports how the messages were acknowledged and how fast.  HAPI hands every client of a host and port the
+ * same connection and matches each ACK to its message by control ID, so the connection is opened once and
+ * only closed after every file has been sent, rather than by the first file to finish.  A message answered with AR is sent again after
+ * a short pause, as the monitor gateway would.
+ *
+ * Usage: MllpTestClient host port file...
+ */
+
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.app.Connection;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Hl7InputStreamMessageStringIterator;
+import ca.uhn.hl7v2.util.Terser;
+import ca.uhn.hl7v2.validation.ValidationContext;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+
+public class MllpTestClient {
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 3) {
+			System.out.println("Usage: MllpTestClient host port file...");
+			return;
+		}
+		final String host = args[0];
+		final int port = Integer.parseInt(args[1]);
+		final HapiContext context = new DefaultHapiContext();
+		context.setValidationContext((ValidationContext) ValidationContextFactory.noValidation());
+		final Connection connection = context.newClient(host, port, false);
+		ExecutorService senders = Executors.newFixedThreadPool(args.length - 2);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		long start = System.currentTimeMillis();
+		for (int i = 2; i < args.length; i++) {
+			final String filePath = args[i];
+			results.add(senders.submit(new Callable<long[]>() {
+				public long[] call() throws Exception {
+					return sendFile(context, connection, filePath);
+				}
+			}));
+		}
+		long[] totals = new long[4];
+		for (Future<long[]> result : results) {
+			long[] counts = result.get();
+			for (int c = 0; c < totals.length; c++) {
+				totals[c] += counts[c];
+			}
+		}
+		senders.shutdown();
+		connection.close();
+		context.close();
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Messages Sent: " + totals[0] + " (" + (totals[0] * 1000L / elapsed) + " messages/sec)");
+		System.out.println("Accepted: " + totals[1] + ", Errors: " + totals[2] + ", Resent: " + totals[3]);
+	}
+
+	/*
+	 * Returns the counts of messages sent, accepted, answered with an error and resent.
+	 */
+	private static long[] sendFile(HapiContext context, Connection connection, String filePath) throws Exception {
+		long[] counts = new long[4];
+		Parser parser = context.getPipeParser();
+		Reader reader = new InputStreamReader(new FileInputStream(filePath));
+		try {
+			Hl7InputStreamMessageStringIterator iter = new Hl7InputStreamMessageStringIterator(reader);
+			while (iter.hasNext()) {
+				Message message = parser.parse(iter.next());
+				counts[0]++;
+				while (true) {
+					Message ack = connection.getInitiator().sendAndReceive(message);
+					String code = new Terser(ack).get("/MSA-1");
+					if ("AR".equals(code) || "CR".equals(code)) {
+						counts[3]++;
+						Thread.sleep(500);
+						continue;
+					}
+					if ("AA".equals(code) || "CA".equals(code))
+						counts[1]++;
+					else
+						counts[2]++;
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println("     File: " + filePath + ", Messages: " + counts[0]);
+		return counts;
+	}
+
+}
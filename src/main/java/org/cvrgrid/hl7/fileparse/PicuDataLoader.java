@@ -39,53 +39,84 @@ package org.cvrgrid.hl7.fileparse;
  * datasets.  Upon completion of processing, the tool generates new lookup and log files, to sit for the 
  * next processing check cycle.
  * 
+ * Run with "watch", the tool stays up and loads files as they appear under the root directory.  Run with
+ * "listen", it stays up and receives messages from the monitor gateway over MLLP instead of from files.
+ * Run with "tail", it stays up and loads messages as they are appended to files still being written.
+ * 
+ * Where the time series go is set by the sinks property: http for the OpenTSDB put API, telnet for the
+ * OpenTSDB put command over a kept open connection and export for compressed local files, or several of
+ * them separated by commas to send every point to each.  On the way, points are collected by series in
+ * columns of primitive values, up to seriesBufferPoints of them, and handed to the sinks a series at a time.
+ * 
  * The tool requires the Apache POI libraries to work with Excel files, the Apache Camel and HL7 API 
  * libraries to work with HL7 and the CVRG OpenTSDB client to work with OpenTSDB.  All these dependencies 
  * are stored in the pom.xml.
  */
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
+import java.net.URL;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import java.util.TreeSet;
 
-import org.apache.commons.lang.StringUtils;
-import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.cvrgrid.hl7.fileparse.StagedFileLoader.FileJob;
+import org.cvrgrid.hl7.fileparse.StagedFileLoader.FileProgress;
+import org.cvrgrid.hl7.fileparse.StagedFileLoader.FileResult;
+import org.cvrgrid.hl7.fileparse.metrics.Gauge;
+import org.cvrgrid.hl7.fileparse.metrics.Histogram;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsReporter;
 import org.cvrgrid.hl7.fileparse.model.HL7Measurements;
-
-import edu.jhu.cvrg.timeseriesstore.model.IncomingDataPoint;
-import edu.jhu.cvrg.timeseriesstore.opentsdb.TimeSeriesStorer;
-
 import org.cvrgrid.hl7.fileparse.model.OpenTSDBConfiguration;
 import org.cvrgrid.hl7.fileparse.model.PatientInfo;
-
-import ca.uhn.hl7v2.model.Message;
-import ca.uhn.hl7v2.model.v23.group.ORU_R01_OBSERVATION;
-import ca.uhn.hl7v2.model.v23.message.ORU_R01;
-import ca.uhn.hl7v2.util.Hl7InputStreamMessageIterator;
-import ca.uhn.hl7v2.util.Terser;
+import org.cvrgrid.hl7.fileparse.normalize.SeriesNameNormalizer;
+import org.cvrgrid.hl7.fileparse.parser.LocationFilter;
+import org.cvrgrid.hl7.fileparse.parser.ObservationTimeParser;
+import org.cvrgrid.hl7.fileparse.pipeline.PipelineReporter;
+import org.cvrgrid.hl7.fileparse.registry.DuplicateFilter;
+import org.cvrgrid.hl7.fileparse.registry.FileCheckpoints;
+import org.cvrgrid.hl7.fileparse.registry.ProcessedFileManifest;
+import org.cvrgrid.hl7.fileparse.registry.SubjectRegistry;
+import org.cvrgrid.hl7.fileparse.store.BatchingTimeSeriesWriter;
+import org.cvrgrid.hl7.fileparse.store.CompositeTimeSeriesSink;
+import org.cvrgrid.hl7.fileparse.store.DurableSpool;
+import org.cvrgrid.hl7.fileparse.store.ExportTimeSeriesSink;
+import org.cvrgrid.hl7.fileparse.store.SeriesBuffer;
+import org.cvrgrid.hl7.fileparse.store.TelnetTimeSeriesSink;
+import org.cvrgrid.hl7.fileparse.store.TimeSeriesSink;
 
 public class PicuDataLoader { 
 
 	private String configFilename = "/resources/server.properties";
 	private OpenTSDBConfiguration openTSDBConfiguration = new OpenTSDBConfiguration();
+	private SeriesNameNormalizer normalizer;
+	private SubjectRegistry idMatch;
+	private ProcessedFileManifest manifest;
+	private FileCheckpoints fileCheckpoints;
+	private DuplicateFilter duplicates;
+	private ObservationTimeParser timeParser;
+	private LocationFilter locationFilter;
+	private TimeSeriesSink timeSeriesSink;
+	private BatchingTimeSeriesWriter timeSeriesWriter;
+	private StagedFileLoader fileLoader;
+	private PipelineReporter pipelineReporter;
+	private final MetricsRegistry metrics = new MetricsRegistry();
+	private MetricsReporter metricsReporter;
+	private Histogram flushLatency;
+	private Histogram workbookLatency;
+	private long scannedCount = 0;
+	private long hapiCount = 0;
+	private int mergedFiles = 0;
+	private volatile boolean subjectsChanged = false;
 
 	/**
 	 * Constructor for this code intended to set all the variables based upon the properties file.
@@ -108,6 +139,57 @@ public class PicuDataLoader {
 			openTSDBConfiguration.setRootDir(serverProperties.getProperty("rootDir"));
 			openTSDBConfiguration.setFolderPath(serverProperties.getProperty("folderPath"));
 			openTSDBConfiguration.setStudyString(serverProperties.getProperty("studyString"));
+			openTSDBConfiguration.setPutBatchSize(Integer.parseInt(serverProperties.getProperty("putBatchSize", "50").trim()));
+			openTSDBConfiguration.setPutBatchBytes(Integer.parseInt(serverProperties.getProperty("putBatchBytes", "524288").trim()));
+			openTSDBConfiguration.setPutFlushMillis(Long.parseLong(serverProperties.getProperty("putFlushMillis", "1000").trim()));
+			openTSDBConfiguration.setPutGzip(Boolean.parseBoolean(serverProperties.getProperty("putGzip", "false").trim()));
+			openTSDBConfiguration.setSinks(serverProperties.getProperty("sinks", "http").trim());
+			openTSDBConfiguration.setSeriesBufferPoints(Integer.parseInt(serverProperties.getProperty("seriesBufferPoints", "10000").trim()));
+			openTSDBConfiguration.setTelnetHost(serverProperties.getProperty("telnetHost", "").trim());
+			openTSDBConfiguration.setTelnetPort(Integer.parseInt(serverProperties.getProperty("telnetPort", "4242").trim()));
+			String exportDir = serverProperties.getProperty("exportDir", "").trim();
+			openTSDBConfiguration.setExportDir(exportDir.isEmpty() ? new File(openTSDBConfiguration.getFolderPath(), "export").getPath() : exportDir);
+			openTSDBConfiguration.setExportFormat(serverProperties.getProperty("exportFormat", "csv").trim());
+			openTSDBConfiguration.setExportGzip(Boolean.parseBoolean(serverProperties.getProperty("exportGzip", "true").trim()));
+			openTSDBConfiguration.setParserMode(serverProperties.getProperty("parserMode", "fast").trim());
+			String subjectRegistry = serverProperties.getProperty("subjectRegistry", "").trim();
+			openTSDBConfiguration.setSubjectRegistry(subjectRegistry.isEmpty() ? new File(openTSDBConfiguration.getFolderPath(), "subjectRegistry").getPath() : subjectRegistry);
+			openTSDBConfiguration.setIdMatchExport(Boolean.parseBoolean(serverProperties.getProperty("idMatchExport", "true").trim()));
+			openTSDBConfiguration.setIdMatchCheckpointFiles(Integer.parseInt(serverProperties.getProperty("idMatchCheckpointFiles", "0").trim()));
+			openTSDBConfiguration.setWorkerThreads(Integer.parseInt(serverProperties.getProperty("workerThreads", "4").trim()));
+			openTSDBConfiguration.setReaderThreads(Integer.parseInt(serverProperties.getProperty("readerThreads", "2").trim()));
+			openTSDBConfiguration.setShipThreads(Integer.parseInt(serverProperties.getProperty("shipThreads", "2").trim()));
+			openTSDBConfiguration.setChunkMessages(Integer.parseInt(serverProperties.getProperty("chunkMessages", "100").trim()));
+			openTSDBConfiguration.setParseQueueChunks(Integer.parseInt(serverProperties.getProperty("parseQueueChunks", "16").trim()));
+			openTSDBConfiguration.setShipQueueBatches(Integer.parseInt(serverProperties.getProperty("shipQueueBatches", "8").trim()));
+			openTSDBConfiguration.setDuplicateFilter(Boolean.parseBoolean(serverProperties.getProperty("duplicateFilter", "true").trim()));
+			openTSDBConfiguration.setDuplicateRetentionDays(Integer.parseInt(serverProperties.getProperty("duplicateRetentionDays", "7").trim()));
+			openTSDBConfiguration.setFileCheckpointMessages(Integer.parseInt(serverProperties.getProperty("fileCheckpointMessages", "50000").trim()));
+			openTSDBConfiguration.setSpoolDir(serverProperties.getProperty("spoolDir", "").trim());
+			openTSDBConfiguration.setSpoolSegmentMB(Integer.parseInt(serverProperties.getProperty("spoolSegmentMB", "64").trim()));
+			openTSDBConfiguration.setSpoolMaxMB(Integer.parseInt(serverProperties.getProperty("spoolMaxMB", "1024").trim()));
+			openTSDBConfiguration.setSpoolSync(Boolean.parseBoolean(serverProperties.getProperty("spoolSync", "true").trim()));
+			openTSDBConfiguration.setSpoolRetryMillis(Long.parseLong(serverProperties.getProperty("spoolRetryMillis", "500").trim()));
+			openTSDBConfiguration.setSpoolMaxRetryMillis(Long.parseLong(serverProperties.getProperty("spoolMaxRetryMillis", "60000").trim()));
+			openTSDBConfiguration.setSpoolDrainSeconds(Integer.parseInt(serverProperties.getProperty("spoolDrainSeconds", "60").trim()));
+			openTSDBConfiguration.setPipelineReportSeconds(Integer.parseInt(serverProperties.getProperty("pipelineReportSeconds", "30").trim()));
+			openTSDBConfiguration.setMetricsReportSeconds(Integer.parseInt(serverProperties.getProperty("metricsReportSeconds", "60").trim()));
+			openTSDBConfiguration.setMetricsCsv(serverProperties.getProperty("metricsCsv", "").trim());
+			openTSDBConfiguration.setMetricsJmx(Boolean.parseBoolean(serverProperties.getProperty("metricsJmx", "true").trim()));
+			openTSDBConfiguration.setSeriesCacheSize(Integer.parseInt(serverProperties.getProperty("seriesCacheSize", "10000").trim()));
+			openTSDBConfiguration.setSubjectCacheSize(Integer.parseInt(serverProperties.getProperty("subjectCacheSize", "10000").trim()));
+			openTSDBConfiguration.setTimeZone(serverProperties.getProperty("timeZone", "").trim());
+			openTSDBConfiguration.setLocationPrefixes(serverProperties.getProperty("locationPrefixes", "").trim());
+			openTSDBConfiguration.setLocationPattern(serverProperties.getProperty("locationPattern", "").trim());
+			openTSDBConfiguration.setWatchPollSeconds(Integer.parseInt(serverProperties.getProperty("watchPollSeconds", "60").trim()));
+			openTSDBConfiguration.setWatchSettleSeconds(Integer.parseInt(serverProperties.getProperty("watchSettleSeconds", "10").trim()));
+			openTSDBConfiguration.setCheckpointSeconds(Integer.parseInt(serverProperties.getProperty("checkpointSeconds", "300").trim()));
+			openTSDBConfiguration.setMllpPort(Integer.parseInt(serverProperties.getProperty("mllpPort", "6661").trim()));
+			openTSDBConfiguration.setMllpConcurrency(Integer.parseInt(serverProperties.getProperty("mllpConcurrency", "8").trim()));
+			openTSDBConfiguration.setMllpWaitSeconds(Integer.parseInt(serverProperties.getProperty("mllpWaitSeconds", "30").trim()));
+			openTSDBConfiguration.setTailPollMillis(Long.parseLong(serverProperties.getProperty("tailPollMillis", "1000").trim()));
+			openTSDBConfiguration.setTailSettleMillis(Long.parseLong(serverProperties.getProperty("tailSettleMillis", "2000").trim()));
+			openTSDBConfiguration.setTailCloseMinutes(Integer.parseInt(serverProperties.getProperty("tailCloseMinutes", "120").trim()));
 			this.setOpenTSDBConfiguration(openTSDBConfiguration);
 
 		} catch (IOException e) {
@@ -121,10 +203,55 @@ public class PicuDataLoader {
 	public static void main(String[] args) throws Exception {
 
 		PicuDataLoader picuDataLoader = new PicuDataLoader();
-		SimpleDateFormat fromUser = new SimpleDateFormat("yyyyMMddHHmmss");
-		SimpleDateFormat myFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		OpenTSDBConfiguration openTSDBConfiguration = picuDataLoader.getOpenTSDBConfiguration();
-		String urlString = openTSDBConfiguration.getOpenTSDBUrl();
+		String mode = (args.length > 0) ? args[0] : "";
+		if (mode.equalsIgnoreCase("exportIdMatch")) {
+			picuDataLoader.exportIdMatch();
+			return;
+		}
+		picuDataLoader.open();
+		if (mode.equalsIgnoreCase("listen")) {
+			final MllpListener listener = new MllpListener(picuDataLoader);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					listener.stop();
+				}
+			});
+			listener.run();
+			return;
+		}
+		if (mode.equalsIgnoreCase("tail")) {
+			final FileTailer tailer = new FileTailer(picuDataLoader);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					tailer.stop();
+				}
+			});
+			tailer.run();
+			return;
+		}
+		if (mode.equalsIgnoreCase("watch")) {
+			final DirectoryWatcher watcher = new DirectoryWatcher(picuDataLoader);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					watcher.stop();
+				}
+			});
+			watcher.run();
+			return;
+		}
+		List<String> messageFiles = picuDataLoader.getManifest().findNewFiles(picuDataLoader.getOpenTSDBConfiguration().getRootDir());
+		picuDataLoader.ingest(messageFiles);
+		if (messageFiles.size() == 0)
+			System.out.println("Nothing new to process...");
+		picuDataLoader.close(messageFiles.size() > 0);
+	}
+
+	/**
+	 * Loads the translation table and opens the subject registry, the processed file manifest and the 
+	 * OpenTSDB writer, which is the state every mode of the tool works from.
+	 */
+	public void open() throws Exception {
+		OpenTSDBConfiguration openTSDBConfiguration = this.getOpenTSDBConfiguration();
 		HL7Measurements hl7Measurements = new HL7Measurements();
 		HashMap<String,String> measurementNames = hl7Measurements.getMeasurementNames();
 		XSSFWorkbook wb = readFile(openTSDBConfiguration.getAwareSupportedParams());
@@ -139,339 +266,362 @@ public class PicuDataLoader {
 			value = value.replaceAll(":", "/");
 			measurementNames.put(key, value);
 		}
-		HashMap<String,PatientInfo> idMatch = new HashMap<String,PatientInfo>();
-		File f = new File(openTSDBConfiguration.getIdMatch());
-		if (f.exists()) {
-			wb = readFile(openTSDBConfiguration.getIdMatch());
-			sheet = wb.getSheetAt(0);
-			for (int r = 1; r < sheet.getLastRowNum()+1; r++) {
-				XSSFRow row = sheet.getRow(r);
-				PatientInfo patInfo = new PatientInfo();
-				patInfo.setPicuSubject(row.getCell(1).getBooleanCellValue());
-				patInfo.setFirstName(row.getCell(3).getStringCellValue());
-				patInfo.setLastName(row.getCell(4).getStringCellValue());
-				patInfo.setBirthDateTime(row.getCell(5).getStringCellValue());
-				patInfo.setGender(row.getCell(6).getStringCellValue());
-				patInfo.setBirthplace(row.getCell(7).getStringCellValue());
-				patInfo.setEarliestDataPoint(row.getCell(8).getStringCellValue());
-				LinkedList<String> locations = new LinkedList<String>();
-				String lSet = row.getCell(10).getStringCellValue();
-				lSet = lSet.replaceAll("\\[", "");
-				lSet = lSet.replaceAll("\\]", "");				
-				String[] locationSet = lSet.split(",");
-				for (String location : locationSet) {
-					locations.add(location.trim());
-				}
-				patInfo.setLocations(locations);
-				LinkedList<String> variables = new LinkedList<String>();
-				String vSet = row.getCell(12).getStringCellValue();
-				vSet = vSet.replaceAll("\\[", "");
-				vSet = vSet.replaceAll("\\]", "");				
-				String[] variableSet = vSet.split(",");
-				for (String variable : variableSet) {
-					variables.add(variable.trim());
+		normalizer = new SeriesNameNormalizer(measurementNames, openTSDBConfiguration.getSeriesCacheSize());
+		timeParser = ObservationTimeParser.forZone(openTSDBConfiguration.getTimeZone());
+		locationFilter = new LocationFilter(openTSDBConfiguration.getLocationPrefixes(), openTSDBConfiguration.getLocationPattern());
+		openRegistry();
+		System.out.println("Existing Subject Count: " + idMatch.size());
+		manifest = new ProcessedFileManifest(openTSDBConfiguration.getProcessedFile());
+		fileCheckpoints = new FileCheckpoints(openTSDBConfiguration.getProcessedFile() + ".offsets", manifest);
+		timeSeriesSink = openSinks();
+		if (openTSDBConfiguration.getSeriesBufferPoints() > 0)
+			timeSeriesSink = new SeriesBuffer(timeSeriesSink, openTSDBConfiguration.getSeriesBufferPoints(), openTSDBConfiguration.getPutFlushMillis());
+		if (openTSDBConfiguration.isDuplicateFilter())
+			duplicates = new DuplicateFilter(openTSDBConfiguration.getProcessedFile() + ".seen", openTSDBConfiguration.getDuplicateRetentionDays());
+		fileLoader = new StagedFileLoader(this, openTSDBConfiguration.getReaderThreads(), openTSDBConfiguration.getWorkerThreads(), 
+				openTSDBConfiguration.getParseQueueChunks(), openTSDBConfiguration.getChunkMessages());
+		pipelineReporter = new PipelineReporter();
+		pipelineReporter.add(fileLoader.getReadStage());
+		pipelineReporter.add(fileLoader.getParseStage());
+		if (timeSeriesWriter != null)
+			pipelineReporter.add(timeSeriesWriter.getShipStage());
+		pipelineReporter.start(openTSDBConfiguration.getPipelineReportSeconds());
+		openMetrics();
+	}
+
+	/*
+	 * Opens the sinks named in the sinks property: http for the batched put API, with the spool if there is
+	 * one, telnet for the put command over a kept open connection and export for files in exportDir.  When
+	 * several are named, every point goes to each of them, and the export comes last so it only keeps the
+	 * points of a flush once OpenTSDB has stored them.
+	 */
+	private TimeSeriesSink openSinks() throws IOException {
+		List<TimeSeriesSink> sinks = new ArrayList<TimeSeriesSink>();
+		List<TimeSeriesSink> exports = new ArrayList<TimeSeriesSink>();
+		for (String name : openTSDBConfiguration.getSinks().split(",")) {
+			name = name.trim().toLowerCase();
+			if (name.isEmpty())
+				continue;
+			if (name.equals("http")) {
+				timeSeriesWriter = new BatchingTimeSeriesWriter(openTSDBConfiguration.getOpenTSDBUrl(), openTSDBConfiguration.getApiPut(), 
+						openTSDBConfiguration.getPutBatchSize(), openTSDBConfiguration.getPutBatchBytes(), 
+						openTSDBConfiguration.getPutFlushMillis(), openTSDBConfiguration.isPutGzip(), 
+						openTSDBConfiguration.getShipThreads(), openTSDBConfiguration.getShipQueueBatches());
+				if (openTSDBConfiguration.getSpoolDir().trim().length() > 0) {
+					DurableSpool spool = new DurableSpool(openTSDBConfiguration.getSpoolDir(), openTSDBConfiguration.getSpoolSegmentMB() * 1024L * 1024L, 
+							openTSDBConfiguration.getSpoolMaxMB() * 1024L * 1024L, openTSDBConfiguration.isSpoolSync());
+					timeSeriesWriter.useSpool(spool, openTSDBConfiguration.getSpoolRetryMillis(), openTSDBConfiguration.getSpoolMaxRetryMillis(), 
+							openTSDBConfiguration.getSpoolDrainSeconds() * 1000L);
 				}
-				patInfo.setVariables(variables);
-				idMatch.put(patInfo.getHash(),patInfo);
+				sinks.add(timeSeriesWriter);
+			} else if (name.equals("telnet")) {
+				String host = openTSDBConfiguration.getTelnetHost();
+				if (host.isEmpty())
+					host = new URL(openTSDBConfiguration.getOpenTSDBUrl()).getHost();
+				sinks.add(new TelnetTimeSeriesSink(host, openTSDBConfiguration.getTelnetPort(), openTSDBConfiguration.getPutFlushMillis()));
+			} else if (name.equals("export")) {
+				ExportTimeSeriesSink export = new ExportTimeSeriesSink(openTSDBConfiguration.getExportDir(), openTSDBConfiguration.getExportFormat(), 
+						openTSDBConfiguration.isExportGzip());
+				System.out.println("Exporting points to " + export.getFile());
+				exports.add(export);
+			} else {
+				throw new IllegalArgumentException("Unknown sink: " + name);
 			}
 		}
-		System.out.println("Existing Subject Count: " + idMatch.size());
-		String processedFile = openTSDBConfiguration.getProcessedFile();
-		String rootDir = openTSDBConfiguration.getRootDir();
-		ArrayList<String> processedFiles = new ArrayList<String>();
-		File processedFileContents = new File (processedFile);
-		getProcessedFiles(processedFileContents, processedFiles);
-		ArrayList<String> messageFiles = new ArrayList<String>();
-		File rootDirContents = new File (rootDir);
-		getDirectoryContents(rootDirContents, processedFiles, messageFiles);
-		XSSFWorkbook workbook;
-		XSSFSheet sheetOut, sheetOut2;
-		if (processedFiles.size() > 1) {
-			workbook = readFile(openTSDBConfiguration.getIdMatch());
-			sheetOut = workbook.getSheetAt(0);
-			sheetOut2 = workbook.getSheetAt(1);
-		} else {
-			workbook = new XSSFWorkbook();
-			sheetOut = workbook.createSheet("idMatch");
-			sheetOut2 = workbook.createSheet(openTSDBConfiguration.getIdMatchSheet());
-		}
-		for (String filePath : messageFiles) {
-			System.out.println("     File: " + filePath);
-			FileReader reader = new FileReader(filePath);
-
-			Hl7InputStreamMessageIterator iter = new Hl7InputStreamMessageIterator(reader);
-
-			while (iter.hasNext()) {
-				HashMap<String,String> tags = new HashMap<String,String>();
-				Message next = iter.next();
-				ORU_R01 oru = new ORU_R01();
-				oru.parse(next.encode());
-				PatientInfo patInfo = new PatientInfo();
-				if (Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 5, 0, 2, 1) != null)
-					patInfo.setFirstName(Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 5, 0, 2, 1).trim());
-				if (Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 5, 0, 1, 1) != null)
-					patInfo.setLastName(Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 5, 0, 1, 1).trim());
-				if (Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 7, 0, 1, 1) != null)
-					patInfo.setBirthDateTime(Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 7, 0, 1, 1).trim());
-				if (Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 8, 0, 1, 1) != null)
-					patInfo.setGender(Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 8, 0, 1, 1).trim());
-				if (Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 23, 0, 1, 1) != null)
-					patInfo.setBirthplace(Terser.get(oru.getRESPONSE().getPATIENT().getPID(), 23, 0, 1, 1).trim());
-				LinkedList<String> locations = new LinkedList<String>();
-				LinkedList<String> variables = new LinkedList<String>();
-				if (idMatch.get(patInfo.getHash()) != null) {
-					patInfo = idMatch.get(patInfo.getHash());
-					locations = patInfo.getLocations();
-					variables = patInfo.getVariables();
+		sinks.addAll(exports);
+		if (sinks.isEmpty())
+			throw new IllegalArgumentException("No sinks given in the sinks property");
+		return (sinks.size() == 1) ? sinks.get(0) : new CompositeTimeSeriesSink(sinks);
+	}
+
+	/*
+	 * Adds the metrics the loader keeps itself to those of the processors and the sinks, publishes them
+	 * through JMX and starts reporting them.
+	 */
+	private void openMetrics() {
+		timeSeriesSink.useMetrics(metrics);
+		metrics.gauge("readQueue", new Gauge() {
+			public long getValue() {
+				return fileLoader.getReadStage().getQueueDepth();
+			}
+		});
+		metrics.gauge("parseQueue", new Gauge() {
+			public long getValue() {
+				return fileLoader.getParseStage().getQueueDepth();
+			}
+		});
+		if (duplicates != null) {
+			metrics.gauge("duplicates", new Gauge() {
+				public long getValue() {
+					return duplicates.getDuplicates();
 				}
-				if (!locations.contains(Terser.get(oru.getRESPONSE().getPATIENT().getVISIT().getPV1(), 3, 0, 1, 1))) {
-					locations.add(Terser.get(oru.getRESPONSE().getPATIENT().getVISIT().getPV1(), 3, 0, 1, 1));
-					if (locations.peekLast().startsWith("ZB04"))
-						patInfo.setPicuSubject(true);
+			});
+		}
+		if (locationFilter.isActive()) {
+			metrics.gauge("filteredByLocation", new Gauge() {
+				public long getValue() {
+					return locationFilter.getFilteredCount();
 				}
-				tags.put("subjectId", patInfo.getHash());
-				String time = Terser.get(oru.getRESPONSE().getORDER_OBSERVATION().getOBR(), 7, 0, 1, 1);
-				Date timepoint = fromUser.parse(time);
-				String reformattedTime = myFormat.format(timepoint);
-				if (patInfo.getEarliestDataPoint().equalsIgnoreCase("")) {
-					patInfo.setEarliestDataPoint(reformattedTime);
+			});
+		}
+		flushLatency = metrics.latency("flush");
+		workbookLatency = metrics.latency("workbookWrite");
+		if (openTSDBConfiguration.isMetricsJmx()) {
+			try {
+				metrics.registerMBean("org.cvrgrid.hl7.fileparse:type=Metrics");
+			} catch (Exception e) {
+				System.out.println("Metrics not published through JMX: " + e.getMessage());
+			}
+		}
+		metricsReporter = new MetricsReporter(metrics, openTSDBConfiguration.getMetricsCsv());
+		metricsReporter.start(openTSDBConfiguration.getMetricsReportSeconds());
+	}
+
+	private void openRegistry() throws IOException {
+		idMatch = new SubjectRegistry(openTSDBConfiguration.getSubjectRegistry());
+		File f = new File(openTSDBConfiguration.getIdMatch());
+		if (idMatch.size() == 0 && f.exists()) {
+			importIdMatchWorkbook(openTSDBConfiguration.getIdMatch(), idMatch);
+			idMatch.checkpoint();
+			System.out.println("Imported " + idMatch.size() + " subjects from " + openTSDBConfiguration.getIdMatch());
+		}
+	}
+
+	/**
+	 * Writes the idMatch workbook from the subject registry and nothing else.
+	 */
+	public void exportIdMatch() throws IOException {
+		openRegistry();
+		IdMatchWorkbookWriter.write(idMatch, openTSDBConfiguration.getIdMatch(), openTSDBConfiguration.getIdMatchSheet());
+		idMatch.close();
+		System.out.println("Excel written successfully...");
+	}
+
+	/**
+	 * Loads the given HL7 files through the pipeline and merges their subjects into the registry.
+	 *
+	 * @param messageFiles the canonical paths of the files, in the order their results are merged
+	 */
+	public synchronized void ingest(List<String> messageFiles) throws Exception {
+		LinkedList<FileJob> jobs = new LinkedList<FileJob>();
+		// Only a few files are queued ahead of the one being merged, so each file is recorded soon after 
+		// it is loaded rather than after all of them are read.
+		int window = Math.max(1, openTSDBConfiguration.getReaderThreads()) * 3;
+		int submitted = 0;
+		int checkpointFiles = openTSDBConfiguration.getIdMatchCheckpointFiles();
+		// Results are merged in the order the files were given, whatever order they finished in, so the 
+		// lookup comes out the same for any number of threads.
+		for (int i = 0; i < messageFiles.size(); i++) {
+			while (submitted < messageFiles.size() && submitted - i < window) {
+				String filePath = messageFiles.get(submitted++);
+				jobs.add(fileLoader.submit(filePath, fileCheckpoints.get(filePath)));
+			}
+			FileJob job = jobs.removeFirst();
+			FileProgress progress;
+			try {
+				// Every fileCheckpointMessages messages the part of the file loaded so far is made durable
+				// and its offset recorded, so a crash part way through a large file resumes from there.
+				while (!(progress = job.nextProgress(openTSDBConfiguration.getFileCheckpointMessages())).isComplete()) {
+					mergeSubjects(progress.getSubjects(), progress.getMessageKeys());
+					flush();
+					fileCheckpoints.record(job.getFilePath(), progress.getOffset(), progress.getMessageCount(), progress.getChecksum());
 				}
-				List<ORU_R01_OBSERVATION> observations = oru.getRESPONSE().getORDER_OBSERVATION().getOBSERVATIONAll();
-				for (ORU_R01_OBSERVATION observation : observations) {
-					String seriesName = Terser.get(observation.getOBX(), 3, 0, 1, 1);
-					if (measurementNames.get(seriesName) != null) {
-						seriesName = measurementNames.get(seriesName);
-					} else {
-						seriesName = seriesName.replaceFirst("\\d", "#");
-						seriesName = measurementNames.get(seriesName);
-					}
-					
-			        StringBuffer buff = new StringBuffer();
-
-			        String[] tokens = seriesName.split(" ");
-			        for (String i : tokens) {
-						i = i.replaceAll("\\(", "");
-						i = i.replaceAll("\\)", "");						
-			            buff.append(StringUtils.capitalize(i));
-			        }
-
-					String measurementValue = Terser.get(observation.getOBX(), 5, 0, 1, 1);
-					String units = Terser.get(observation.getOBX(), 6, 0, 1, 1);
-					if (units != null) {
-						units = units.replaceAll(":", "");
-						units = units.replaceAll("cm_h2o", "cmH2O");
-						units = units.replaceAll("\\(min/m2\\)", "MinPerMeterSquared");
-						units = units.replaceAll("l", "liters");
-						units = units.replaceAll("mliters", "milliliters");
-						units = units.replaceAll("g.m", "gramMeters");
-						units = units.replaceAll("dyn.sec.cm-5", "dyneSecondsPerQuinticCentimeter");
-						units = units.replaceAll("dyneSecondsPerQuinticCentimeter.m2", "dyneSecondsPerQuinticCentimeterPerMeterSquared");
-						units = units.replaceAll("m2", "MeterSquared");
-						units = units.replaceAll("min", "Min");
-						units = units.replaceAll("/", "Per");
-						units = units.replaceAll("%", "percent");
-						units = units.replaceAll("#", "Count");
-						units = units.replaceAll("celiters", "Celsius");
-						units = units.replaceAll("mm\\(hg\\)", "mmHg");
-					} else {
-						units = "percent";
-					}
-					seriesName = "vitals." + StringUtils.uncapitalize(units);
-					seriesName += "." + StringUtils.uncapitalize(buff.toString());
-					seriesName = seriesName.trim();
-					if (!variables.contains(StringUtils.uncapitalize(buff.toString())))
-						variables.add(StringUtils.uncapitalize(buff.toString()));
-					IncomingDataPoint dataPoint = new IncomingDataPoint(seriesName, timepoint.getTime(), measurementValue, tags);
-					TimeSeriesStorer.storeTimePoint(urlString, dataPoint);
+			} catch (Exception e) {
+				for (FileJob remaining : jobs) {
+					remaining.cancel();
 				}
-				patInfo.setLocations(locations);
-				patInfo.setVariables(variables);
-				idMatch.put(patInfo.getHash(), patInfo);
+				// the file is retried later, and its messages must not be taken for duplicates of themselves then
+				rollback();
+				throw e;
 			}
+			FileResult result = job.getResult();
+			System.out.println("     File: " + result.getFilePath());
+			long fileMillis = Math.max(1, result.getElapsedMillis());
+			System.out.println("     Messages: " + result.getMessageCount() + " (" + (result.getMessageCount() * 1000L / fileMillis) + " messages/sec)");
+			scannedCount += result.getScannedCount();
+			hapiCount += result.getHapiCount();
+			mergeSubjects(progress.getSubjects(), progress.getMessageKeys());
+			// The file only counts as processed once its points and subjects are stored.
+			flush();
+			manifest.record(result.getFilePath(), result.getSize(), result.getLastModified(), result.getChecksum());
+			fileCheckpoints.remove(result.getFilePath());
 			System.out.println("     Subject Count: " + idMatch.size());
-			int rowNum = 0;
-			Set<String> keys = idMatch.keySet();
-			TreeSet<String> sortedKeys = new TreeSet<String>(keys);
-			for (String key : sortedKeys) {
-				XSSFRow row = sheetOut.createRow(rowNum);
-				XSSFRow row2 = sheetOut2.createRow(rowNum);
-				XSSFCell cell, cell2;
-				if (rowNum == 0) {
-					cell = row.createCell(0);
-					cell.setCellValue("Count");
-					cell = row.createCell(1);
-					cell.setCellValue("PICU Subject?");
-					cell = row.createCell(2);
-					cell.setCellValue("Hash");
-					cell = row.createCell(3);
-					cell.setCellValue("First Name");
-					cell = row.createCell(4);
-					cell.setCellValue("Last Name");
-					cell = row.createCell(5);
-					cell.setCellValue("Birth Date/Time");
-					cell = row.createCell(6);
-					cell.setCellValue("Gender");
-					cell = row.createCell(7);
-					cell.setCellValue("Birthplace");
-					cell = row.createCell(8);
-					cell.setCellValue("First Time Point");
-					cell = row.createCell(9);
-					cell.setCellValue("Location Count");
-					cell = row.createCell(10);
-					cell.setCellValue("Locations");
-					cell = row.createCell(11);
-					cell.setCellValue("Variable Count");
-					cell = row.createCell(12);
-					cell.setCellValue("Variables");
-					cell2 = row2.createCell(0);
-					cell2.setCellValue("Count");
-					cell2 = row2.createCell(1);
-					cell2.setCellValue("PICU Subject?");
-					cell2 = row2.createCell(2);
-					cell2.setCellValue("Hash");
-					cell2 = row2.createCell(3);
-					cell2.setCellValue("First Name");
-					cell2 = row2.createCell(4);
-					cell2.setCellValue("Last Name");
-					cell2 = row2.createCell(5);
-					cell2.setCellValue("Birth Date/Time");
-					cell2 = row2.createCell(6);
-					cell2.setCellValue("Gender");
-					cell2 = row2.createCell(7);
-					cell2.setCellValue("Birthplace");
-					cell2 = row2.createCell(8);
-					cell2.setCellValue("First Time Point");
-					cell2 = row2.createCell(9);
-					cell2.setCellValue("Location Count");
-					cell2 = row2.createCell(10);
-					cell2.setCellValue("Locations");
-					cell2 = row2.createCell(11);
-					cell2.setCellValue("Variable Count");
-					cell2 = row2.createCell(12);
-					cell2.setCellValue("Variables");
-				} else {
-					cell = row.createCell(0);
-					cell.setCellValue(rowNum);
-					cell = row.createCell(1);
-					cell.setCellValue(idMatch.get(key).isPicuSubject());
-					cell = row.createCell(2);
-					cell.setCellValue(key);
-					cell = row.createCell(3);
-					cell.setCellValue(idMatch.get(key).getFirstName());
-					cell = row.createCell(4);
-					cell.setCellValue(idMatch.get(key).getLastName());
-					cell = row.createCell(5);
-					cell.setCellValue(idMatch.get(key).getBirthDateTime());
-					cell = row.createCell(6);
-					cell.setCellValue(idMatch.get(key).getGender());
-					cell = row.createCell(7);
-					cell.setCellValue(idMatch.get(key).getBirthplace());
-					cell = row.createCell(8);
-					cell.setCellValue(idMatch.get(key).getEarliestDataPoint());
-					cell = row.createCell(9);
-					cell.setCellValue(idMatch.get(key).getLocations().size());
-					cell = row.createCell(10);
-					cell.setCellValue(idMatch.get(key).getLocations().toString());
-					cell = row.createCell(11);
-					cell.setCellValue(idMatch.get(key).getVariables().size());
-					cell = row.createCell(12);
-					cell.setCellValue(idMatch.get(key).getVariables().toString());
-					if (idMatch.get(key).isPicuSubject()) {
-						cell2 = row2.createCell(0);
-						cell2.setCellValue(rowNum);
-						cell2 = row2.createCell(1);
-						cell2.setCellValue(idMatch.get(key).isPicuSubject());
-						cell2 = row2.createCell(2);
-						cell2.setCellValue(key);
-						cell2 = row2.createCell(3);
-						cell2.setCellValue(idMatch.get(key).getFirstName());
-						cell2 = row2.createCell(4);
-						cell2.setCellValue(idMatch.get(key).getLastName());
-						cell2 = row2.createCell(5);
-						cell2.setCellValue(idMatch.get(key).getBirthDateTime());
-						cell2 = row2.createCell(6);
-						cell2.setCellValue(idMatch.get(key).getGender());
-						cell2 = row2.createCell(7);
-						cell2.setCellValue(idMatch.get(key).getBirthplace());
-						cell2 = row2.createCell(8);
-						cell2.setCellValue(idMatch.get(key).getEarliestDataPoint());
-						cell2 = row2.createCell(9);
-						cell2.setCellValue(idMatch.get(key).getLocations().size());
-						cell2 = row2.createCell(10);
-						cell2.setCellValue(idMatch.get(key).getLocations().toString());
-						cell2 = row2.createCell(11);
-						cell2.setCellValue(idMatch.get(key).getVariables().size());
-						cell2 = row2.createCell(12);
-						cell2.setCellValue(idMatch.get(key).getVariables().toString());	
-					}
-				}
-				rowNum++;
+			mergedFiles++;
+			if (checkpointFiles > 0 && mergedFiles % checkpointFiles == 0 && i < messageFiles.size() - 1) {
+				writeIdMatchWorkbook();
+				System.out.println("     Checkpoint written after " + mergedFiles + " files");
 			}
 		}
+	}
 
-		if (messageFiles.size() > 0) {
-			try {
+	/**
+	 * @return a processor that stores through this loader, for use by one thread at a time
+	 */
+	public HL7FileProcessor newFileProcessor() {
+		return new HL7FileProcessor(normalizer, timeSeriesSink, openTSDBConfiguration.getParserMode(), openTSDBConfiguration.getSubjectCacheSize(), 
+				duplicates, timeParser, locationFilter, metrics);
+	}
 
-				FileOutputStream out = new FileOutputStream(new File(openTSDBConfiguration.getIdMatch()));
-				workbook.write(out);
-				out.close();
-				System.out.println("Excel written successfully...");
-				PrintWriter writer = new PrintWriter(rootDir + "done.txt", "UTF-8");
-				for (String filePath : processedFiles) {
-					writer.println(filePath);
-				}
-				for (String filePath : messageFiles) {
-					writer.println(filePath);
-				}
-				writer.close();
-				System.out.println("done.txt written successfully...");
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} else {
-			System.out.println("Nothing new to process...");
+	/**
+	 * Merges subjects into the registry.  Threads may merge at the same time, such as the connections of
+	 * the MLLP listener, as each subject is merged in one step under its own lock in the registry.  The
+	 * messages the subjects came from are then handed to the duplicate filter, to be remembered as seen
+	 * once the next flush has stored their points.
+	 *
+	 * @param subjects the subjects, keyed by hash
+	 * @param messageKeys the duplicate filter keys of the messages, as the processors handed them over
+	 */
+	public void mergeSubjects(Map<String,PatientInfo> subjects, long[] messageKeys) throws IOException {
+		for (PatientInfo patInfo : subjects.values()) {
+			idMatch.merge(patInfo);
 		}
+		subjectsChanged = true;
+		if (duplicates != null)
+			duplicates.loaded(messageKeys);
 	}
 
+	/**
+	 * Waits for the points written so far to be stored and the subjects merged so far to be on disk, then
+	 * remembers the messages behind those points and subjects as seen.
+	 */
+	public synchronized void flush() throws IOException {
+		long start = System.nanoTime();
+		if (duplicates != null)
+			duplicates.prepare();
+		try {
+			timeSeriesSink.flush();
+		} catch (IOException e) {
+			// the messages whose points were lost are loaded again when they are retried
+			rollback();
+			throw e;
+		}
+		if (duplicates != null)
+			duplicates.commit();
+		idMatch.flush();
+		flushLatency.recordSince(start);
+	}
 
-	private static ArrayList<String> getProcessedFiles(File processedFileRecord, ArrayList<String> processedFiles) {
+	/**
+	 * Forgets the messages recorded as seen since the last flush, after loading them failed, so they are
+	 * loaded again when they are retried, and drops the points since the last flush that the sinks have kept
+	 * back, so the export does not hold them twice.  A failed batch can hold the points of any message since
+	 * the last flush, not only of the one that reported the failure, so all of them are forgotten.
+	 */
+	public void rollback() {
+		if (duplicates != null)
+			duplicates.rollback();
 		try {
-			FileReader fr = new FileReader(processedFileRecord);
-			BufferedReader br = new BufferedReader(fr); 
-			String filePath; 
-			while((filePath = br.readLine()) != null) { 
-				processedFiles.add(filePath);
-			} 
-			br.close();
-			fr.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			timeSeriesSink.discard();
 		} catch (IOException e) {
-			e.printStackTrace();
+			System.out.println("Unable to discard the points since the last flush: " + e);
 		}
-		return processedFiles;
 	}
 
-	private static ArrayList<String> getDirectoryContents(File dir, ArrayList<String> processedFiles, ArrayList<String> messageFiles) {
+	/**
+	 * Sends the points still queued, writes the registry index and, if anything changed and the export
+	 * is enabled, the idMatch workbook.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		flush();
+		idMatch.checkpoint();
+		// cleared first, so subjects merged while the workbook is written mark it as changed again
+		boolean changed = subjectsChanged;
+		subjectsChanged = false;
+		if (changed && openTSDBConfiguration.isIdMatchExport()) {
+			writeIdMatchWorkbook();
+			System.out.println("Excel written successfully...");
+		}
+	}
+
+	private void writeIdMatchWorkbook() throws IOException {
+		long start = System.nanoTime();
+		IdMatchWorkbookWriter.write(idMatch, openTSDBConfiguration.getIdMatch(), openTSDBConfiguration.getIdMatchSheet());
+		workbookLatency.recordSince(start);
+	}
+
+	/**
+	 * Finishes the run: sends the remaining points, reports the counts and closes the registry and manifest.
+	 *
+	 * @param writeReports true to write the idMatch workbook
+	 */
+	public synchronized void close(boolean writeReports) throws IOException {
 		try {
-			File[] files = dir.listFiles();
-			for (File file : files) {
-				if (file.isDirectory()) {
-					messageFiles = getDirectoryContents(file, processedFiles, messageFiles);
-				} else {
-					if((file.getCanonicalPath().endsWith(".txt")) || (file.getCanonicalPath().endsWith(".msg")))
-						if(!(processedFiles.contains(file.getCanonicalPath())))
-							messageFiles.add(file.getCanonicalPath());
-				}
+			fileLoader.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		pipelineReporter.stop();
+		metricsReporter.stop();
+		timeSeriesSink.close();
+		if (duplicates != null)
+			duplicates.commit();
+		pipelineReporter.report();
+		System.out.println("Messages Scanned: " + scannedCount + ", Parsed by HAPI: " + hapiCount);
+		if (duplicates != null)
+			System.out.println("Duplicate Messages Dropped: " + duplicates.getDuplicates());
+		if (locationFilter.isActive()) {
+			System.out.println("Messages Filtered by Location: " + locationFilter.getFilteredCount());
+			for (Map.Entry<String,Long> entry : locationFilter.getFilteredByLocation().entrySet()) {
+				System.out.println("     " + (entry.getKey().isEmpty() ? "(no location)" : entry.getKey()) + ": " + entry.getValue());
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
-		return messageFiles;
+		System.out.println("Series Name Cache Hits: " + normalizer.getHits() + ", Misses: " + normalizer.getMisses() + ", Unknown: " + normalizer.getUnknown());
+		System.out.println(timeSeriesSink.report());
+		try {
+			idMatch.checkpoint();
+			System.out.println("Subject registry written successfully...");
+			if (writeReports && openTSDBConfiguration.isIdMatchExport()) {
+				writeIdMatchWorkbook();
+				System.out.println("Excel written successfully...");
+			}
+			metricsReporter.report();
+		} finally {
+			metrics.unregisterMBean();
+			idMatch.close();
+			manifest.close();
+			fileCheckpoints.close();
+			if (duplicates != null)
+				duplicates.close();
+		}
 	}
 
+	/**
+	 * Loads the subjects of an idMatch workbook written by earlier versions of the tool into the registry.
+	 */
+	private static void importIdMatchWorkbook(String idMatchPath, SubjectRegistry idMatch) throws IOException {
+		XSSFWorkbook wb = readFile(idMatchPath);
+		XSSFSheet sheet = wb.getSheetAt(0);
+		for (int r = 1; r < sheet.getLastRowNum()+1; r++) {
+			XSSFRow row = sheet.getRow(r);
+			PatientInfo patInfo = new PatientInfo();
+			patInfo.setPicuSubject(row.getCell(1).getBooleanCellValue());
+			patInfo.setFirstName(row.getCell(3).getStringCellValue());
+			patInfo.setLastName(row.getCell(4).getStringCellValue());
+			patInfo.setBirthDateTime(row.getCell(5).getStringCellValue());
+			patInfo.setGender(row.getCell(6).getStringCellValue());
+			patInfo.setBirthplace(row.getCell(7).getStringCellValue());
+			patInfo.setEarliestDataPoint(row.getCell(8).getStringCellValue());
+			LinkedList<String> locations = new LinkedList<String>();
+			String lSet = row.getCell(10).getStringCellValue();
+			lSet = lSet.replaceAll("\\[", "");
+			lSet = lSet.replaceAll("\\]", "");				
+			String[] locationSet = lSet.split(",");
+			for (String location : locationSet) {
+				locations.add(location.trim());
+			}
+			patInfo.setLocations(locations);
+			LinkedList<String> variables = new LinkedList<String>();
+			String vSet = row.getCell(12).getStringCellValue();
+			vSet = vSet.replaceAll("\\[", "");
+			vSet = vSet.replaceAll("\\]", "");				
+			String[] variableSet = vSet.split(",");
+			for (String variable : variableSet) {
+				variables.add(variable.trim());
+			}
+			patInfo.setVariables(variables);
+			idMatch.put(patInfo);
+		}
+	}
 
 	/**
 	 * creates an {@link HSSFWorkbook} the specified OS filename.
@@ -488,6 +638,20 @@ public class PicuDataLoader {
 	}
 
 
+	/**
+	 * @return the processed file manifest, once the loader is open
+	 */
+	public ProcessedFileManifest getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * @return the offsets reached in files not yet fully processed, once the loader is open
+	 */
+	public FileCheckpoints getFileCheckpoints() {
+		return fileCheckpoints;
+	}
+
 	/**
 	 * @return the openTSDBConfiguration
 	 */
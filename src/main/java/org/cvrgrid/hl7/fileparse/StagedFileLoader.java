@@ -0,0 +1,504 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse;
+
+/*
+ * This class loads HL7 files through two pipeline stages, which feed the ship stage of the batching writer.
+ * The read stage, with readerThreads threads, splits a file into runs of chunkMessages messages and takes
+ * the checksum on the way.  The parse stage, with workerThreads threads, parses each run, resolves the
+ * subject hash, normalizes the series names and hands the points to the writer.  Resolving and normalizing
+ * stay with parsing, as they are a hash and a cache lookup on a message that is already in hand, cheaper
+ * than passing it on through another queue.  The queues between the stages are bounded, so a slow
+ * OpenTSDB fills the ship queue, which holds up the parse stage, which fills the parse queue and holds up
+ * the reads.  The subjects of each run are kept apart and handed back in run order, so the result of a
+ * file does not depend on how its runs were shared out between the threads.  Each run carries the byte
+ * offset and checksum of the file at its end, which is what the loader checkpoints, and a file with a
+ * checkpoint is read from that offset on, once the bytes before it are found unchanged.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+import org.cvrgrid.hl7.fileparse.parser.HL7MessageReader;
+import org.cvrgrid.hl7.fileparse.pipeline.PipelineStage;
+import org.cvrgrid.hl7.fileparse.registry.FileCheckpoints.Checkpoint;
+
+public class StagedFileLoader {
+
+	private final int chunkMessages;
+	private final PipelineStage<FileJob> readStage;
+	private final PipelineStage<MessageChunk> parseStage;
+	private final ThreadLocal<HL7FileProcessor> processors;
+
+	/**
+	 * Creates the stages and starts their threads.
+	 *
+	 * @param loader the loader, which gives each parser thread its processor
+	 * @param readerThreads the number of files read at the same time
+	 * @param parserThreads the number of runs of messages parsed at the same time
+	 * @param parseQueue the number of runs that may wait to be parsed before reads block
+	 * @param chunkMessages the number of messages in a run
+	 */
+	public StagedFileLoader(final PicuDataLoader loader, int readerThreads, int parserThreads, int parseQueue, int chunkMessages) {
+		this.chunkMessages = Math.max(1, chunkMessages);
+		this.processors = new ThreadLocal<HL7FileProcessor>() {
+			@Override
+			protected HL7FileProcessor initialValue() {
+				return loader.newFileProcessor();
+			}
+		};
+		this.readStage = new PipelineStage<FileJob>("read", readerThreads, Math.max(1, readerThreads) * 2) {
+			@Override
+			protected void process(FileJob job) throws Exception {
+				read(job);
+			}
+
+			@Override
+			protected void failed(FileJob job, Exception e) {
+				job.fail(e);
+			}
+		};
+		this.parseStage = new PipelineStage<MessageChunk>("parse", parserThreads, parseQueue) {
+			@Override
+			protected void process(MessageChunk chunk) throws Exception {
+				parse(chunk);
+			}
+
+			@Override
+			protected void failed(MessageChunk chunk, Exception e) {
+				chunk.job.fail(e);
+			}
+		};
+	}
+
+	/**
+	 * Queues a file for loading, waiting for room if the read queue is full.
+	 *
+	 * @param filePath the canonical path of the HL7 file
+	 * @param resume the checkpoint to carry on from, or null to read the file from the start
+	 * @return the job, which gives the progress and result of loading the file
+	 */
+	public FileJob submit(String filePath, Checkpoint resume) throws InterruptedException {
+		FileJob job = new FileJob(filePath, resume);
+		readStage.put(job);
+		return job;
+	}
+
+	private void read(FileJob job) throws Exception {
+		FileResult result = job.result;
+		job.started();
+		File file = new File(job.filePath);
+		result.size = file.length();
+		result.lastModified = file.lastModified();
+		FileInputStream in = new FileInputStream(file);
+		int chunks = 0;
+		try {
+			// The checksum for the processed file manifest is taken on the way through, so the file is only read once.
+			CRC32 checksum = new CRC32();
+			long offset = 0;
+			Checkpoint resume = job.resume;
+			if (resume != null) {
+				if (resume.getOffset() <= result.size && checksumOf(in, resume.getOffset(), checksum) == resume.getChecksum()) {
+					offset = resume.getOffset();
+					result.messageCount = resume.getMessages();
+					System.out.println("     Resuming " + job.filePath + " after " + resume.getMessages() + " messages");
+				} else {
+					System.out.println("     " + job.filePath + " changed since its checkpoint, loading it from the start");
+					in.getChannel().position(0);
+					checksum.reset();
+				}
+			}
+			HL7MessageReader reader = new HL7MessageReader(in, offset, Charset.defaultCharset(), checksum);
+			List<String> messages = new ArrayList<String>(chunkMessages);
+			String message;
+			while (!job.isFailed() && (message = reader.next()) != null) {
+				messages.add(message);
+				result.messageCount++;
+				if (messages.size() >= chunkMessages) {
+					parseStage.put(new MessageChunk(job, chunks++, messages, reader.getOffset(), checksum.getValue(), result.messageCount));
+					messages = new ArrayList<String>(chunkMessages);
+				}
+			}
+			if (messages.size() > 0)
+				parseStage.put(new MessageChunk(job, chunks++, messages, reader.getOffset(), checksum.getValue(), result.messageCount));
+			result.checksum = checksum.getValue();
+		} finally {
+			in.close();
+		}
+		job.readFinished(chunks);
+	}
+
+	/*
+	 * Feeds the first length bytes of the stream to the checksum and returns its value.
+	 */
+	private static long checksumOf(InputStream in, long length, CRC32 checksum) throws IOException {
+		byte[] buffer = new byte[65536];
+		long remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0)
+				break;
+			checksum.update(buffer, 0, read);
+			remaining -= read;
+		}
+		return checksum.getValue();
+	}
+
+	private void parse(MessageChunk chunk) throws Exception {
+		if (chunk.job.isFailed())
+			return;
+		HL7FileProcessor processor = processors.get();
+		long scanned = processor.getScannedCount();
+		long hapi = processor.getHapiCount();
+		chunk.subjects = new HashMap<String,PatientInfo>();
+		try {
+			processor.processMessages(chunk.messages, chunk.subjects);
+		} finally {
+			// taken even when the run fails, so its keys are not handed over with the next run of the processor
+			chunk.messageKeys = processor.takeMessageKeys();
+		}
+		chunk.messages = null;
+		chunk.job.chunkFinished(chunk, processor.getScannedCount() - scanned, processor.getHapiCount() - hapi);
+	}
+
+	/**
+	 * Waits for the files queued so far to go through both stages, then stops the threads.
+	 */
+	public void close() throws InterruptedException {
+		readStage.awaitIdle();
+		parseStage.awaitIdle();
+		readStage.shutdown();
+		parseStage.shutdown();
+	}
+
+	/**
+	 * @return the stage reading files, for reporting
+	 */
+	public PipelineStage<?> getReadStage() {
+		return readStage;
+	}
+
+	/**
+	 * @return the stage parsing messages, for reporting
+	 */
+	public PipelineStage<?> getParseStage() {
+		return parseStage;
+	}
+
+	/*
+	 * A run of consecutive messages from one file, and where the file stands at its end.
+	 */
+	private static class MessageChunk {
+
+		private final FileJob job;
+		private final int index;
+		private final long endOffset;
+		private final long checksum;
+		private final long messageCount;
+		private List<String> messages;
+		private HashMap<String,PatientInfo> subjects = null;
+		private long[] messageKeys = null;
+
+		MessageChunk(FileJob job, int index, List<String> messages, long endOffset, long checksum, long messageCount) {
+			this.job = job;
+			this.index = index;
+			this.messages = messages;
+			this.endOffset = endOffset;
+			this.checksum = checksum;
+			this.messageCount = messageCount;
+		}
+
+	}
+
+	/*
+	 * A file on its way through the stages.  The runs of the file are handed back in order as they are
+	 * parsed, so the caller can merge the subjects and checkpoint the file while the rest of it loads.
+	 */
+	public static class FileJob {
+
+		private final String filePath;
+		private final Checkpoint resume;
+		private final FileResult result;
+		private final HashMap<Integer,MessageChunk> parsed = new HashMap<Integer,MessageChunk>();
+		private long startTime = 0;
+		private int nextChunk = 0;
+		private int chunksRead = -1;
+		private long handedBack;
+		private boolean complete = false;
+		private Exception failure = null;
+
+		FileJob(String filePath, Checkpoint resume) {
+			this.filePath = filePath;
+			this.resume = resume;
+			this.result = new FileResult(filePath);
+			this.handedBack = (resume != null) ? resume.getMessages() : 0;
+		}
+
+		/**
+		 * Waits for the next runs of the file to be parsed.  When a minimum is given, progress is handed
+		 * back as soon as that many messages are parsed in order; otherwise only once the whole file is.
+		 *
+		 * @param minMessages the number of messages worth handing back before the end, 0 to wait for the end
+		 * @return the subjects of the runs and where they end in the file
+		 * @throws Exception the failure that stopped the file from loading
+		 */
+		public synchronized FileProgress nextProgress(long minMessages) throws Exception {
+			while (true) {
+				if (failure != null)
+					throw failure;
+				if (complete)
+					throw new IllegalStateException(filePath + " has already been handed back in full");
+				int available = 0;
+				long messages = 0;
+				while (parsed.containsKey(nextChunk + available)) {
+					messages = parsed.get(nextChunk + available).messageCount - handedBack;
+					available++;
+				}
+				boolean end = chunksRead >= 0 && nextChunk + available == chunksRead;
+				if (end || (minMessages > 0 && available > 0 && messages >= minMessages)) {
+					FileProgress progress = new FileProgress();
+					for (int i = 0; i < available; i++) {
+						MessageChunk chunk = parsed.remove(nextChunk + i);
+						for (PatientInfo patInfo : chunk.subjects.values()) {
+							PatientInfo known = progress.subjects.get(patInfo.getHash());
+							if (known == null)
+								progress.subjects.put(patInfo.getHash(), patInfo);
+							else
+								known.merge(patInfo);
+						}
+						progress.addMessageKeys(chunk.messageKeys);
+						progress.offset = chunk.endOffset;
+						progress.checksum = chunk.checksum;
+						progress.messageCount = chunk.messageCount;
+						handedBack = chunk.messageCount;
+					}
+					nextChunk += available;
+					if (end) {
+						progress.complete = true;
+						complete = true;
+						result.elapsedMillis = System.currentTimeMillis() - startTime;
+					}
+					return progress;
+				}
+				wait();
+			}
+		}
+
+		/**
+		 * @return what loading the file produced, once nextProgress has handed back the end of it
+		 */
+		public synchronized FileResult getResult() {
+			return result;
+		}
+
+		/**
+		 * @return the canonical path of the file
+		 */
+		public String getFilePath() {
+			return filePath;
+		}
+
+		/**
+		 * Stops the file from loading any further.
+		 */
+		public void cancel() {
+			fail(new CancellationException(filePath + " was cancelled"));
+		}
+
+		synchronized boolean isFailed() {
+			return failure != null;
+		}
+
+		synchronized void fail(Exception e) {
+			if (failure != null || complete)
+				return;
+			failure = e;
+			notifyAll();
+		}
+
+		synchronized void started() {
+			startTime = System.currentTimeMillis();
+		}
+
+		synchronized void readFinished(int chunks) {
+			chunksRead = chunks;
+			notifyAll();
+		}
+
+		synchronized void chunkFinished(MessageChunk chunk, long scanned, long hapi) {
+			parsed.put(chunk.index, chunk);
+			result.scannedCount += scanned;
+			result.hapiCount += hapi;
+			notifyAll();
+		}
+
+	}
+
+	/*
+	 * A stretch of a file that has been parsed and stored, from the end of the previous stretch.
+	 */
+	public static class FileProgress {
+
+		private final HashMap<String,PatientInfo> subjects = new HashMap<String,PatientInfo>();
+		private long[] messageKeys = new long[0];
+		private long offset = 0;
+		private long checksum = 0;
+		private long messageCount = 0;
+		private boolean complete = false;
+
+		/**
+		 * @return the subjects seen in the stretch, keyed by hash
+		 */
+		public HashMap<String,PatientInfo> getSubjects() {
+			return subjects;
+		}
+
+		/**
+		 * @return the duplicate filter keys of the messages loaded in the stretch
+		 */
+		public long[] getMessageKeys() {
+			return messageKeys;
+		}
+
+		private void addMessageKeys(long[] keys) {
+			if (keys.length == 0)
+				return;
+			long[] joined = Arrays.copyOf(messageKeys, messageKeys.length + keys.length);
+			System.arraycopy(keys, 0, joined, messageKeys.length, keys.length);
+			messageKeys = joined;
+		}
+
+		/**
+		 * @return the byte offset of the message boundary the stretch ends at
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return the CRC-32 of the file up to that offset
+		 */
+		public long getChecksum() {
+			return checksum;
+		}
+
+		/**
+		 * @return the number of messages in the file up to that offset
+		 */
+		public long getMessageCount() {
+			return messageCount;
+		}
+
+		/**
+		 * @return true if the stretch runs to the end of the file
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+	}
+
+	/*
+	 * What loading one file produced.
+	 */
+	public static class FileResult {
+
+		private final String filePath;
+		private long messageCount = 0;
+		private long size = 0;
+		private long lastModified = 0;
+		private long checksum = 0;
+		private long elapsedMillis = 0;
+		private long scannedCount = 0;
+		private long hapiCount = 0;
+
+		public FileResult(String filePath) {
+			this.filePath = filePath;
+		}
+
+		/**
+		 * @return the path of the file
+		 */
+		public String getFilePath() {
+			return filePath;
+		}
+
+		/**
+		 * @return the number of messages in the file
+		 */
+		public long getMessageCount() {
+			return messageCount;
+		}
+
+		/**
+		 * @return the size of the file when it was read
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the modification time of the file when it was read
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the CRC-32 of the file contents
+		 */
+		public long getChecksum() {
+			return checksum;
+		}
+
+		/**
+		 * @return the time from the file starting to be read to it being loaded
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return the number of messages handled by the fast scanner
+		 */
+		public long getScannedCount() {
+			return scannedCount;
+		}
+
+		/**
+		 * @return the number of messages parsed by HAPI
+		 */
+		public long getHapiCount() {
+			return hapiCount;
+		}
+
+	}
+
+}
@@ -0,0 +1,49 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.metrics;
+
+/*
+ * This class counts something that happens on the hot path, such as a message or an observation loaded.
+ * It is a single atomic long, so callers that count several things at once, like the observations of a
+ * message, should add them in one call rather than count them one at a time.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Counter {
+
+	private final AtomicLong count = new AtomicLong();
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long n) {
+		count.addAndGet(n);
+	}
+
+	/**
+	 * @return the count since the counter was made
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+}
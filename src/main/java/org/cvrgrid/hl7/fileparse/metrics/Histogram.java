@@ -0,0 +1,195 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.metrics;
+
+/*
+ * This class records the spread of a value, such as the time taken to parse a message or the number of
+ * points in a batch, in a fixed set of buckets.  Values below 16 have a bucket each, and every power of two
+ * above that is split into 8 buckets, so a percentile read from the buckets is within an eighth of the true
+ * value, from nanoseconds to hours, in under 500 buckets.  Recording a value is two atomic additions and no
+ * allocation or locking, so the histograms can be left on while loading.
+ *
+ * The buckets only ever grow.  A snapshot copies them, and the difference of two snapshots gives the spread
+ * of the values recorded between them, which is what the periodic reports print.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram {
+
+	private static final int EXACT = 16;
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+
+	private final String unit;
+	private final long scale;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param unit the unit the values are reported in, such as us, or empty for a plain count
+	 * @param scale the number of recorded values in one reported unit, such as 1000 for nanoseconds
+	 *        reported as microseconds
+	 */
+	public Histogram(String unit, long scale) {
+		this.unit = unit;
+		this.scale = scale;
+	}
+
+	/**
+	 * Records a value, taking a negative one as 0.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(bucketOf(value));
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Records the nanoseconds since the given System.nanoTime.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the values recorded so far
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		return new Snapshot(counts, count, sum.get(), max.get());
+	}
+
+	/**
+	 * @return the unit the values are reported in, or empty for a plain count
+	 */
+	public String getUnit() {
+		return unit;
+	}
+
+	static int bucketOf(long value) {
+		if (value < EXACT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+		return EXACT + (exponent - 4) * SUB_BUCKETS + sub;
+	}
+
+	/*
+	 * The largest value that falls in a bucket.
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < EXACT)
+			return bucket;
+		if (bucket == BUCKETS - 1)
+			return Long.MAX_VALUE;
+		int exponent = (bucket - EXACT) / SUB_BUCKETS + 4;
+		int sub = (bucket - EXACT) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+	}
+
+	/*
+	 * The counts of the buckets at one time, or between two times, read in the reported unit.
+	 */
+	public class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * @return the values recorded after the given snapshot and up to this one
+		 */
+		public Snapshot since(Snapshot earlier) {
+			long[] difference = new long[BUCKETS];
+			long count = 0;
+			int highest = -1;
+			for (int i = 0; i < BUCKETS; i++) {
+				difference[i] = counts[i] - earlier.counts[i];
+				count += difference[i];
+				if (difference[i] > 0)
+					highest = i;
+			}
+			// the largest value of the interval is only known to the bucket it fell in
+			long intervalMax = (highest < 0) ? 0 : Math.min(upperBound(highest), max);
+			return new Snapshot(difference, count, sum - earlier.sum, intervalMax);
+		}
+
+		/**
+		 * @return the number of values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the mean of the values, or 0 if there are none
+		 */
+		public double getMean() {
+			return (count == 0) ? 0 : (double) sum / count / scale;
+		}
+
+		/**
+		 * @param fraction the fraction of values at or below the result, such as 0.99
+		 * @return the value with the given fraction of values at or below it, to within its bucket
+		 */
+		public double getPercentile(double fraction) {
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return (double) Math.min(upperBound(i), max) / scale;
+			}
+			return (double) max / scale;
+		}
+
+		/**
+		 * @return the largest value, or 0 if there are none
+		 */
+		public double getMax() {
+			return (double) max / scale;
+		}
+
+	}
+
+}
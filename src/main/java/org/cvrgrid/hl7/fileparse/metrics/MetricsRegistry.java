@@ -0,0 +1,229 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.metrics;
+
+/*
+ * This class holds the metrics of a loader by name, in the order they were made, so the reports list them
+ * the same way every time.  Asking for a counter or histogram by a name already taken returns the one made
+ * first, so every processor of a loader counts into the same metrics.  The metrics can be published as one
+ * MBean, whose attributes are the counters and gauges by name and, for each histogram, its count, mean,
+ * 50th, 90th and 99th percentiles and maximum since the loader started, such as parseP99.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+public class MetricsRegistry {
+
+	private static final String[] HISTOGRAM_ATTRIBUTES = { "Count", "Mean", "P50", "P90", "P99", "Max" };
+
+	private final LinkedHashMap<String,Object> metrics = new LinkedHashMap<String,Object>();
+	private ObjectName objectName = null;
+
+	/**
+	 * @return the counter of the given name, made the first time it is asked for
+	 */
+	public synchronized Counter counter(String name) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			metric = new Counter();
+			metrics.put(name, metric);
+		}
+		if (!(metric instanceof Counter))
+			throw new IllegalArgumentException("Metric " + name + " is not a counter");
+		return (Counter) metric;
+	}
+
+	/**
+	 * @return the histogram of the given name, of nanoseconds reported as microseconds
+	 */
+	public Histogram latency(String name) {
+		return histogram(name, "us", 1000);
+	}
+
+	/**
+	 * @return the histogram of the given name, of values reported as they are recorded
+	 */
+	public Histogram histogram(String name) {
+		return histogram(name, "", 1);
+	}
+
+	private synchronized Histogram histogram(String name, String unit, long scale) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			metric = new Histogram(unit, scale);
+			metrics.put(name, metric);
+		}
+		if (!(metric instanceof Histogram))
+			throw new IllegalArgumentException("Metric " + name + " is not a histogram");
+		return (Histogram) metric;
+	}
+
+	/**
+	 * Adds a gauge, replacing any gauge of the same name.
+	 */
+	public synchronized void gauge(String name, Gauge gauge) {
+		Object metric = metrics.get(name);
+		if (metric != null && !(metric instanceof Gauge))
+			throw new IllegalArgumentException("Metric " + name + " is not a gauge");
+		metrics.put(name, gauge);
+	}
+
+	/**
+	 * @return the metrics by name, in the order they were made
+	 */
+	public synchronized Map<String,Object> getMetrics() {
+		return new LinkedHashMap<String,Object>(metrics);
+	}
+
+	/**
+	 * Publishes the metrics with the platform MBean server, under a name such as
+	 * org.cvrgrid.hl7.fileparse:type=Metrics.
+	 */
+	public synchronized void registerMBean(String name) throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName registered = new ObjectName(name);
+		server.registerMBean(new MetricsBean(), registered);
+		objectName = registered;
+	}
+
+	/**
+	 * Takes the metrics off the platform MBean server, if they were published.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			System.out.println("Could not unregister " + objectName + ": " + e.getMessage());
+		}
+		objectName = null;
+	}
+
+	/*
+	 * The value of an attribute of the MBean, or null if there is no such attribute.
+	 */
+	private Object attributeValue(String attribute) {
+		for (Map.Entry<String,Object> entry : getMetrics().entrySet()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			if (metric instanceof Counter && name.equals(attribute))
+				return ((Counter) metric).getCount();
+			if (metric instanceof Gauge && name.equals(attribute))
+				return ((Gauge) metric).getValue();
+			if (metric instanceof Histogram && attribute.startsWith(name)) {
+				String suffix = attribute.substring(name.length());
+				if (!Arrays.asList(HISTOGRAM_ATTRIBUTES).contains(suffix))
+					continue;
+				Histogram.Snapshot snapshot = ((Histogram) metric).snapshot();
+				switch (suffix) {
+				case "Count":
+					return snapshot.getCount();
+				case "Mean":
+					return snapshot.getMean();
+				case "P50":
+					return snapshot.getPercentile(0.5);
+				case "P90":
+					return snapshot.getPercentile(0.9);
+				case "P99":
+					return snapshot.getPercentile(0.99);
+				default:
+					return snapshot.getMax();
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * The MBean, which reads the metrics when it is asked, so nothing is added to the hot path for it.  The
+	 * attributes are listed afresh each time, as processors add their metrics once they are made.
+	 */
+	private class MetricsBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Object value = attributeValue(attribute);
+			if (value == null)
+				throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				Object value = attributeValue(attribute);
+				if (value != null)
+					list.add(new Attribute(attribute, value));
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String,Object> entry : getMetrics().entrySet()) {
+				String name = entry.getKey();
+				Object metric = entry.getValue();
+				if (metric instanceof Counter) {
+					attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "Count of " + name, true, false, false));
+				} else if (metric instanceof Gauge) {
+					attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "Current " + name, true, false, false));
+				} else {
+					String unit = ((Histogram) metric).getUnit();
+					for (String suffix : HISTOGRAM_ATTRIBUTES) {
+						String type = suffix.equals("Count") ? "java.lang.Long" : "java.lang.Double";
+						String description = suffix + " of " + name + (suffix.equals("Count") || unit.isEmpty() ? "" : " in " + unit);
+						attributes.add(new MBeanAttributeInfo(name + suffix, type, description, true, false, false));
+					}
+				}
+			}
+			return new MBeanInfo(MetricsRegistry.class.getName(), "Metrics of the HL7 loader", 
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+
+	}
+
+}
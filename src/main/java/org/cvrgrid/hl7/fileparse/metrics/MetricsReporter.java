@@ -0,0 +1,185 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.metrics;
+
+/*
+ * This class prints the metrics of a registry on one line, every metricsReportSeconds and whenever it is
+ * asked to, and can append them as a row of a CSV file as well.  Counters are printed with their rate since
+ * the last report, gauges as they are, and histograms as the count, mean, percentiles and maximum of the
+ * values recorded since the last report, so a slow stage shows up in the report it happened in.  A header
+ * row is written before the first row of a run, and again whenever a metric has been added since.
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsReporter {
+
+	private final MetricsRegistry registry;
+	private final String csvPath;
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private final HashMap<String,Long> lastCounts = new HashMap<String,Long>();
+	private final HashMap<String,Histogram.Snapshot> lastSnapshots = new HashMap<String,Histogram.Snapshot>();
+	private long lastReportTime = System.nanoTime();
+	private List<String> csvHeader = null;
+	private ScheduledExecutorService timer = null;
+
+	/**
+	 * @param csvPath the CSV file to append each report to, or empty to only print them
+	 */
+	public MetricsReporter(MetricsRegistry registry, String csvPath) {
+		this.registry = registry;
+		this.csvPath = csvPath;
+	}
+
+	/**
+	 * Reports every given number of seconds until stop is called.
+	 *
+	 * @param periodSeconds the time between reports, 0 to only report when asked
+	 */
+	public void start(int periodSeconds) {
+		if (periodSeconds <= 0)
+			return;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Reports the metrics since the last report now.
+	 */
+	public synchronized void report() {
+		long now = System.nanoTime();
+		double seconds = Math.max(0.001, (now - lastReportTime) / 1e9);
+		lastReportTime = now;
+		StringBuilder line = new StringBuilder("     Metrics:");
+		List<String> header = new ArrayList<String>();
+		List<String> row = new ArrayList<String>();
+		header.add("time");
+		row.add(timeFormat.format(new Date()));
+		header.add("seconds");
+		row.add(format(seconds));
+		for (Map.Entry<String,Object> entry : registry.getMetrics().entrySet()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			line.append(header.size() == 2 ? " " : ", ");
+			if (metric instanceof Counter) {
+				long count = ((Counter) metric).getCount();
+				Long last = lastCounts.put(name, count);
+				double rate = (count - ((last == null) ? 0 : last)) / seconds;
+				line.append(name).append(' ').append(count).append(" (").append(format(rate)).append("/s)");
+				header.add(name);
+				row.add(Long.toString(count));
+				header.add(name + "Rate");
+				row.add(format(rate));
+			} else if (metric instanceof Gauge) {
+				long value = ((Gauge) metric).getValue();
+				line.append(name).append(' ').append(value);
+				header.add(name);
+				row.add(Long.toString(value));
+			} else {
+				Histogram histogram = (Histogram) metric;
+				String unit = histogram.getUnit();
+				Histogram.Snapshot snapshot = histogram.snapshot();
+				Histogram.Snapshot last = lastSnapshots.put(name, snapshot);
+				Histogram.Snapshot interval = (last == null) ? snapshot : snapshot.since(last);
+				line.append(name).append(' ').append(interval.getCount());
+				if (interval.getCount() > 0) {
+					line.append(" p50 ").append(format(interval.getPercentile(0.5))).append(unit);
+					line.append(" p99 ").append(format(interval.getPercentile(0.99))).append(unit);
+					line.append(" max ").append(format(interval.getMax())).append(unit);
+				}
+				header.add(name + "Count");
+				row.add(Long.toString(interval.getCount()));
+				header.add(name + "Mean");
+				row.add(format(interval.getMean()));
+				header.add(name + "P50");
+				row.add(format(interval.getPercentile(0.5)));
+				header.add(name + "P90");
+				row.add(format(interval.getPercentile(0.9)));
+				header.add(name + "P99");
+				row.add(format(interval.getPercentile(0.99)));
+				header.add(name + "Max");
+				row.add(format(interval.getMax()));
+			}
+		}
+		System.out.println(line);
+		if (csvPath.length() > 0)
+			appendCsv(header, row);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+
+	private void appendCsv(List<String> header, List<String> row) {
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(csvPath, true));
+			try {
+				if (!header.equals(csvHeader)) {
+					out.println(join(header));
+					csvHeader = header;
+				}
+				out.println(join(row));
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not write metrics to " + csvPath + ": " + e.getMessage());
+		}
+	}
+
+	private static String join(List<String> values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0)
+				joined.append(',');
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.1f", value);
+	}
+
+}
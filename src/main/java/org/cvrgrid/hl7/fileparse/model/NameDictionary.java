@@ -0,0 +1,85 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.model;
+
+/*
+ * This class gives each distinct name, such as a location or a variable, a small integer id the first time
+ * it is seen, and keeps one copy of the name for every subject that refers to it.  Ids start at 1 and are
+ * handed out in order, so sets of names can be kept as bit sets indexed by id.  Id 0 stands for null.  Ids
+ * only last as long as the process, so anything written to disk uses the names.  Looking up a known name
+ * takes no lock, and the class is safe to share between threads.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class NameDictionary {
+
+	private final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+	private volatile String[] names = new String[64];
+	private int count = 1;
+
+	/**
+	 * @return the id of the name, given one if it is new
+	 */
+	public int idOf(String name) {
+		if (name == null)
+			return 0;
+		Integer id = ids.get(name);
+		if (id != null)
+			return id.intValue();
+		synchronized (this) {
+			id = ids.get(name);
+			if (id != null)
+				return id.intValue();
+			if (count == names.length)
+				names = Arrays.copyOf(names, count * 2);
+			names[count] = name;
+			// the name is stored before the id is published, so any thread given the id can look it up
+			ids.put(name, Integer.valueOf(count));
+			return count++;
+		}
+	}
+
+	/**
+	 * @return the id of the name, or -1 if it has never been given one
+	 */
+	public int find(String name) {
+		if (name == null)
+			return 0;
+		Integer id = ids.get(name);
+		return (id == null) ? -1 : id.intValue();
+	}
+
+	/**
+	 * @return the name with the given id
+	 */
+	public String nameOf(int id) {
+		return names[id];
+	}
+
+	/**
+	 * @return the number of names, not counting null
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+}
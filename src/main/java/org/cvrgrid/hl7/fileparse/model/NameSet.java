@@ -0,0 +1,130 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.model;
+
+/*
+ * This class is the list of locations or variables of a subject: a set of names that keeps the order they
+ * were added in.  The names are held as their ids in a shared NameDictionary, in an int array for the order
+ * and a bit set for membership, so checking for a name is one hash lookup and one bit test, and a subject
+ * with hundreds of variables takes a few bytes for each instead of a list node and a string.  It prints
+ * like a list, [a, b, c], which is how the lookup workbook shows it.  It is not safe for threads, like the
+ * PatientInfo it belongs to.
+ */
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class NameSet extends AbstractCollection<String> {
+
+	private final NameDictionary dictionary;
+	private final BitSet members = new BitSet();
+	private int[] ids = new int[4];
+	private int size = 0;
+
+	/**
+	 * @param dictionary the dictionary the names are kept in
+	 */
+	public NameSet(NameDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Adds a name at the end if it is not already in the set.
+	 *
+	 * @return true if the name was added
+	 */
+	@Override
+	public boolean add(String name) {
+		return addId(dictionary.idOf(name));
+	}
+
+	/**
+	 * Adds a name by its id in the dictionary, which saves looking the name up.
+	 *
+	 * @return true if the name was added
+	 */
+	public boolean addId(int id) {
+		if (members.get(id))
+			return false;
+		members.set(id);
+		if (size == ids.length)
+			ids = Arrays.copyOf(ids, size * 2);
+		ids[size++] = id;
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends String> names) {
+		if (names instanceof NameSet && ((NameSet) names).dictionary == dictionary) {
+			NameSet other = (NameSet) names;
+			boolean changed = false;
+			for (int i = 0; i < other.size; i++) {
+				changed |= addId(other.ids[i]);
+			}
+			return changed;
+		}
+		return super.addAll(names);
+	}
+
+	@Override
+	public boolean contains(Object name) {
+		if (name != null && !(name instanceof String))
+			return false;
+		int id = dictionary.find((String) name);
+		return id >= 0 && members.get(id);
+	}
+
+	@Override
+	public void clear() {
+		members.clear();
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			public String next() {
+				if (next >= size)
+					throw new NoSuchElementException();
+				return dictionary.nameOf(ids[next++]);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+}
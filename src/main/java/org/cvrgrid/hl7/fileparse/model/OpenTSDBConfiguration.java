@@ -15,6 +15,55 @@ public class OpenTSDBConfiguration implements Serializable {
 	private String rootDir;
 	private String folderPath;
 	private String studyString;
+	private int putBatchSize = 50;
+	private int putBatchBytes = 524288;
+	private long putFlushMillis = 1000;
+	private boolean putGzip = false;
+	private String parserMode = "fast";
+	private int seriesCacheSize = 10000;
+	private int workerThreads = 4;
+	private int idMatchCheckpointFiles = 0;
+	private String subjectRegistry;
+	private boolean idMatchExport = true;
+	private int watchPollSeconds = 60;
+	private int watchSettleSeconds = 10;
+	private int checkpointSeconds = 300;
+	private int mllpPort = 6661;
+	private int mllpConcurrency = 8;
+	private int mllpWaitSeconds = 30;
+	private int readerThreads = 2;
+	private int shipThreads = 2;
+	private int chunkMessages = 100;
+	private int parseQueueChunks = 16;
+	private int shipQueueBatches = 8;
+	private int pipelineReportSeconds = 30;
+	private String spoolDir = "";
+	private int spoolSegmentMB = 64;
+	private int spoolMaxMB = 1024;
+	private boolean spoolSync = true;
+	private long spoolRetryMillis = 500;
+	private long spoolMaxRetryMillis = 60000;
+	private int spoolDrainSeconds = 60;
+	private int fileCheckpointMessages = 50000;
+	private long tailPollMillis = 1000;
+	private long tailSettleMillis = 2000;
+	private int tailCloseMinutes = 120;
+	private int subjectCacheSize = 10000;
+	private boolean duplicateFilter = true;
+	private int duplicateRetentionDays = 7;
+	private String timeZone = "";
+	private String locationPrefixes = "";
+	private String locationPattern = "";
+	private int metricsReportSeconds = 60;
+	private String metricsCsv = "";
+	private boolean metricsJmx = true;
+	private String sinks = "http";
+	private String telnetHost = "";
+	private int telnetPort = 4242;
+	private String exportDir = "";
+	private String exportFormat = "csv";
+	private boolean exportGzip = true;
+	private int seriesBufferPoints = 10000;
 
 	public OpenTSDBConfiguration() {
 
@@ -160,4 +209,690 @@ public class OpenTSDBConfiguration implements Serializable {
 		this.studyString = studyString;
 	}
 
+	/**
+	 * @return the putBatchSize
+	 */
+	public int getPutBatchSize() {
+		return putBatchSize;
+	}
+
+	/**
+	 * @param putBatchSize the putBatchSize to set
+	 */
+	public void setPutBatchSize(int putBatchSize) {
+		this.putBatchSize = putBatchSize;
+	}
+
+	/**
+	 * @return the putBatchBytes
+	 */
+	public int getPutBatchBytes() {
+		return putBatchBytes;
+	}
+
+	/**
+	 * @param putBatchBytes the putBatchBytes to set
+	 */
+	public void setPutBatchBytes(int putBatchBytes) {
+		this.putBatchBytes = putBatchBytes;
+	}
+
+	/**
+	 * @return the putFlushMillis
+	 */
+	public long getPutFlushMillis() {
+		return putFlushMillis;
+	}
+
+	/**
+	 * @param putFlushMillis the putFlushMillis to set
+	 */
+	public void setPutFlushMillis(long putFlushMillis) {
+		this.putFlushMillis = putFlushMillis;
+	}
+
+	/**
+	 * @return the putGzip
+	 */
+	public boolean isPutGzip() {
+		return putGzip;
+	}
+
+	/**
+	 * @param putGzip the putGzip to set
+	 */
+	public void setPutGzip(boolean putGzip) {
+		this.putGzip = putGzip;
+	}
+
+	/**
+	 * @return the parserMode
+	 */
+	public String getParserMode() {
+		return parserMode;
+	}
+
+	/**
+	 * @param parserMode the parserMode to set
+	 */
+	public void setParserMode(String parserMode) {
+		this.parserMode = parserMode;
+	}
+
+	/**
+	 * @return the seriesCacheSize
+	 */
+	public int getSeriesCacheSize() {
+		return seriesCacheSize;
+	}
+
+	/**
+	 * @param seriesCacheSize the seriesCacheSize to set
+	 */
+	public void setSeriesCacheSize(int seriesCacheSize) {
+		this.seriesCacheSize = seriesCacheSize;
+	}
+
+	/**
+	 * @return the workerThreads
+	 */
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	/**
+	 * @param workerThreads the workerThreads to set
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * @return the idMatchCheckpointFiles
+	 */
+	public int getIdMatchCheckpointFiles() {
+		return idMatchCheckpointFiles;
+	}
+
+	/**
+	 * @param idMatchCheckpointFiles the idMatchCheckpointFiles to set
+	 */
+	public void setIdMatchCheckpointFiles(int idMatchCheckpointFiles) {
+		this.idMatchCheckpointFiles = idMatchCheckpointFiles;
+	}
+
+	/**
+	 * @return the subjectRegistry
+	 */
+	public String getSubjectRegistry() {
+		return subjectRegistry;
+	}
+
+	/**
+	 * @param subjectRegistry the subjectRegistry to set
+	 */
+	public void setSubjectRegistry(String subjectRegistry) {
+		this.subjectRegistry = subjectRegistry;
+	}
+
+	/**
+	 * @return the idMatchExport
+	 */
+	public boolean isIdMatchExport() {
+		return idMatchExport;
+	}
+
+	/**
+	 * @param idMatchExport the idMatchExport to set
+	 */
+	public void setIdMatchExport(boolean idMatchExport) {
+		this.idMatchExport = idMatchExport;
+	}
+
+	/**
+	 * @return the watchPollSeconds
+	 */
+	public int getWatchPollSeconds() {
+		return watchPollSeconds;
+	}
+
+	/**
+	 * @param watchPollSeconds the watchPollSeconds to set
+	 */
+	public void setWatchPollSeconds(int watchPollSeconds) {
+		this.watchPollSeconds = watchPollSeconds;
+	}
+
+	/**
+	 * @return the watchSettleSeconds
+	 */
+	public int getWatchSettleSeconds() {
+		return watchSettleSeconds;
+	}
+
+	/**
+	 * @param watchSettleSeconds the watchSettleSeconds to set
+	 */
+	public void setWatchSettleSeconds(int watchSettleSeconds) {
+		this.watchSettleSeconds = watchSettleSeconds;
+	}
+
+	/**
+	 * @return the checkpointSeconds
+	 */
+	public int getCheckpointSeconds() {
+		return checkpointSeconds;
+	}
+
+	/**
+	 * @param checkpointSeconds the checkpointSeconds to set
+	 */
+	public void setCheckpointSeconds(int checkpointSeconds) {
+		this.checkpointSeconds = checkpointSeconds;
+	}
+
+	/**
+	 * @return the mllpPort
+	 */
+	public int getMllpPort() {
+		return mllpPort;
+	}
+
+	/**
+	 * @param mllpPort the mllpPort to set
+	 */
+	public void setMllpPort(int mllpPort) {
+		this.mllpPort = mllpPort;
+	}
+
+	/**
+	 * @return the mllpConcurrency
+	 */
+	public int getMllpConcurrency() {
+		return mllpConcurrency;
+	}
+
+	/**
+	 * @param mllpConcurrency the mllpConcurrency to set
+	 */
+	public void setMllpConcurrency(int mllpConcurrency) {
+		this.mllpConcurrency = mllpConcurrency;
+	}
+
+	/**
+	 * @return the mllpWaitSeconds
+	 */
+	public int getMllpWaitSeconds() {
+		return mllpWaitSeconds;
+	}
+
+	/**
+	 * @param mllpWaitSeconds the mllpWaitSeconds to set
+	 */
+	public void setMllpWaitSeconds(int mllpWaitSeconds) {
+		this.mllpWaitSeconds = mllpWaitSeconds;
+	}
+
+	/**
+	 * @return the readerThreads
+	 */
+	public int getReaderThreads() {
+		return readerThreads;
+	}
+
+	/**
+	 * @param readerThreads the readerThreads to set
+	 */
+	public void setReaderThreads(int readerThreads) {
+		this.readerThreads = readerThreads;
+	}
+
+	/**
+	 * @return the shipThreads
+	 */
+	public int getShipThreads() {
+		return shipThreads;
+	}
+
+	/**
+	 * @param shipThreads the shipThreads to set
+	 */
+	public void setShipThreads(int shipThreads) {
+		this.shipThreads = shipThreads;
+	}
+
+	/**
+	 * @return the chunkMessages
+	 */
+	public int getChunkMessages() {
+		return chunkMessages;
+	}
+
+	/**
+	 * @param chunkMessages the chunkMessages to set
+	 */
+	public void setChunkMessages(int chunkMessages) {
+		this.chunkMessages = chunkMessages;
+	}
+
+	/**
+	 * @return the parseQueueChunks
+	 */
+	public int getParseQueueChunks() {
+		return parseQueueChunks;
+	}
+
+	/**
+	 * @param parseQueueChunks the parseQueueChunks to set
+	 */
+	public void setParseQueueChunks(int parseQueueChunks) {
+		this.parseQueueChunks = parseQueueChunks;
+	}
+
+	/**
+	 * @return the shipQueueBatches
+	 */
+	public int getShipQueueBatches() {
+		return shipQueueBatches;
+	}
+
+	/**
+	 * @param shipQueueBatches the shipQueueBatches to set
+	 */
+	public void setShipQueueBatches(int shipQueueBatches) {
+		this.shipQueueBatches = shipQueueBatches;
+	}
+
+	/**
+	 * @return the pipelineReportSeconds
+	 */
+	public int getPipelineReportSeconds() {
+		return pipelineReportSeconds;
+	}
+
+	/**
+	 * @param pipelineReportSeconds the pipelineReportSeconds to set
+	 */
+	public void setPipelineReportSeconds(int pipelineReportSeconds) {
+		this.pipelineReportSeconds = pipelineReportSeconds;
+	}
+
+	/**
+	 * @return the spoolDir
+	 */
+	public String getSpoolDir() {
+		return spoolDir;
+	}
+
+	/**
+	 * @param spoolDir the spoolDir to set
+	 */
+	public void setSpoolDir(String spoolDir) {
+		this.spoolDir = spoolDir;
+	}
+
+	/**
+	 * @return the spoolSegmentMB
+	 */
+	public int getSpoolSegmentMB() {
+		return spoolSegmentMB;
+	}
+
+	/**
+	 * @param spoolSegmentMB the spoolSegmentMB to set
+	 */
+	public void setSpoolSegmentMB(int spoolSegmentMB) {
+		this.spoolSegmentMB = spoolSegmentMB;
+	}
+
+	/**
+	 * @return the spoolMaxMB
+	 */
+	public int getSpoolMaxMB() {
+		return spoolMaxMB;
+	}
+
+	/**
+	 * @param spoolMaxMB the spoolMaxMB to set
+	 */
+	public void setSpoolMaxMB(int spoolMaxMB) {
+		this.spoolMaxMB = spoolMaxMB;
+	}
+
+	/**
+	 * @return the spoolSync
+	 */
+	public boolean isSpoolSync() {
+		return spoolSync;
+	}
+
+	/**
+	 * @param spoolSync the spoolSync to set
+	 */
+	public void setSpoolSync(boolean spoolSync) {
+		this.spoolSync = spoolSync;
+	}
+
+	/**
+	 * @return the spoolRetryMillis
+	 */
+	public long getSpoolRetryMillis() {
+		return spoolRetryMillis;
+	}
+
+	/**
+	 * @param spoolRetryMillis the spoolRetryMillis to set
+	 */
+	public void setSpoolRetryMillis(long spoolRetryMillis) {
+		this.spoolRetryMillis = spoolRetryMillis;
+	}
+
+	/**
+	 * @return the spoolMaxRetryMillis
+	 */
+	public long getSpoolMaxRetryMillis() {
+		return spoolMaxRetryMillis;
+	}
+
+	/**
+	 * @param spoolMaxRetryMillis the spoolMaxRetryMillis to set
+	 */
+	public void setSpoolMaxRetryMillis(long spoolMaxRetryMillis) {
+		this.spoolMaxRetryMillis = spoolMaxRetryMillis;
+	}
+
+	/**
+	 * @return the spoolDrainSeconds
+	 */
+	public int getSpoolDrainSeconds() {
+		return spoolDrainSeconds;
+	}
+
+	/**
+	 * @param spoolDrainSeconds the spoolDrainSeconds to set
+	 */
+	public void setSpoolDrainSeconds(int spoolDrainSeconds) {
+		this.spoolDrainSeconds = spoolDrainSeconds;
+	}
+
+	/**
+	 * @return the fileCheckpointMessages
+	 */
+	public int getFileCheckpointMessages() {
+		return fileCheckpointMessages;
+	}
+
+	/**
+	 * @param fileCheckpointMessages the fileCheckpointMessages to set
+	 */
+	public void setFileCheckpointMessages(int fileCheckpointMessages) {
+		this.fileCheckpointMessages = fileCheckpointMessages;
+	}
+
+	/**
+	 * @return the tailPollMillis
+	 */
+	public long getTailPollMillis() {
+		return tailPollMillis;
+	}
+
+	/**
+	 * @param tailPollMillis the tailPollMillis to set
+	 */
+	public void setTailPollMillis(long tailPollMillis) {
+		this.tailPollMillis = tailPollMillis;
+	}
+
+	/**
+	 * @return the tailSettleMillis
+	 */
+	public long getTailSettleMillis() {
+		return tailSettleMillis;
+	}
+
+	/**
+	 * @param tailSettleMillis the tailSettleMillis to set
+	 */
+	public void setTailSettleMillis(long tailSettleMillis) {
+		this.tailSettleMillis = tailSettleMillis;
+	}
+
+	/**
+	 * @return the tailCloseMinutes
+	 */
+	public int getTailCloseMinutes() {
+		return tailCloseMinutes;
+	}
+
+	/**
+	 * @param tailCloseMinutes the tailCloseMinutes to set
+	 */
+	public void setTailCloseMinutes(int tailCloseMinutes) {
+		this.tailCloseMinutes = tailCloseMinutes;
+	}
+
+	/**
+	 * @return the subjectCacheSize
+	 */
+	public int getSubjectCacheSize() {
+		return subjectCacheSize;
+	}
+
+	/**
+	 * @param subjectCacheSize the subjectCacheSize to set
+	 */
+	public void setSubjectCacheSize(int subjectCacheSize) {
+		this.subjectCacheSize = subjectCacheSize;
+	}
+
+	/**
+	 * @return the duplicateFilter
+	 */
+	public boolean isDuplicateFilter() {
+		return duplicateFilter;
+	}
+
+	/**
+	 * @param duplicateFilter the duplicateFilter to set
+	 */
+	public void setDuplicateFilter(boolean duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+	}
+
+	/**
+	 * @return the duplicateRetentionDays
+	 */
+	public int getDuplicateRetentionDays() {
+		return duplicateRetentionDays;
+	}
+
+	/**
+	 * @param duplicateRetentionDays the duplicateRetentionDays to set
+	 */
+	public void setDuplicateRetentionDays(int duplicateRetentionDays) {
+		this.duplicateRetentionDays = duplicateRetentionDays;
+	}
+
+	/**
+	 * @return the timeZone
+	 */
+	public String getTimeZone() {
+		return timeZone;
+	}
+
+	/**
+	 * @param timeZone the timeZone to set
+	 */
+	public void setTimeZone(String timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * @return the locationPrefixes
+	 */
+	public String getLocationPrefixes() {
+		return locationPrefixes;
+	}
+
+	/**
+	 * @param locationPrefixes the locationPrefixes to set
+	 */
+	public void setLocationPrefixes(String locationPrefixes) {
+		this.locationPrefixes = locationPrefixes;
+	}
+
+	/**
+	 * @return the locationPattern
+	 */
+	public String getLocationPattern() {
+		return locationPattern;
+	}
+
+	/**
+	 * @param locationPattern the locationPattern to set
+	 */
+	public void setLocationPattern(String locationPattern) {
+		this.locationPattern = locationPattern;
+	}
+
+	/**
+	 * @return the metricsReportSeconds
+	 */
+	public int getMetricsReportSeconds() {
+		return metricsReportSeconds;
+	}
+
+	/**
+	 * @param metricsReportSeconds the metricsReportSeconds to set
+	 */
+	public void setMetricsReportSeconds(int metricsReportSeconds) {
+		this.metricsReportSeconds = metricsReportSeconds;
+	}
+
+	/**
+	 * @return the metricsCsv
+	 */
+	public String getMetricsCsv() {
+		return metricsCsv;
+	}
+
+	/**
+	 * @param metricsCsv the metricsCsv to set
+	 */
+	public void setMetricsCsv(String metricsCsv) {
+		this.metricsCsv = metricsCsv;
+	}
+
+	/**
+	 * @return the metricsJmx
+	 */
+	public boolean isMetricsJmx() {
+		return metricsJmx;
+	}
+
+	/**
+	 * @param metricsJmx the metricsJmx to set
+	 */
+	public void setMetricsJmx(boolean metricsJmx) {
+		this.metricsJmx = metricsJmx;
+	}
+
+	/**
+	 * @return the sinks
+	 */
+	public String getSinks() {
+		return sinks;
+	}
+
+	/**
+	 * @param sinks the sinks to set
+	 */
+	public void setSinks(String sinks) {
+		this.sinks = sinks;
+	}
+
+	/**
+	 * @return the telnetHost
+	 */
+	public String getTelnetHost() {
+		return telnetHost;
+	}
+
+	/**
+	 * @param telnetHost the telnetHost to set
+	 */
+	public void setTelnetHost(String telnetHost) {
+		this.telnetHost = telnetHost;
+	}
+
+	/**
+	 * @return the telnetPort
+	 */
+	public int getTelnetPort() {
+		return telnetPort;
+	}
+
+	/**
+	 * @param telnetPort the telnetPort to set
+	 */
+	public void setTelnetPort(int telnetPort) {
+		this.telnetPort = telnetPort;
+	}
+
+	/**
+	 * @return the exportDir
+	 */
+	public String getExportDir() {
+		return exportDir;
+	}
+
+	/**
+	 * @param exportDir the exportDir to set
+	 */
+	public void setExportDir(String exportDir) {
+		this.exportDir = exportDir;
+	}
+
+	/**
+	 * @return the exportFormat
+	 */
+	public String getExportFormat() {
+		return exportFormat;
+	}
+
+	/**
+	 * @param exportFormat the exportFormat to set
+	 */
+	public void setExportFormat(String exportFormat) {
+		this.exportFormat = exportFormat;
+	}
+
+	/**
+	 * @return the exportGzip
+	 */
+	public boolean isExportGzip() {
+		return exportGzip;
+	}
+
+	/**
+	 * @param exportGzip the exportGzip to set
+	 */
+	public void setExportGzip(boolean exportGzip) {
+		this.exportGzip = exportGzip;
+	}
+
+	/**
+	 * @return the seriesBufferPoints
+	 */
+	public int getSeriesBufferPoints() {
+		return seriesBufferPoints;
+	}
+
+	/**
+	 * @param seriesBufferPoints the seriesBufferPoints to set
+	 */
+	public void setSeriesBufferPoints(int seriesBufferPoints) {
+		this.seriesBufferPoints = seriesBufferPoints;
+	}
+
 }
@@ -1,11 +1,30 @@
 package org.cvrgrid.hl7.fileparse.model;
 
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
+import java.util.Collection;
 
 public class PatientInfo {
 
+	/**
+	 * The names of every location and variable, shared by all subjects.
+	 */
+	public static final NameDictionary LOCATION_NAMES = new NameDictionary();
+	public static final NameDictionary VARIABLE_NAMES = new NameDictionary();
+
+	private static final char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+	private static final ThreadLocal<MessageDigest> SHA_256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	};
+
 	private final long serialVersionUID = 6721093052749142738L;
 	private String firstName = "";
 	private String lastName = "";
@@ -14,8 +33,8 @@ public class PatientInfo {
 	private String birthplace = "";
 	private String concatenation = "";
 	private String hash = "";
-	private LinkedList<String> variables = new LinkedList<String>();
-	private LinkedList<String> locations = new LinkedList<String>();
+	private final NameSet variables = new NameSet(VARIABLE_NAMES);
+	private final NameSet locations = new NameSet(LOCATION_NAMES);
 	private boolean picuSubject = false;
 	private String earliestDataPoint = "";
 
@@ -131,33 +150,35 @@ public class PatientInfo {
 	 */
 	public String getHash() {
 		if (hash.equalsIgnoreCase(""))
-			hash = setHash(this.getConcatenation());
+			hash = hashOf(this.getConcatenation());
 		return hash;
 	}
 
 
 	/**
-	 * @param hash the hash to set
+	 * @param hash the hash to set, which must be hashOf the concatenation of this subject's fields
 	 */
-	private String setHash(String hash) {
-		try {
-			MessageDigest sha = MessageDigest.getInstance("SHA-256");
-			byte[] result =  sha.digest(concatenation.getBytes());
-			hash = hexEncode(result);
-			hash = escapeHtml(hash);
-			//System.out.println("Message digest: " + hash);
-		}
-		catch ( NoSuchAlgorithmException ex ) {
-			System.err.println(ex);
-		}
-		return hash;
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
 
+	/**
+	 * Works out the subject hash: the SHA-256 of the concatenated demographic fields, in lower case hex.
+	 * Hex never holds the characters escapeHtml used to replace, so the value is the same as it always was.
+	 *
+	 * @param concatenation the first name, last name, birth date/time, gender and birthplace, joined
+	 * @return the hash
+	 */
+	public static String hashOf(String concatenation) {
+		MessageDigest sha = SHA_256.get();
+		return hexEncode(sha.digest(concatenation.getBytes(Charset.defaultCharset())));
 	}
 	
 	/**
-	 * @return the variables
+	 * @return the variables, in the order they were first seen
 	 */
-	public LinkedList<String> getVariables() {
+	public NameSet getVariables() {
 		return variables;
 	}
 
@@ -165,14 +186,17 @@ public class PatientInfo {
 	/**
 	 * @param variables the variables to set
 	 */
-	public void setVariables(LinkedList<String> variables) {
-		this.variables = variables;
+	public void setVariables(Collection<String> variables) {
+		if (variables == this.variables)
+			return;
+		this.variables.clear();
+		this.variables.addAll(variables);
 	}
 
 	/**
-	 * @return the locations
+	 * @return the locations, in the order they were first seen
 	 */
-	public LinkedList<String> getLocations() {
+	public NameSet getLocations() {
 		return locations;
 	}
 
@@ -180,8 +204,11 @@ public class PatientInfo {
 	/**
 	 * @param locations the locations to set
 	 */
-	public void setLocations(LinkedList<String> locations) {
-		this.locations = locations;
+	public void setLocations(Collection<String> locations) {
+		if (locations == this.locations)
+			return;
+		this.locations.clear();
+		this.locations.addAll(locations);
 	}
 
 
@@ -217,6 +244,22 @@ public class PatientInfo {
 	}
 
 
+	/**
+	 * Adds what another record of the same subject knows: locations and variables not yet listed, in
+	 * their order, the PICU flag and the earliest data point when this record has none.
+	 *
+	 * @param other a record with the same hash
+	 */
+	public void merge(PatientInfo other) {
+		locations.addAll(other.getLocations());
+		variables.addAll(other.getVariables());
+		if (other.isPicuSubject())
+			picuSubject = true;
+		if (earliestDataPoint.equalsIgnoreCase(""))
+			earliestDataPoint = other.getEarliestDataPoint();
+	}
+
+
 	/**
 	 * The byte[] returned by MessageDigest does not have a nice
 	 * textual representation, so some form of encoding is usually performed.
@@ -227,30 +270,14 @@ public class PatientInfo {
 	 *
 	 * Another popular alternative is to use a "Base64" encoding.
 	 **/
-	private String hexEncode( byte[] aInput){
-		StringBuilder result = new StringBuilder();
-		char[] digits = {'0', '1', '2', '3', '4','5','6','7','8','9','a','b','c','d','e','f'};
+	private static String hexEncode( byte[] aInput){
+		char[] result = new char[aInput.length * 2];
 		for ( int idx = 0; idx < aInput.length; ++idx) {
 			byte b = aInput[idx];
-			result.append( digits[ (b&0xf0) >> 4 ] );
-			result.append( digits[ b&0x0f] );
+			result[idx * 2] = HEX_DIGITS[ (b&0xf0) >> 4 ];
+			result[idx * 2 + 1] = HEX_DIGITS[ b&0x0f];
 		}
-		return result.toString();
+		return new String(result);
 	} 
 
-	/**
-	 * Escape an html string. Escaping data received from the client helps to
-	 * prevent cross-site script vulnerabilities.
-	 * 
-	 * @param html the html string to escape
-	 * @return the escaped string
-	 **/
-
-	private String escapeHtml(String html) {
-		if (html == null) {
-			return null;
-		}
-		return html.replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll(">", "&gt;");
-	}
-
 }
@@ -0,0 +1,248 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.normalize;
+
+/*
+ * This class turns an observation identifier (OBX-3) and its units (OBX-6) into the OpenTSDB metric name
+ * vitals.<units>.<name> and the variable name recorded for the subject.  The translation table comes from
+ * the awareSupportedParams workbook through HL7Measurements.  The name and units rewriting is the same
+ * sequence of replacements the loader has always applied, with the patterns compiled once, and every
+ * result is cached per (identifier, units) pair, so an observation normally costs two hash lookups and
+ * no string work.  An identifier that is not in the table is cached too, as a negative entry, so repeats
+ * of it skip the digit pattern lookup as well, and it is logged the first time it is seen rather than for
+ * every observation.  The cache is cleared if it ever grows past its bound, which only happens if a feed
+ * sends an unexpected variety of units.  The class is safe to share between threads.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+
+public class SeriesNameNormalizer {
+
+	private static final String NO_UNITS = "\u0000";
+	private static final NormalizedSeries UNKNOWN = new NormalizedSeries();
+	private static final Pattern FIRST_DIGIT = Pattern.compile("\\d");
+	private static final Pattern PARENTHESES = Pattern.compile("[\\(\\)]");
+	private static final String[][] UNIT_REPLACEMENTS = {
+		{":", ""},
+		{"cm_h2o", "cmH2O"},
+		{"\\(min/m2\\)", "MinPerMeterSquared"},
+		{"l", "liters"},
+		{"mliters", "milliliters"},
+		{"g.m", "gramMeters"},
+		{"dyn.sec.cm-5", "dyneSecondsPerQuinticCentimeter"},
+		{"dyneSecondsPerQuinticCentimeter.m2", "dyneSecondsPerQuinticCentimeterPerMeterSquared"},
+		{"m2", "MeterSquared"},
+		{"min", "Min"},
+		{"/", "Per"},
+		{"%", "percent"},
+		{"#", "Count"},
+		{"celiters", "Celsius"},
+		{"mm\\(hg\\)", "mmHg"}
+	};
+	private static final Pattern[] UNIT_PATTERNS = new Pattern[UNIT_REPLACEMENTS.length];
+	private static final String[] UNIT_VALUES = new String[UNIT_REPLACEMENTS.length];
+
+	static {
+		for (int i = 0; i < UNIT_REPLACEMENTS.length; i++) {
+			UNIT_PATTERNS[i] = Pattern.compile(UNIT_REPLACEMENTS[i][0]);
+			UNIT_VALUES[i] = Matcher.quoteReplacement(UNIT_REPLACEMENTS[i][1]);
+		}
+	}
+
+	private final Map<String,String> measurementNames;
+	private final int maxEntries;
+	private final ConcurrentMap<String,ConcurrentMap<String,NormalizedSeries>> cache = new ConcurrentHashMap<String,ConcurrentMap<String,NormalizedSeries>>();
+	private final AtomicInteger cacheSize = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong unknown = new AtomicLong();
+
+	/**
+	 * @param measurementNames the HL7 identifier to measurement name table, which must not change afterwards
+	 * @param maxEntries the most (identifier, units) pairs to cache
+	 */
+	public SeriesNameNormalizer(Map<String,String> measurementNames, int maxEntries) {
+		this.measurementNames = measurementNames;
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @param observationId OBX-3
+	 * @param units OBX-6, may be null
+	 * @return the metric and variable names, or null when the identifier is not in the translation table
+	 */
+	public NormalizedSeries normalize(String observationId, String units) {
+		if (observationId == null) {
+			unknown.incrementAndGet();
+			return null;
+		}
+		String unitsKey = (units == null) ? NO_UNITS : units;
+		ConcurrentMap<String,NormalizedSeries> byUnits = cache.get(observationId);
+		if (byUnits != null) {
+			NormalizedSeries series = byUnits.get(unitsKey);
+			if (series == UNKNOWN) {
+				hits.incrementAndGet();
+				unknown.incrementAndGet();
+				return null;
+			}
+			if (series != null) {
+				hits.incrementAndGet();
+				return series;
+			}
+		}
+		misses.incrementAndGet();
+		String measurementName = lookupName(observationId);
+		NormalizedSeries series;
+		if (measurementName == null) {
+			unknown.incrementAndGet();
+			// an identifier with no entry yet is new, or new since the cache was last cleared
+			if (byUnits == null)
+				System.out.println("     Unknown observation: " + observationId);
+			series = UNKNOWN;
+		} else {
+			String variable = StringUtils.uncapitalize(toVariableName(measurementName));
+			String metric = ("vitals." + StringUtils.uncapitalize(normalizeUnits(units)) + "." + variable).trim();
+			series = new NormalizedSeries(metric, variable);
+		}
+		if (cacheSize.incrementAndGet() > maxEntries) {
+			cache.clear();
+			cacheSize.set(1);
+		}
+		if (byUnits == null) {
+			ConcurrentMap<String,NormalizedSeries> created = new ConcurrentHashMap<String,NormalizedSeries>();
+			byUnits = cache.putIfAbsent(observationId, created);
+			if (byUnits == null)
+				byUnits = created;
+		}
+		if (byUnits.putIfAbsent(unitsKey, series) != null)
+			cacheSize.decrementAndGet();
+		return (series == UNKNOWN) ? null : series;
+	}
+
+	private String lookupName(String observationId) {
+		String name = measurementNames.get(observationId);
+		if (name == null)
+			name = measurementNames.get(FIRST_DIGIT.matcher(observationId).replaceFirst("#"));
+		return name;
+	}
+
+	private static String toVariableName(String measurementName) {
+		StringBuilder buff = new StringBuilder();
+		String[] tokens = measurementName.split(" ");
+		for (String token : tokens) {
+			buff.append(StringUtils.capitalize(PARENTHESES.matcher(token).replaceAll("")));
+		}
+		return buff.toString();
+	}
+
+	private static String normalizeUnits(String units) {
+		if (units == null)
+			return "percent";
+		for (int i = 0; i < UNIT_PATTERNS.length; i++) {
+			units = UNIT_PATTERNS[i].matcher(units).replaceAll(UNIT_VALUES[i]);
+		}
+		return units;
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache, including those for unknown identifiers
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that had to compute the name
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of observations whose identifier was not in the translation table
+	 */
+	public long getUnknown() {
+		return unknown.get();
+	}
+
+	/**
+	 * @return the number of cached (identifier, units) pairs
+	 */
+	public int getCacheSize() {
+		return cacheSize.get();
+	}
+
+	/*
+	 * The metric name an observation is stored under and the variable name recorded for the subject.
+	 */
+	public static class NormalizedSeries {
+
+		private final String metric;
+		private final String variable;
+		private final int variableId;
+
+		public NormalizedSeries(String metric, String variable) {
+			this.metric = metric;
+			this.variable = variable;
+			this.variableId = PatientInfo.VARIABLE_NAMES.idOf(variable);
+		}
+
+		/*
+		 * The negative entry cached for an identifier not in the translation table.
+		 */
+		private NormalizedSeries() {
+			this.metric = null;
+			this.variable = null;
+			this.variableId = -1;
+		}
+
+		/**
+		 * @return the OpenTSDB metric name
+		 */
+		public String getMetric() {
+			return metric;
+		}
+
+		/**
+		 * @return the variable name recorded in the subject's variable list
+		 */
+		public String getVariable() {
+			return variable;
+		}
+
+		/**
+		 * @return the id of the variable name in PatientInfo.VARIABLE_NAMES
+		 */
+		public int getVariableId() {
+			return variableId;
+		}
+
+	}
+
+}
@@ -0,0 +1,273 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.parser;
+
+/*
+ * ObservationMessage that scans the raw message text on the |, ^, ~, & and segment delimiters instead
+ * of building the HAPI object model.  The message is copied into a buffer that is reused from message
+ * to message, and only the start and end offsets of the fields the loader reads are recorded, so a
+ * String is created only when a getter is called.  The instance is therefore only valid until the next
+ * call to scan.
+ *
+ * The scanner deliberately handles only the common case: default encoding characters, no escape
+ * sequences and a single patient with segments in the order ORU^R01 defines.  For anything else scan
+ * returns false and the caller is expected to fall back to HAPI.  Given a LocationFilter, the scanner stops
+ * at PV1 when the location is not accepted, leaving the message with no observation time or observations.
+ */
+
+public class FastObservationScanner implements ObservationMessage {
+
+	private static final int FIRST_NAME = 0;
+	private static final int LAST_NAME = 1;
+	private static final int BIRTH_DATE_TIME = 2;
+	private static final int GENDER = 3;
+	private static final int BIRTHPLACE = 4;
+	private static final int LOCATION = 5;
+	private static final int OBSERVATION_TIME = 6;
+	private static final int HEADER_FIELDS = 7;
+	private static final int OBX_SPAN = 6;
+
+	private final LocationFilter locationFilter;
+	private char[] buffer = new char[8192];
+	private final int[] headerSpans = new int[HEADER_FIELDS * 2];
+	private int[] observationSpans = new int[OBX_SPAN * 32];
+	private int observationCount = 0;
+	private int spanStart;
+	private int spanEnd;
+
+	/**
+	 * @param locationFilter the filter of locations to stop at, or null to scan every message in full
+	 */
+	public FastObservationScanner(LocationFilter locationFilter) {
+		this.locationFilter = locationFilter;
+	}
+
+	/**
+	 * Scans one message.
+	 *
+	 * @param message the raw message text, segments separated by carriage returns
+	 * @return true if the message was scanned, false if it has to be parsed by HAPI instead
+	 */
+	public boolean scan(String message) {
+		int length = message.length();
+		if (length < 9)
+			return false;
+		if (buffer.length < length)
+			buffer = new char[Math.max(length, buffer.length * 2)];
+		message.getChars(0, length, buffer, 0);
+		char[] b = buffer;
+		if (b[0] != 'M' || b[1] != 'S' || b[2] != 'H' || b[3] != '|' || b[4] != '^' || b[5] != '~' || b[6] != '\\' || b[7] != '&' || b[8] != '|')
+			return false;
+		for (int i = 9; i < length; i++) {
+			if (b[i] == '\\')
+				return false;
+		}
+		for (int i = 0; i < headerSpans.length; i++) {
+			headerSpans[i] = -1;
+		}
+		observationCount = 0;
+		boolean seenPID = false;
+		boolean seenPV1 = false;
+		boolean seenOBR = false;
+		boolean firstOrder = true;
+		int segmentStart = 0;
+		while (segmentStart < length) {
+			int segmentEnd = segmentStart;
+			while (segmentEnd < length && b[segmentEnd] != '\r' && b[segmentEnd] != '\n') {
+				segmentEnd++;
+			}
+			int segmentLength = segmentEnd - segmentStart;
+			if (segmentLength > 0) {
+				if (segmentLength < 3 || (segmentLength > 3 && b[segmentStart + 3] != '|'))
+					return false;
+				char c0 = b[segmentStart];
+				char c1 = b[segmentStart + 1];
+				char c2 = b[segmentStart + 2];
+				if (c0 == 'O' && c1 == 'B' && c2 == 'X') {
+					if (!seenOBR)
+						return false;
+					if (firstOrder)
+						addObservation(segmentStart, segmentEnd);
+				} else if (c0 == 'O' && c1 == 'B' && c2 == 'R') {
+					if (seenOBR) {
+						firstOrder = false;
+					} else {
+						seenOBR = true;
+						setHeaderSpan(OBSERVATION_TIME, segmentStart, segmentEnd, 7, 1);
+					}
+				} else if (c0 == 'P' && c1 == 'I' && c2 == 'D') {
+					if (seenPID || seenOBR)
+						return false;
+					seenPID = true;
+					setHeaderSpan(FIRST_NAME, segmentStart, segmentEnd, 5, 2);
+					setHeaderSpan(LAST_NAME, segmentStart, segmentEnd, 5, 1);
+					setHeaderSpan(BIRTH_DATE_TIME, segmentStart, segmentEnd, 7, 1);
+					setHeaderSpan(GENDER, segmentStart, segmentEnd, 8, 1);
+					setHeaderSpan(BIRTHPLACE, segmentStart, segmentEnd, 23, 1);
+				} else if (c0 == 'P' && c1 == 'V' && c2 == '1') {
+					if (seenPV1 || !seenPID || seenOBR)
+						return false;
+					seenPV1 = true;
+					setHeaderSpan(LOCATION, segmentStart, segmentEnd, 3, 1);
+					// the rest of a message from a location that is not loaded is never looked at
+					if (locationFilter != null && !locationFilter.accepts(header(LOCATION)))
+						return true;
+				} else if (c0 == 'M' && c1 == 'S' && c2 == 'H') {
+					if (segmentStart != 0)
+						return false;
+				} else if (!isSkippable(c0, c1, c2)) {
+					return false;
+				}
+			}
+			segmentStart = segmentEnd + 1;
+		}
+		return true;
+	}
+
+	private static boolean isSkippable(char c0, char c1, char c2) {
+		return (c0 == 'N' && c1 == 'T' && c2 == 'E') || (c0 == 'P' && c1 == 'D' && c2 == '1')
+				|| (c0 == 'P' && c1 == 'V' && c2 == '2') || (c0 == 'O' && c1 == 'R' && c2 == 'C');
+	}
+
+	private void addObservation(int segmentStart, int segmentEnd) {
+		int offset = observationCount * OBX_SPAN;
+		if (offset + OBX_SPAN > observationSpans.length) {
+			int[] grown = new int[observationSpans.length * 2];
+			System.arraycopy(observationSpans, 0, grown, 0, observationSpans.length);
+			observationSpans = grown;
+		}
+		locate(segmentStart, segmentEnd, 3, 1);
+		observationSpans[offset] = spanStart;
+		observationSpans[offset + 1] = spanEnd;
+		locate(segmentStart, segmentEnd, 5, 1);
+		observationSpans[offset + 2] = spanStart;
+		observationSpans[offset + 3] = spanEnd;
+		locate(segmentStart, segmentEnd, 6, 1);
+		observationSpans[offset + 4] = spanStart;
+		observationSpans[offset + 5] = spanEnd;
+		observationCount++;
+	}
+
+	private void setHeaderSpan(int header, int segmentStart, int segmentEnd, int field, int component) {
+		locate(segmentStart, segmentEnd, field, component);
+		headerSpans[header * 2] = spanStart;
+		headerSpans[header * 2 + 1] = spanEnd;
+	}
+
+	/**
+	 * Finds the first subcomponent of the given component in the first repetition of the given field,
+	 * leaving its offsets in spanStart and spanEnd, or -1 in spanStart when it is empty.
+	 */
+	private void locate(int segmentStart, int segmentEnd, int field, int component) {
+		char[] b = buffer;
+		int position = segmentStart + 3;
+		int fieldCount = 0;
+		while (fieldCount < field) {
+			if (position >= segmentEnd) {
+				spanStart = -1;
+				return;
+			}
+			if (b[position] == '|')
+				fieldCount++;
+			position++;
+		}
+		int componentCount = 1;
+		while (componentCount < component) {
+			if (position >= segmentEnd || b[position] == '|' || b[position] == '~') {
+				spanStart = -1;
+				return;
+			}
+			if (b[position] == '^')
+				componentCount++;
+			position++;
+		}
+		int end = position;
+		while (end < segmentEnd && b[end] != '|' && b[end] != '~' && b[end] != '^' && b[end] != '&') {
+			end++;
+		}
+		if (end == position) {
+			spanStart = -1;
+			return;
+		}
+		spanStart = position;
+		spanEnd = end;
+	}
+
+	private String header(int header) {
+		int start = headerSpans[header * 2];
+		if (start < 0)
+			return null;
+		return new String(buffer, start, headerSpans[header * 2 + 1] - start);
+	}
+
+	private String observation(int index, int part) {
+		if (index < 0 || index >= observationCount)
+			throw new IndexOutOfBoundsException("Observation " + index + " of " + observationCount);
+		int start = observationSpans[index * OBX_SPAN + part];
+		if (start < 0)
+			return null;
+		return new String(buffer, start, observationSpans[index * OBX_SPAN + part + 1] - start);
+	}
+
+	public String getFirstName() {
+		return header(FIRST_NAME);
+	}
+
+	public String getLastName() {
+		return header(LAST_NAME);
+	}
+
+	public String getBirthDateTime() {
+		return header(BIRTH_DATE_TIME);
+	}
+
+	public String getGender() {
+		return header(GENDER);
+	}
+
+	public String getBirthplace() {
+		return header(BIRTHPLACE);
+	}
+
+	public String getLocation() {
+		return header(LOCATION);
+	}
+
+	public String getObservationTime() {
+		return header(OBSERVATION_TIME);
+	}
+
+	public int getObservationCount() {
+		return observationCount;
+	}
+
+	public String getObservationId(int index) {
+		return observation(index, 0);
+	}
+
+	public String getObservationValue(int index) {
+		return observation(index, 2);
+	}
+
+	public String getObservationUnits(int index) {
+		return observation(index, 4);
+	}
+
+}
@@ -0,0 +1,167 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.parser;
+
+/*
+ * This class splits an HL7 file into messages the same way as HAPI's Hl7InputStreamMessageStringIterator,
+ * but works on the bytes, so it knows the byte offset at which each message ends.  Those offsets are what
+ * lets the loader checkpoint its place in a large file and later carry on reading from there.  As in HAPI,
+ * the first message starts at the first MSH in the file and every other message at an MSH that follows a
+ * control character, and a line feed becomes a carriage return unless it follows one.  The rules only look
+ * at ASCII bytes, which are never part of a multi-byte character in the charsets HL7 files are written in,
+ * so the messages are decoded one at a time.  The checksum given is updated with every byte read, up to
+ * the end of the last message returned, so at any message boundary it covers the file up to that offset.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Checksum;
+
+public class HL7MessageReader {
+
+	private final InputStream in;
+	private final Charset charset;
+	private final Checksum checksum;
+	private byte[] buffer = new byte[65536];
+	private long bufferOffset;
+	private int limit = 0;
+	private int consumed = 0;
+	private int messageStart = -1;
+	private int scan = 0;
+	private boolean eof = false;
+
+	/**
+	 * @param in the stream, positioned at a message boundary
+	 * @param startOffset the offset in the file the stream is positioned at
+	 * @param charset the charset of the file
+	 * @param checksum the checksum of the file up to startOffset, updated as the file is read
+	 */
+	public HL7MessageReader(InputStream in, long startOffset, Charset charset, Checksum checksum) {
+		this.in = in;
+		this.bufferOffset = startOffset;
+		this.charset = charset;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @return the next message, or null at the end of the file
+	 */
+	public String next() throws IOException {
+		return next(true);
+	}
+
+	/**
+	 * Returns the next message.  A message is only known to be complete once the next MSH is seen, so a
+	 * file that is still being written can hold back the last one until the writer is finished with it.
+	 *
+	 * @param takeLast true to return the message at the end of the stream, false to leave it unread
+	 * @return the next message, or null at the end of the stream
+	 */
+	public String next(boolean takeLast) throws IOException {
+		while (true) {
+			while (scan + 2 < limit) {
+				if (buffer[scan] == 'M' && buffer[scan + 1] == 'S' && buffer[scan + 2] == 'H') {
+					if (messageStart < 0) {
+						messageStart = scan;
+					} else if (scan > messageStart && (buffer[scan - 1] & 0xff) < ' ') {
+						String message = decode(messageStart, scan);
+						consume(scan);
+						messageStart = scan;
+						scan += 3;
+						return message;
+					}
+				}
+				scan++;
+			}
+			if (eof) {
+				if (!takeLast)
+					return null;
+				if (messageStart < 0) {
+					consume(limit);
+					return null;
+				}
+				String message = decode(messageStart, limit);
+				consume(limit);
+				messageStart = -1;
+				scan = limit;
+				return message;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * @return the offset in the file just past the last message returned
+	 */
+	public long getOffset() {
+		return bufferOffset + consumed;
+	}
+
+	private void consume(int end) {
+		checksum.update(buffer, consumed, end - consumed);
+		consumed = end;
+	}
+
+	private void fill() throws IOException {
+		if (messageStart < 0 && scan > consumed) {
+			// nothing before the first MSH is kept, so a file without messages does not fill the memory
+			consume(scan);
+		}
+		int keep = consumed;
+		if (keep > 0) {
+			System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+			limit -= keep;
+			scan -= keep;
+			if (messageStart >= 0)
+				messageStart -= keep;
+			consumed = 0;
+			bufferOffset += keep;
+		}
+		if (limit == buffer.length) {
+			byte[] larger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, larger, 0, limit);
+			buffer = larger;
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read < 0)
+			eof = true;
+		else
+			limit += read;
+	}
+
+	private String decode(int start, int end) {
+		String raw = new String(buffer, start, end - start, charset);
+		if (raw.indexOf('\n') < 0)
+			return raw;
+		StringBuilder message = new StringBuilder(raw.length());
+		for (int i = 0; i < raw.length(); i++) {
+			char c = raw.charAt(i);
+			if (c == '\n') {
+				if (message.length() > 0 && message.charAt(message.length() - 1) != '\r')
+					message.append('\r');
+			} else {
+				message.append(c);
+			}
+		}
+		return message.toString();
+	}
+
+}
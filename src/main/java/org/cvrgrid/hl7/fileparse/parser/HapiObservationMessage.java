@@ -0,0 +1,114 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.parser;
+
+/*
+ * ObservationMessage backed by the HAPI v2.3 ORU_R01 object model.  Every field is read once through the
+ * Terser when the message is wrapped, so callers never walk the structure twice for the same value.
+ */
+
+import java.util.List;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v23.group.ORU_R01_OBSERVATION;
+import ca.uhn.hl7v2.model.v23.message.ORU_R01;
+import ca.uhn.hl7v2.model.v23.segment.PID;
+import ca.uhn.hl7v2.model.v23.segment.PV1;
+import ca.uhn.hl7v2.util.Terser;
+
+public class HapiObservationMessage implements ObservationMessage {
+
+	private final String firstName;
+	private final String lastName;
+	private final String birthDateTime;
+	private final String gender;
+	private final String birthplace;
+	private final String location;
+	private final String observationTime;
+	private final String[] observationIds;
+	private final String[] observationValues;
+	private final String[] observationUnits;
+
+	public HapiObservationMessage(ORU_R01 oru) throws HL7Exception {
+		PID pid = oru.getRESPONSE().getPATIENT().getPID();
+		PV1 pv1 = oru.getRESPONSE().getPATIENT().getVISIT().getPV1();
+		firstName = Terser.get(pid, 5, 0, 2, 1);
+		lastName = Terser.get(pid, 5, 0, 1, 1);
+		birthDateTime = Terser.get(pid, 7, 0, 1, 1);
+		gender = Terser.get(pid, 8, 0, 1, 1);
+		birthplace = Terser.get(pid, 23, 0, 1, 1);
+		location = Terser.get(pv1, 3, 0, 1, 1);
+		observationTime = Terser.get(oru.getRESPONSE().getORDER_OBSERVATION().getOBR(), 7, 0, 1, 1);
+		List<ORU_R01_OBSERVATION> observations = oru.getRESPONSE().getORDER_OBSERVATION().getOBSERVATIONAll();
+		observationIds = new String[observations.size()];
+		observationValues = new String[observations.size()];
+		observationUnits = new String[observations.size()];
+		for (int i = 0; i < observations.size(); i++) {
+			observationIds[i] = Terser.get(observations.get(i).getOBX(), 3, 0, 1, 1);
+			observationValues[i] = Terser.get(observations.get(i).getOBX(), 5, 0, 1, 1);
+			observationUnits[i] = Terser.get(observations.get(i).getOBX(), 6, 0, 1, 1);
+		}
+	}
+
+	public String getFirstName() {
+		return firstName;
+	}
+
+	public String getLastName() {
+		return lastName;
+	}
+
+	public String getBirthDateTime() {
+		return birthDateTime;
+	}
+
+	public String getGender() {
+		return gender;
+	}
+
+	public String getBirthplace() {
+		return birthplace;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getObservationTime() {
+		return observationTime;
+	}
+
+	public int getObservationCount() {
+		return observationIds.length;
+	}
+
+	public String getObservationId(int index) {
+		return observationIds[index];
+	}
+
+	public String getObservationValue(int index) {
+		return observationValues[index];
+	}
+
+	public String getObservationUnits(int index) {
+		return observationUnits[index];
+	}
+
+}
@@ -0,0 +1,118 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.parser;
+
+/*
+ * This class decides from the location of a message, PV1-3.1, whether the message is loaded at all.  A
+ * location is accepted if it starts with one of the configured prefixes or if the whole of it matches the
+ * configured regular expression.  The fast scanner asks as soon as it has read PV1 and stops there for a
+ * location that is not accepted, so the observations of other units are never scanned, normalized or sent
+ * to OpenTSDB, and no subject is recorded for them.  The messages turned away are counted for each
+ * location, so the loader can report what was left out.  The filter is safe to share between threads.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+public class LocationFilter {
+
+	private final String[] prefixes;
+	private final Pattern pattern;
+	private final ConcurrentHashMap<String,AtomicLong> filtered = new ConcurrentHashMap<String,AtomicLong>();
+	private final AtomicLong filteredCount = new AtomicLong();
+
+	/**
+	 * @param prefixes the location prefixes to accept, separated by commas
+	 * @param pattern a regular expression for the locations to accept, or empty
+	 */
+	public LocationFilter(String prefixes, String pattern) {
+		List<String> list = new ArrayList<String>();
+		for (String prefix : prefixes.split(",")) {
+			if (prefix.trim().length() > 0)
+				list.add(prefix.trim());
+		}
+		this.prefixes = list.toArray(new String[list.size()]);
+		this.pattern = (pattern.trim().length() > 0) ? Pattern.compile(pattern.trim()) : null;
+	}
+
+	/**
+	 * @return true if a prefix or a pattern was given, so that some locations are turned away
+	 */
+	public boolean isActive() {
+		return prefixes.length > 0 || pattern != null;
+	}
+
+	/**
+	 * @param location PV1-3.1 of a message, which may be null
+	 * @return true if the messages of the location are loaded
+	 */
+	public boolean accepts(String location) {
+		if (!isActive())
+			return true;
+		if (location == null)
+			return false;
+		for (String prefix : prefixes) {
+			if (location.startsWith(prefix))
+				return true;
+		}
+		return pattern != null && pattern.matcher(location).matches();
+	}
+
+	/**
+	 * Counts a message turned away because of its location.
+	 */
+	public void countFiltered(String location) {
+		String key = (location == null) ? "" : location;
+		AtomicLong count = filtered.get(key);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = filtered.putIfAbsent(key, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+		filteredCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of messages turned away
+	 */
+	public long getFilteredCount() {
+		return filteredCount.get();
+	}
+
+	/**
+	 * @return the number of messages turned away for each location, in order of location, with an empty
+	 *         location standing for messages without one
+	 */
+	public Map<String,Long> getFilteredByLocation() {
+		TreeMap<String,Long> counts = new TreeMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> entry : filtered.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+}
@@ -0,0 +1,87 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.parser;
+
+/*
+ * The fixed subset of an ORU^R01 message that the loader reads: the patient demographics used to build
+ * the subject hash (PID-5/7/8/23), the location (PV1-3), the observation time (OBR-7) and the identifier,
+ * value and units of every observation (OBX-3/5/6).  Each value is the first component of the first
+ * repetition of its field, exactly as Terser.get(segment, field, 0, component, 1) returns it, and is null
+ * when the field is empty.
+ */
+
+public interface ObservationMessage {
+
+	/**
+	 * @return PID-5.2
+	 */
+	public String getFirstName();
+
+	/**
+	 * @return PID-5.1
+	 */
+	public String getLastName();
+
+	/**
+	 * @return PID-7.1
+	 */
+	public String getBirthDateTime();
+
+	/**
+	 * @return PID-8.1
+	 */
+	public String getGender();
+
+	/**
+	 * @return PID-23.1
+	 */
+	public String getBirthplace();
+
+	/**
+	 * @return PV1-3.1
+	 */
+	public String getLocation();
+
+	/**
+	 * @return OBR-7.1
+	 */
+	public String getObservationTime();
+
+	/**
+	 * @return the number of OBX segments in the first order observation
+	 */
+	public int getObservationCount();
+
+	/**
+	 * @return OBX-3.1 of the given observation
+	 */
+	public String getObservationId(int index);
+
+	/**
+	 * @return OBX-5.1 of the given observation
+	 */
+	public String getObservationValue(int index);
+
+	/**
+	 * @return OBX-6.1 of the given observation
+	 */
+	public String getObservationUnits(int index);
+
+}
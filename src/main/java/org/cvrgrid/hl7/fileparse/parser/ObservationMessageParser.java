@@ -0,0 +1,79 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.parser;
+
+/*
+ * Turns raw message text into an ObservationMessage according to the configured parser mode.  In "hapi"
+ * mode every message is parsed into the v2.3 ORU_R01 structure.  In "fast" mode the FastObservationScanner
+ * is tried first and HAPI is only used for the messages the scanner declines, and the scanner stops early
+ * for the messages of locations the LocationFilter turns away.  A parser is not thread
+ * safe, and the message it returns is only valid until the next call to parse.
+ */
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v23.message.ORU_R01;
+
+public class ObservationMessageParser {
+
+	public static final String MODE_HAPI = "hapi";
+	public static final String MODE_FAST = "fast";
+
+	private final FastObservationScanner scanner;
+	private long scannedCount = 0;
+	private long hapiCount = 0;
+
+	/**
+	 * @param parserMode either MODE_HAPI or MODE_FAST
+	 * @param locationFilter the filter of locations to load, or null to load every location
+	 */
+	public ObservationMessageParser(String parserMode, LocationFilter locationFilter) {
+		if (MODE_FAST.equalsIgnoreCase(parserMode)) {
+			scanner = new FastObservationScanner(locationFilter);
+		} else {
+			scanner = null;
+		}
+	}
+
+	public ObservationMessage parse(String message) throws HL7Exception {
+		if (scanner != null && scanner.scan(message)) {
+			scannedCount++;
+			return scanner;
+		}
+		ORU_R01 oru = new ORU_R01();
+		oru.parse(message);
+		hapiCount++;
+		return new HapiObservationMessage(oru);
+	}
+
+	/**
+	 * @return the number of messages handled by the fast scanner
+	 */
+	public long getScannedCount() {
+		return scannedCount;
+	}
+
+	/**
+	 * @return the number of messages parsed by HAPI
+	 */
+	public long getHapiCount() {
+		return hapiCount;
+	}
+
+}
@@ -0,0 +1,222 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.parser;
+
+/*
+ * This class turns the observation time of a message, OBR-7 in the yyyyMMddHHmmss layout, into epoch
+ * milliseconds, and epoch milliseconds into the yyyy-MM-dd HH:mm:ss text the lookup workbook shows.  It
+ * reads the digits itself and works out the day number with integer arithmetic, so no Date or Calendar is
+ * made for each message, and it holds nothing that changes, so one parser can be shared by every thread.
+ *
+ * A time is taken to be in the time zone the parser is given, which is the zone of the gateway that sent
+ * it.  Fractions of a second after the seconds are kept to the millisecond, and an offset such as -0500
+ * after them, as HL7 allows, is used in place of the zone.  Anything else after the seconds is ignored, as
+ * SimpleDateFormat did.  A wall clock time that happens twice when the clocks go back is taken as the second
+ * one, and a time skipped when the clocks go forward is moved on by the size of the gap, as the lenient
+ * Calendar behind SimpleDateFormat did.
+ */
+
+import java.text.ParseException;
+import java.util.TimeZone;
+
+public class ObservationTimeParser {
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+	private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	private final TimeZone timeZone;
+
+	/**
+	 * @param timeZone the zone of times sent without an offset
+	 */
+	public ObservationTimeParser(TimeZone timeZone) {
+		// a TimeZone can be changed through its setters, so the parser keeps a copy of its own
+		this.timeZone = (TimeZone) timeZone.clone();
+	}
+
+	/**
+	 * @param timeZoneId the id of the zone of times sent without an offset, or empty for the zone of the JVM
+	 */
+	public static ObservationTimeParser forZone(String timeZoneId) {
+		if (timeZoneId == null || timeZoneId.isEmpty())
+			return new ObservationTimeParser(TimeZone.getDefault());
+		TimeZone zone = TimeZone.getTimeZone(timeZoneId);
+		// getTimeZone quietly falls back to GMT for an id it does not know, which would shift every point
+		if (zone.getID().equals("GMT") && !timeZoneId.equals("GMT"))
+			throw new IllegalArgumentException("Unknown time zone: " + timeZoneId);
+		return new ObservationTimeParser(zone);
+	}
+
+	/**
+	 * @return the zone of times sent without an offset
+	 */
+	public TimeZone getTimeZone() {
+		return (TimeZone) timeZone.clone();
+	}
+
+	/**
+	 * @param time an observation time, yyyyMMddHHmmss with an optional fraction and offset after it
+	 * @return the time in epoch milliseconds
+	 * @throws ParseException if the time does not start with a valid date and time of day
+	 */
+	public long parse(String time) throws ParseException {
+		if (time == null || time.length() < 14)
+			throw unparseable(time, 0);
+		for (int i = 0; i < 14; i++) {
+			if (!isDigit(time.charAt(i)))
+				throw unparseable(time, i);
+		}
+		int year = digits(time, 0, 4);
+		int month = digits(time, 4, 2);
+		int day = digits(time, 6, 2);
+		int hour = digits(time, 8, 2);
+		int minute = digits(time, 10, 2);
+		int second = digits(time, 12, 2);
+		if (month < 1 || month > 12)
+			throw unparseable(time, 4);
+		if (day < 1 || day > DAYS_IN_MONTH[month - 1] || (month == 2 && day == 29 && !isLeapYear(year)))
+			throw unparseable(time, 6);
+		if (hour > 23 || minute > 59 || second > 59)
+			throw unparseable(time, 8);
+		long local = daysFromCivil(year, month, day) * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L;
+		int position = 14;
+		if (position < time.length() && time.charAt(position) == '.') {
+			int scale = 100;
+			for (position++; position < time.length() && isDigit(time.charAt(position)); position++) {
+				local += (time.charAt(position) - '0') * scale;
+				scale /= 10;
+			}
+		}
+		if (position + 5 <= time.length() && (time.charAt(position) == '+' || time.charAt(position) == '-')) {
+			int hours = digits(time, position + 1, 2);
+			int minutes = digits(time, position + 3, 2);
+			if (hours >= 0 && minutes >= 0 && hours < 24 && minutes < 60) {
+				long offset = (hours * 60 + minutes) * 60000L;
+				return (time.charAt(position) == '-') ? local + offset : local - offset;
+			}
+		}
+		return toUtc(local);
+	}
+
+	/**
+	 * @param millis a time in epoch milliseconds
+	 * @return the time in the zone of the parser, as yyyy-MM-dd HH:mm:ss
+	 */
+	public String format(long millis) {
+		long local = millis + timeZone.getOffset(millis);
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int secondOfDay = (int) ((local - days * MILLIS_PER_DAY) / 1000);
+		// the inverse of daysFromCivil, with years starting on the 1st of March so the leap day comes last
+		long shifted = days + 719468;
+		long era = floorDiv(shifted, 146097);
+		int dayOfEra = (int) (shifted - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int monthIndex = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		int month = (monthIndex < 10) ? monthIndex + 3 : monthIndex - 9;
+		long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+		char[] text = new char[19];
+		put(text, 0, (int) year, 4);
+		text[4] = '-';
+		put(text, 5, month, 2);
+		text[7] = '-';
+		put(text, 8, day, 2);
+		text[10] = ' ';
+		put(text, 11, secondOfDay / 3600, 2);
+		text[13] = ':';
+		put(text, 14, secondOfDay / 60 % 60, 2);
+		text[16] = ':';
+		put(text, 17, secondOfDay % 60, 2);
+		return new String(text);
+	}
+
+	/*
+	 * Finds the instant a wall clock time in the zone of the parser stands for.  Offsets only change a
+	 * couple of times a year, so the offsets a day either side of the time are the only ones it can have.
+	 */
+	private long toUtc(long local) {
+		int before = timeZone.getOffset(local - MILLIS_PER_DAY);
+		int after = timeZone.getOffset(local + MILLIS_PER_DAY);
+		if (before == after)
+			return local - before;
+		boolean validBefore = timeZone.getOffset(local - before) == before;
+		boolean validAfter = timeZone.getOffset(local - after) == after;
+		if (validBefore && validAfter) {
+			// a time that happens twice is taken as the second, after the clocks have gone back
+			return local - Math.min(before, after);
+		}
+		if (validAfter)
+			return local - after;
+		// the time falls in the gap when the clocks go forward, and is read with the offset before it
+		return local - before;
+	}
+
+	/*
+	 * The number of days from 1970-01-01 to a date in the proleptic Gregorian calendar.
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = (month <= 2) ? year - 1 : year;
+		int era = (int) floorDiv(y, 400);
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y < 0) ? q - 1 : q;
+	}
+
+	private static boolean isLeapYear(int year) {
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/*
+	 * Reads a run of digits as a number, or -1 if any of them is not a digit.
+	 */
+	private static int digits(String text, int start, int length) {
+		int value = 0;
+		for (int i = start; i < start + length; i++) {
+			char c = text.charAt(i);
+			if (!isDigit(c))
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static ParseException unparseable(String time, int position) {
+		return new ParseException("Unparseable date: \"" + time + "\"", position);
+	}
+
+	private static void put(char[] text, int start, int value, int length) {
+		for (int i = start + length - 1; i >= start; i--) {
+			text[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+}
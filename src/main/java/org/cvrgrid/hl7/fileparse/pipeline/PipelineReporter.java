@@ -0,0 +1,85 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.pipeline;
+
+/*
+ * This class prints the report of every pipeline stage on one line, every pipelineReportSeconds and
+ * whenever it is asked to.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class PipelineReporter {
+
+	private final List<PipelineStage<?>> stages = new ArrayList<PipelineStage<?>>();
+	private ScheduledExecutorService timer = null;
+
+	/**
+	 * Adds a stage, in the order the stages should be printed.
+	 */
+	public void add(PipelineStage<?> stage) {
+		stages.add(stage);
+	}
+
+	/**
+	 * Prints the report every given number of seconds until stop is called.
+	 *
+	 * @param periodSeconds the time between reports, 0 to only report when asked
+	 */
+	public void start(int periodSeconds) {
+		if (periodSeconds <= 0)
+			return;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "pipeline-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Prints the report now.
+	 */
+	public synchronized void report() {
+		StringBuilder line = new StringBuilder("     Pipeline:");
+		for (int i = 0; i < stages.size(); i++) {
+			line.append(i == 0 ? " " : " | ");
+			line.append(stages.get(i).report());
+		}
+		System.out.println(line);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+
+}
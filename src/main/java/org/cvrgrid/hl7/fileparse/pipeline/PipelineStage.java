@@ -0,0 +1,236 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.pipeline;
+
+/*
+ * This class is one stage of the loading pipeline: a bounded queue of work items drained by a fixed number
+ * of threads of its own.  Putting an item on a full queue blocks, so when a stage falls behind the stage
+ * feeding it slows down to match, and so on back to the file reads, instead of work piling up in memory.
+ * Each stage counts the items it has finished and the time its threads spent working, which together with
+ * the queue depth shows which stage is holding the others back: a full queue in front of a stage that is
+ * busy all the time.  Time a stage's threads spend waiting for room in the next queue is counted as
+ * blocked rather than busy, so a stage held up by the one after it does not look like the bottleneck.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public abstract class PipelineStage<T> {
+
+	private static final ThreadLocal<PipelineStage<?>> CURRENT = new ThreadLocal<PipelineStage<?>>();
+
+	private final String name;
+	private final int threads;
+	private final int capacity;
+	private final ArrayBlockingQueue<T> queue;
+	private final Thread[] workers;
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final Object idleLock = new Object();
+	private int outstanding = 0;
+	private volatile boolean stopped = false;
+	private long lastReportTime;
+	private long lastReportProcessed = 0;
+	private long lastReportBusyNanos = 0;
+	private long lastReportBlockedNanos = 0;
+
+	/**
+	 * Creates the stage and starts its threads.
+	 *
+	 * @param name the name of the stage, used for its threads and in reports
+	 * @param threads the number of threads working the queue
+	 * @param capacity the number of items the queue holds before put blocks
+	 */
+	public PipelineStage(String name, int threads, int capacity) {
+		this.name = name;
+		this.threads = Math.max(1, threads);
+		this.capacity = Math.max(1, capacity);
+		this.queue = new ArrayBlockingQueue<T>(this.capacity);
+		this.workers = new Thread[this.threads];
+		this.lastReportTime = System.nanoTime();
+		for (int i = 0; i < this.threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, name + "-" + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Does the work of the stage on one item.
+	 */
+	protected abstract void process(T item) throws Exception;
+
+	/**
+	 * Called when process throws.  The default prints the failure.
+	 */
+	protected void failed(T item, Exception e) {
+		System.out.println("     " + name + " failed: " + e);
+		e.printStackTrace();
+	}
+
+	/**
+	 * Queues an item, waiting for room when the queue is full.
+	 */
+	public void put(T item) throws InterruptedException {
+		if (stopped)
+			throw new IllegalStateException("The " + name + " stage is stopped");
+		synchronized (idleLock) {
+			outstanding++;
+		}
+		try {
+			if (!queue.offer(item)) {
+				long start = System.nanoTime();
+				queue.put(item);
+				PipelineStage<?> caller = CURRENT.get();
+				if (caller != null)
+					caller.blockedNanos.addAndGet(System.nanoTime() - start);
+			}
+		} catch (InterruptedException e) {
+			finished();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until every item queued so far has been processed.
+	 */
+	public void awaitIdle() throws InterruptedException {
+		synchronized (idleLock) {
+			while (outstanding > 0) {
+				idleLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads.  Items still queued are dropped, so callers wait for awaitIdle first.
+	 */
+	public void shutdown() {
+		stopped = true;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	private void work() {
+		CURRENT.set(this);
+		while (!stopped) {
+			T item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				process(item);
+			} catch (Exception e) {
+				failed(item, e);
+			} finally {
+				busyNanos.addAndGet(System.nanoTime() - start);
+				processed.incrementAndGet();
+				finished();
+			}
+		}
+	}
+
+	private void finished() {
+		synchronized (idleLock) {
+			outstanding--;
+			if (outstanding == 0)
+				idleLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Describes the queue depth, throughput and busy share of the threads since the previous report.
+	 */
+	public synchronized String report() {
+		long now = System.nanoTime();
+		long elapsed = Math.max(1, now - lastReportTime);
+		long done = processed.get();
+		long busy = busyNanos.get();
+		long blocked = blockedNanos.get();
+		long rate = (done - lastReportProcessed) * 1000000000L / elapsed;
+		long blockedPercent = (blocked - lastReportBlockedNanos) * 100L / (elapsed * threads);
+		long busyPercent = (busy - lastReportBusyNanos) * 100L / (elapsed * threads) - blockedPercent;
+		lastReportTime = now;
+		lastReportProcessed = done;
+		lastReportBusyNanos = busy;
+		lastReportBlockedNanos = blocked;
+		return name + " queue " + queue.size() + "/" + capacity + ", " + done + " done (" + rate + "/sec), " + threads + " threads " 
+				+ Math.max(0, Math.min(100, busyPercent)) + "% busy " + Math.min(100, blockedPercent) + "% blocked";
+	}
+
+	/**
+	 * @return the name of the stage
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of threads working the queue
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return the number of items the queue holds before put blocks
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of items waiting in the queue
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of items processed
+	 */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return the time the threads have spent processing items, including the time blocked
+	 */
+	public long getBusyMillis() {
+		return busyNanos.get() / 1000000L;
+	}
+
+	/**
+	 * @return the time the threads have spent waiting for room in the queue of the next stage
+	 */
+	public long getBlockedMillis() {
+		return blockedNanos.get() / 1000000L;
+	}
+
+}
@@ -0,0 +1,459 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.registry;
+
+/*
+ * This class remembers the messages the loader has stored, so a message the gateway sends again after a
+ * reconnect, or one that turns up again in an overlapping export, is dropped instead of being stored twice.
+ * Each message is known by a 64-bit key made from the subject hash, the observation time and the set of
+ * observations, worked out by the caller.  The keys are kept in an open-addressed table of longs, with the
+ * hour each was recorded in alongside, and are also appended to a file next to the processedFile with the
+ * time they were recorded, and read back on start, so duplicates are still caught after a restart.
+ *
+ * A message is checked and recorded in one step, so two threads given the same message never both load it.
+ * A key is only queued for the file once the loader says the points of its message were added and its
+ * subject merged, and only goes to the file on the commit after the next flush has stored them, so a crash
+ * or failure never leaves a message marked as seen that was not stored, even one still loading while
+ * another flush ran.  When loading fails, rollback forgets the keys recorded since the last commit, so the
+ * messages are loaded again when they are retried.  Keys are remembered for the retention in days from when they were
+ * recorded: those older than that are dropped when the file is opened and, about once an hour, at a commit,
+ * and the file is then rewritten without them, so neither the table nor the file grows without bound.  A
+ * table that reaches its largest size stops recording new keys, which are then simply loaded again if they
+ * come back.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DuplicateFilter {
+
+	private static final int RECORD_BYTES = 16;
+	private static final int MIN_CAPACITY = 1 << 16;
+	private static final int MAX_CAPACITY = 1 << 27;
+	private static final long MILLIS_PER_HOUR = 3600000L;
+
+	private final File file;
+	private final long retentionMillis;
+	private FileOutputStream out;
+	private FileChannel channel;
+	private long[] table;
+	private int[] hours;
+	private int count = 0;
+	private boolean hasZero = false;
+	private int zeroHour;
+	private boolean full = false;
+	private long nextPrune;
+	private final HashSet<Long> loading = new HashSet<Long>();
+	private ByteBuffer pending = ByteBuffer.allocate(RECORD_BYTES * 1024);
+	private int prepared = 0;
+	private final AtomicLong duplicates = new AtomicLong();
+
+	/**
+	 * Opens the filter, loading the keys of earlier runs still within the retention.
+	 *
+	 * @param path the path of the file of keys
+	 * @param retentionDays the number of days to remember a message for, 0 to remember every message
+	 */
+	public DuplicateFilter(String path, int retentionDays) throws IOException {
+		this.file = new File(path);
+		this.retentionMillis = retentionDays * 86400000L;
+		long now = System.currentTimeMillis();
+		long cutoff = cutoff(now);
+		long records = file.exists() ? file.length() / RECORD_BYTES : 0;
+		allocate(records);
+		long kept = 0;
+		long partial = file.exists() ? file.length() % RECORD_BYTES : 0;
+		if (records > 0) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				for (long r = 0; r < records; r++) {
+					long key = in.readLong();
+					long recorded = in.readLong();
+					if (recorded >= cutoff && !isFull() && insert(key, hourOf(recorded)))
+						kept++;
+				}
+			} catch (EOFException e) {
+				// the file shrank while it was being read, which only happens if two loaders share it
+			} finally {
+				in.close();
+			}
+		}
+		if (kept < records || partial > 0) {
+			// expired keys, repeats and a record left half written by a crash are dropped by writing the keys out again
+			rewrite();
+		}
+		this.out = new FileOutputStream(file, true);
+		this.channel = out.getChannel();
+		this.nextPrune = now + MILLIS_PER_HOUR;
+		if (count > 0)
+			System.out.println("Duplicate filter: " + count + " messages remembered from earlier runs");
+	}
+
+	/**
+	 * Records a message as seen and says whether it had been seen already, in one step.  A message that then
+	 * fails to load is forgotten again by rollback, so it is loaded in full when it is sent again.
+	 *
+	 * @param key the key of the message
+	 * @return true if the message has been recorded before, in which case it should be dropped
+	 */
+	public synchronized boolean seenBefore(long key) {
+		if (contains(key)) {
+			duplicates.incrementAndGet();
+			return true;
+		}
+		if (isFull())
+			return false;
+		insert(key, hourOf(System.currentTimeMillis()));
+		loading.add(key);
+		return false;
+	}
+
+	/**
+	 * Queues the keys of messages whose points have been added and whose subjects have been merged, to go
+	 * to the file at the commit after the next flush.  A key forgotten by a rollback since it was recorded
+	 * is left out, as the points of its message may have been discarded.
+	 *
+	 * @param keys the keys, as seenBefore was given them
+	 */
+	public synchronized void loaded(long[] keys) {
+		long now = System.currentTimeMillis();
+		for (long key : keys) {
+			if (!loading.remove(key))
+				continue;
+			if (pending.remaining() < RECORD_BYTES) {
+				ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				larger.put(pending);
+				pending = larger;
+			}
+			pending.putLong(key);
+			pending.putLong(now);
+		}
+	}
+
+	/**
+	 * Marks the keys queued so far as those the next commit writes.  The caller prepares before it flushes
+	 * the points, so keys queued while the flush runs, whose points it may have missed, wait for the next one.
+	 */
+	public synchronized void prepare() {
+		prepared = pending.position();
+	}
+
+	/**
+	 * Appends the keys marked by the last prepare to the file and forces it to disk.  The caller only
+	 * commits once the points of those messages are stored.  Keys past the retention are dropped here too.
+	 */
+	public synchronized void commit() throws IOException {
+		if (prepared > 0) {
+			int queued = pending.position();
+			pending.position(0);
+			pending.limit(prepared);
+			while (pending.hasRemaining()) {
+				channel.write(pending);
+			}
+			channel.force(false);
+			pending.limit(queued);
+			pending.compact();
+			prepared = 0;
+		}
+		long now = System.currentTimeMillis();
+		if (retentionMillis > 0 && now >= nextPrune) {
+			nextPrune = now + MILLIS_PER_HOUR;
+			// the table also holds the keys not committed yet, which rewrite leaves out
+			if (prune(hourOf(cutoff(now)))) {
+				out.close();
+				rewrite();
+				out = new FileOutputStream(file, true);
+				channel = out.getChannel();
+			}
+		}
+	}
+
+	/**
+	 * Forgets the keys recorded since the last commit, after the points of their messages failed to store,
+	 * including those of messages still loading.
+	 */
+	public synchronized void rollback() {
+		pending.flip();
+		while (pending.hasRemaining()) {
+			remove(pending.getLong());
+			pending.getLong();
+		}
+		pending.clear();
+		prepared = 0;
+		for (Long key : loading) {
+			remove(key);
+		}
+		loading.clear();
+	}
+
+	/**
+	 * @return the number of duplicate messages dropped since the filter was opened
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * @return the number of messages remembered
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Closes the file.  Keys not committed are forgotten, so their messages are loaded again next time.
+	 */
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Makes the key of a message from its parts.  The observations are combined so their order does not
+	 * matter, as a gateway may send the same observations in a different order.
+	 *
+	 * @param subjectHash the subject hash
+	 * @param observationTime OBR-7 as sent
+	 * @param observationHashes the result of observationHash for each observation
+	 */
+	public static long keyOf(String subjectHash, String observationTime, long observationHashes) {
+		long h = hash(0xcbf29ce484222325L, subjectHash);
+		h = hash(h * 0x100000001b3L, observationTime);
+		return mix(h ^ mix(observationHashes));
+	}
+
+	/**
+	 * @return a hash of one observation, to be added up over the observations of a message for keyOf
+	 */
+	public static long observationHash(String id, String units, String value) {
+		long h = hash(0xcbf29ce484222325L, id);
+		h = hash(h * 0x100000001b3L, units);
+		h = hash(h * 0x100000001b3L, value);
+		return mix(h);
+	}
+
+	/*
+	 * FNV-1a over the characters of a string, with null distinct from empty.
+	 */
+	private static long hash(long h, String s) {
+		if (s == null)
+			return (h ^ 0xff) * 0x100000001b3L;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/*
+	 * The MurmurHash3 finalizer, which spreads every input bit over the whole key.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private long cutoff(long now) {
+		return (retentionMillis > 0) ? now - retentionMillis : Long.MIN_VALUE;
+	}
+
+	private static int hourOf(long millis) {
+		return (int) (millis / MILLIS_PER_HOUR);
+	}
+
+	/*
+	 * Makes room for one more key if it can, returning true if the table is as full as it gets.
+	 */
+	private boolean isFull() {
+		return (count + 1) * 2L > table.length && !grow();
+	}
+
+	private boolean contains(long key) {
+		if (key == 0)
+			return hasZero;
+		int mask = table.length - 1;
+		for (int i = (int) key & mask; table[i] != 0; i = (i + 1) & mask) {
+			if (table[i] == key)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Adds a key to the table, returning false if it was already there.
+	 */
+	private boolean insert(long key, int hour) {
+		if (key == 0) {
+			if (hasZero)
+				return false;
+			hasZero = true;
+			zeroHour = hour;
+		} else {
+			int mask = table.length - 1;
+			int i = (int) key & mask;
+			while (table[i] != 0) {
+				if (table[i] == key)
+					return false;
+				i = (i + 1) & mask;
+			}
+			table[i] = key;
+			hours[i] = hour;
+		}
+		count++;
+		return true;
+	}
+
+	/*
+	 * Removes a key from the table, moving later keys of the same run back so lookups still find them.
+	 */
+	private void remove(long key) {
+		if (key == 0) {
+			if (hasZero) {
+				hasZero = false;
+				count--;
+			}
+			return;
+		}
+		int mask = table.length - 1;
+		int i = (int) key & mask;
+		while (table[i] != key) {
+			if (table[i] == 0)
+				return;
+			i = (i + 1) & mask;
+		}
+		count--;
+		int gap = i;
+		for (int j = (gap + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+			int home = (int) table[j] & mask;
+			// a key can fill the gap if its home slot is not between the gap and where it sits now
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				table[gap] = table[j];
+				hours[gap] = hours[j];
+				gap = j;
+			}
+		}
+		table[gap] = 0;
+	}
+
+	/*
+	 * Makes an empty table with room for the given number of keys at no more than half full.
+	 */
+	private void allocate(long keys) {
+		long slots = Math.max(MIN_CAPACITY, Long.highestOneBit(Math.max(1, keys * 2 - 1)) << 1);
+		int capacity = (int) Math.min(MAX_CAPACITY, slots);
+		table = new long[capacity];
+		hours = new int[capacity];
+		count = 0;
+		hasZero = false;
+	}
+
+	/*
+	 * Moves the keys to a table twice the size, returning false if the table is already as large as it gets.
+	 */
+	private boolean grow() {
+		if (table.length >= MAX_CAPACITY) {
+			if (!full) {
+				full = true;
+				System.out.println("Duplicate filter full at " + count + " messages, new messages are no longer remembered");
+			}
+			return false;
+		}
+		rebuild(table.length, Integer.MIN_VALUE);
+		return true;
+	}
+
+	/*
+	 * Drops the keys recorded before the given hour, returning true if there were any.
+	 */
+	private boolean prune(int cutoffHour) {
+		int kept = (hasZero && zeroHour >= cutoffHour) ? 1 : 0;
+		for (int i = 0; i < table.length; i++) {
+			if (table[i] != 0 && hours[i] >= cutoffHour)
+				kept++;
+		}
+		if (kept == count)
+			return false;
+		rebuild(kept, cutoffHour);
+		full = false;
+		return true;
+	}
+
+	/*
+	 * Moves the keys recorded from the given hour on to a new table sized for the given number of keys.
+	 */
+	private void rebuild(long keys, int cutoffHour) {
+		long[] oldTable = table;
+		int[] oldHours = hours;
+		boolean zero = hasZero && zeroHour >= cutoffHour;
+		int oldZeroHour = zeroHour;
+		allocate(keys);
+		if (zero)
+			insert(0, oldZeroHour);
+		for (int i = 0; i < oldTable.length; i++) {
+			if (oldTable[i] != 0 && oldHours[i] >= cutoffHour)
+				insert(oldTable[i], oldHours[i]);
+		}
+	}
+
+	/*
+	 * Writes the committed keys in the table to the file in place of what it held, with the hour each was
+	 * recorded in.
+	 */
+	private void rewrite() throws IOException {
+		HashSet<Long> uncommitted = new HashSet<Long>(loading);
+		for (int p = 0; p < pending.position(); p += RECORD_BYTES) {
+			uncommitted.add(pending.getLong(p));
+		}
+		File temporary = new File(file.getPath() + ".tmp");
+		DataOutputStream rewritten = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			if (hasZero && !uncommitted.contains(0L)) {
+				rewritten.writeLong(0);
+				rewritten.writeLong(zeroHour * MILLIS_PER_HOUR);
+			}
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] != 0 && !uncommitted.contains(table[i])) {
+					rewritten.writeLong(table[i]);
+					rewritten.writeLong(hours[i] * MILLIS_PER_HOUR);
+				}
+			}
+		} finally {
+			rewritten.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
@@ -0,0 +1,168 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.registry;
+
+/*
+ * This class keeps how far into each partly loaded HL7 file the loader has got, in a log next to the
+ * processedFile.  Each line holds the canonical path, the byte offset of the message boundary up to which
+ * every point is stored and every subject merged, the number of messages before it and the CRC-32 of the
+ * bytes before it, separated by tabs.  The last line for a path wins, and a line with an offset of -1
+ * clears it once the file is in the manifest.  The log is rewritten without the stale lines when it is
+ * opened, so it stays as short as the number of files in progress.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FileCheckpoints {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final HashMap<String,Checkpoint> checkpoints = new HashMap<String,Checkpoint>();
+	private final FileOutputStream out;
+	private final Writer writer;
+
+	/**
+	 * Loads the checkpoints, leaving out files the manifest already holds.
+	 *
+	 * @param path the path of the checkpoint log
+	 * @param manifest the processed file manifest
+	 */
+	public FileCheckpoints(String path, ProcessedFileManifest manifest) throws IOException {
+		File file = new File(path);
+		if (file.exists()) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields.length < 4)
+						continue;
+					long offset = Long.parseLong(fields[1]);
+					if (offset < 0)
+						checkpoints.remove(fields[0]);
+					else
+						checkpoints.put(fields[0], new Checkpoint(offset, Long.parseLong(fields[2]), Long.parseLong(fields[3], 16)));
+				}
+			} finally {
+				br.close();
+			}
+		}
+		File temporary = new File(path + ".tmp");
+		Writer compacted = new OutputStreamWriter(new FileOutputStream(temporary), UTF8);
+		try {
+			for (Map.Entry<String,Checkpoint> entry : checkpoints.entrySet()) {
+				if (!manifest.contains(entry.getKey()))
+					compacted.write(line(entry.getKey(), entry.getValue()));
+			}
+		} finally {
+			compacted.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		this.out = new FileOutputStream(file, true);
+		this.writer = new OutputStreamWriter(out, UTF8);
+	}
+
+	/**
+	 * @return the checkpoint of the file with the given canonical path, or null
+	 */
+	public synchronized Checkpoint get(String path) {
+		return checkpoints.get(path);
+	}
+
+	/**
+	 * Records how far into a file the loader has got and forces the line to disk.
+	 */
+	public synchronized void record(String path, long offset, long messages, long checksum) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(offset, messages, checksum);
+		writer.write(line(path, checkpoint));
+		writer.flush();
+		out.getFD().sync();
+		checkpoints.put(path, checkpoint);
+	}
+
+	/**
+	 * Clears the checkpoint of a file that has been loaded to the end.
+	 */
+	public synchronized void remove(String path) throws IOException {
+		if (checkpoints.remove(path) == null)
+			return;
+		writer.write(line(path, new Checkpoint(-1, 0, 0)));
+		writer.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	private static String line(String path, Checkpoint checkpoint) {
+		return path + "\t" + checkpoint.getOffset() + "\t" + checkpoint.getMessages() + "\t" + Long.toHexString(checkpoint.getChecksum()) + "\n";
+	}
+
+	/*
+	 * A message boundary in a file, with the count and checksum of what comes before it.
+	 */
+	public static class Checkpoint {
+
+		private final long offset;
+		private final long messages;
+		private final long checksum;
+
+		public Checkpoint(long offset, long messages, long checksum) {
+			this.offset = offset;
+			this.messages = messages;
+			this.checksum = checksum;
+		}
+
+		/**
+		 * @return the byte offset of the message boundary
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return the number of messages before the boundary
+		 */
+		public long getMessages() {
+			return messages;
+		}
+
+		/**
+		 * @return the CRC-32 of the bytes before the boundary
+		 */
+		public long getChecksum() {
+			return checksum;
+		}
+
+	}
+
+}
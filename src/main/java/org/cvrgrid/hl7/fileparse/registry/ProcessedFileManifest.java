@@ -0,0 +1,217 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.registry;
+
+/*
+ * This class is the log of HL7 files that have been processed, kept in the processedFile.  Each line holds
+ * the canonical path, size, modification time and CRC-32 of a file, separated by tabs, and a line is
+ * appended as soon as a file completes, so the log never has to be rewritten.  Lines that hold only a
+ * path, as written by earlier versions of the tool, are still understood.  The paths are kept in a hash
+ * map, so checking whether a file is already processed takes constant time however long the log gets.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class ProcessedFileManifest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File manifestFile;
+	private final HashMap<String,ManifestEntry> entries = new HashMap<String,ManifestEntry>();
+	private final FileOutputStream out;
+	private final Writer writer;
+
+	/**
+	 * Loads the manifest, creating it if it does not exist.
+	 *
+	 * @param processedFile the path of the manifest
+	 */
+	public ProcessedFileManifest(String processedFile) throws IOException {
+		this.manifestFile = new File(processedFile);
+		if (manifestFile.exists()) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF8));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (line.trim().length() == 0)
+						continue;
+					ManifestEntry entry = ManifestEntry.parse(line);
+					entries.put(entry.getPath(), entry);
+				}
+			} finally {
+				br.close();
+			}
+		}
+		this.out = new FileOutputStream(manifestFile, true);
+		this.writer = new OutputStreamWriter(out, UTF8);
+	}
+
+	/**
+	 * @return true if the file with the given canonical path has been processed
+	 */
+	public synchronized boolean contains(String path) {
+		return entries.containsKey(path);
+	}
+
+	/**
+	 * @return the entry of the file with the given canonical path, or null
+	 */
+	public synchronized ManifestEntry get(String path) {
+		return entries.get(path);
+	}
+
+	/**
+	 * @return the number of processed files
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Records a completed file and forces the line to disk.
+	 */
+	public synchronized void record(String path, long size, long lastModified, long checksum) throws IOException {
+		ManifestEntry entry = new ManifestEntry(path, size, lastModified, checksum);
+		writer.write(entry.toString());
+		writer.write('\n');
+		writer.flush();
+		out.getFD().sync();
+		entries.put(path, entry);
+	}
+
+	/**
+	 * Walks the root directory for .txt and .msg files that are not in the manifest.
+	 *
+	 * @param rootDir the directory holding the HL7 files
+	 * @return the canonical paths of the new files, sorted
+	 */
+	public List<String> findNewFiles(String rootDir) throws IOException {
+		final List<String> messageFiles = new ArrayList<String>();
+		final Path manifestPath = manifestFile.getCanonicalFile().toPath();
+		Files.walkFileTree(Paths.get(rootDir), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!attrs.isRegularFile())
+					return FileVisitResult.CONTINUE;
+				String name = file.getFileName().toString();
+				if (!name.endsWith(".txt") && !name.endsWith(".msg"))
+					return FileVisitResult.CONTINUE;
+				Path canonical = file.toRealPath();
+				if (canonical.equals(manifestPath))
+					return FileVisitResult.CONTINUE;
+				String path = canonical.toString();
+				if (!contains(path))
+					messageFiles.add(path);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.err.println("Unable to read " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(messageFiles);
+		return messageFiles;
+	}
+
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	/*
+	 * One processed file.  Files recorded by earlier versions of the tool have a size, modification time
+	 * and checksum of -1.
+	 */
+	public static class ManifestEntry {
+
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final long checksum;
+
+		public ManifestEntry(String path, long size, long lastModified, long checksum) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+
+		static ManifestEntry parse(String line) {
+			String[] fields = line.split("\t");
+			if (fields.length < 4)
+				return new ManifestEntry(line.trim(), -1, -1, -1);
+			return new ManifestEntry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3], 16));
+		}
+
+		/**
+		 * @return the canonical path of the file
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the size of the file when it was processed
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the modification time of the file when it was processed
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the CRC-32 of the file contents
+		 */
+		public long getChecksum() {
+			return checksum;
+		}
+
+		@Override
+		public String toString() {
+			return path + "\t" + size + "\t" + lastModified + "\t" + Long.toHexString(checksum);
+		}
+
+	}
+
+}
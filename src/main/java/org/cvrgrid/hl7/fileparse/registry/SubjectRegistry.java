@@ -0,0 +1,489 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.registry;
+
+/*
+ * This class is the persistent record of every subject the loader has seen, keyed by PatientInfo.getHash().
+ * It is kept in two files next to each other: <path>.log, an append-only log where every change to a
+ * subject is written as a complete record, and <path>.idx, a snapshot of the offset of the latest record
+ * of every subject.  Opening the registry reads only the index and whatever was appended to the log after
+ * the index was written, so startup does not depend on how many subjects exist.  Subjects are read from
+ * the log the first time they are looked up and kept in memory from then on.
+ *
+ * Changes are collected in memory until flush, which appends them to the log, and checkpoint, which also
+ * rewrites the index.  A record that was only partly written when the process died is cut off the log
+ * the next time it is opened.  When superseded records make up more than half of the log, checkpoint
+ * rewrites the log with only the latest record of each subject.
+ *
+ * The registry is shared by every thread loading messages.  Subjects already in memory are looked up
+ * without taking a lock, and each change to a subject is made by merge under one of a fixed set of locks
+ * chosen by the hash, so threads working on different subjects do not wait for each other.  The log and
+ * index are written under the lock of the registry itself, which a lookup only takes to read a subject
+ * from the log the first time.  A subject is only read or written under its own lock when it is copied
+ * for a report or serialized for the log, so neither ever sees a change half made.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cvrgrid.hl7.fileparse.model.PatientInfo;
+
+public class SubjectRegistry {
+
+	private static final int INDEX_MAGIC = 0x50494458;
+	private static final int MAX_RECORD = 16 * 1024 * 1024;
+	private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+	private static final int STRIPES = 64;
+
+	private final File logFile;
+	private final File indexFile;
+	private RandomAccessFile log;
+	private FileChannel channel;
+	private final ConcurrentHashMap<String,Long> offsets = new ConcurrentHashMap<String,Long>();
+	private final HashMap<String,Integer> recordSizes = new HashMap<String,Integer>();
+	private final ConcurrentHashMap<String,PatientInfo> loaded = new ConcurrentHashMap<String,PatientInfo>();
+	private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private final Object[] stripes = new Object[STRIPES];
+	private final Object flushLock = new Object();
+	private long liveBytes = 0;
+
+	/**
+	 * Opens the registry, creating its files if they do not exist.
+	 *
+	 * @param path the path of the registry, without the .log and .idx extensions
+	 */
+	public SubjectRegistry(String path) throws IOException {
+		this.logFile = new File(path + ".log");
+		this.indexFile = new File(path + ".idx");
+		if (logFile.getParentFile() != null)
+			logFile.getParentFile().mkdirs();
+		this.log = new RandomAccessFile(logFile, "rw");
+		this.channel = log.getChannel();
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+		long covered = readIndex();
+		replay(covered);
+	}
+
+	/**
+	 * Returns the subject with the given hash.  The subject is shared, so it is only changed through merge.
+	 *
+	 * @return the subject with the given hash, or null if it has never been seen
+	 */
+	public PatientInfo get(String hash) throws IOException {
+		PatientInfo patInfo = loaded.get(hash);
+		if (patInfo != null)
+			return patInfo;
+		synchronized (this) {
+			patInfo = loaded.get(hash);
+			if (patInfo == null) {
+				Long offset = offsets.get(hash);
+				if (offset == null)
+					return null;
+				patInfo = readRecord(offset.longValue());
+				loaded.put(hash, patInfo);
+			}
+			return patInfo;
+		}
+	}
+
+	/**
+	 * Reads a copy of a subject without keeping it in memory, for reports that walk every subject once.
+	 */
+	public PatientInfo read(String hash) throws IOException {
+		PatientInfo patInfo = loaded.get(hash);
+		if (patInfo != null) {
+			synchronized (stripe(hash)) {
+				return copy(patInfo);
+			}
+		}
+		synchronized (this) {
+			Long offset = offsets.get(hash);
+			if (offset == null)
+				return null;
+			return readRecord(offset.longValue());
+		}
+	}
+
+	/**
+	 * Adds what a record of a subject knows to the registry, as one change: a new subject is added as it
+	 * is, and an existing one takes the new locations and variables, the PICU flag and, if it has none,
+	 * the earliest data point.
+	 *
+	 * @param subject the record, which the registry keeps if the subject is new
+	 */
+	public void merge(PatientInfo subject) throws IOException {
+		String hash = subject.getHash();
+		synchronized (stripe(hash)) {
+			PatientInfo patInfo = get(hash);
+			if (patInfo == null)
+				loaded.put(hash, subject);
+			else
+				patInfo.merge(subject);
+			dirty.add(hash);
+		}
+	}
+
+	/**
+	 * Adds a subject, replacing any subject with the same hash.
+	 */
+	public void put(PatientInfo patInfo) {
+		String hash = patInfo.getHash();
+		synchronized (stripe(hash)) {
+			loaded.put(hash, patInfo);
+			dirty.add(hash);
+		}
+	}
+
+	/**
+	 * @return true if a subject with the given hash exists
+	 */
+	public boolean contains(String hash) {
+		return loaded.containsKey(hash) || offsets.containsKey(hash);
+	}
+
+	/**
+	 * @return the hashes of every subject, in hash order
+	 */
+	public TreeSet<String> getHashes() {
+		TreeSet<String> hashes = new TreeSet<String>(offsets.keySet());
+		hashes.addAll(loaded.keySet());
+		return hashes;
+	}
+
+	/**
+	 * @return the number of subjects
+	 */
+	public int size() {
+		int size = offsets.size();
+		for (String hash : loaded.keySet()) {
+			if (!offsets.containsKey(hash))
+				size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Appends every changed subject to the log and forces it to disk.  Subjects changed while the log is
+	 * being written are left for the next flush.
+	 */
+	public void flush() throws IOException {
+		synchronized (flushLock) {
+			if (dirty.isEmpty())
+				return;
+			List<String> hashes = new ArrayList<String>(dirty);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int[] starts = new int[hashes.size() + 1];
+			for (int i = 0; i < hashes.size(); i++) {
+				String hash = hashes.get(i);
+				starts[i] = out.size();
+				synchronized (stripe(hash)) {
+					dirty.remove(hash);
+					writeRecord(out, hash, loaded.get(hash));
+				}
+			}
+			starts[hashes.size()] = out.size();
+			out.flush();
+			try {
+				synchronized (this) {
+					long position = channel.size();
+					ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+					while (buffer.hasRemaining()) {
+						channel.write(buffer, position + buffer.position());
+					}
+					channel.force(false);
+					for (int i = 0; i < hashes.size(); i++) {
+						track(hashes.get(i), position + starts[i], starts[i + 1] - starts[i]);
+					}
+				}
+			} catch (IOException e) {
+				dirty.addAll(hashes);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Flushes changes, compacts the log if it is mostly superseded records and rewrites the index.
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (flushLock) {
+			flush();
+			synchronized (this) {
+				long logLength = channel.size();
+				if (logLength > MIN_COMPACT_BYTES && logLength > 2 * liveBytes)
+					compact();
+				writeIndex();
+			}
+		}
+	}
+
+	/**
+	 * Checkpoints and closes the registry files.
+	 */
+	public void close() throws IOException {
+		try {
+			checkpoint();
+		} finally {
+			synchronized (this) {
+				channel.close();
+				log.close();
+			}
+		}
+	}
+
+	private Object stripe(String hash) {
+		int h = hash.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	/*
+	 * Copies a subject, for reports that read it while other threads may be changing it.
+	 */
+	private static PatientInfo copy(PatientInfo patInfo) {
+		PatientInfo copy = new PatientInfo();
+		copy.setPicuSubject(patInfo.isPicuSubject());
+		copy.setFirstName(patInfo.getFirstName());
+		copy.setLastName(patInfo.getLastName());
+		copy.setBirthDateTime(patInfo.getBirthDateTime());
+		copy.setGender(patInfo.getGender());
+		copy.setBirthplace(patInfo.getBirthplace());
+		copy.setEarliestDataPoint(patInfo.getEarliestDataPoint());
+		copy.setLocations(patInfo.getLocations());
+		copy.setVariables(patInfo.getVariables());
+		return copy;
+	}
+
+	private void track(String hash, long offset, int size) {
+		Integer previous = recordSizes.put(hash, Integer.valueOf(size));
+		if (previous != null)
+			liveBytes -= previous.intValue();
+		liveBytes += size;
+		offsets.put(hash, Long.valueOf(offset));
+	}
+
+	private void compact() throws IOException {
+		File compacted = new File(logFile.getPath() + ".compact");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)));
+		HashMap<String,Long> newOffsets = new HashMap<String,Long>();
+		HashMap<String,Integer> newSizes = new HashMap<String,Integer>();
+		try {
+			// Every change is in the log after the flush, and later ones go on the end of the new log.
+			for (String hash : new TreeSet<String>(offsets.keySet())) {
+				PatientInfo patInfo = readRecord(offsets.get(hash).longValue());
+				int before = out.size();
+				writeRecord(out, hash, patInfo);
+				newOffsets.put(hash, Long.valueOf(before));
+				newSizes.put(hash, Integer.valueOf(out.size() - before));
+			}
+		} finally {
+			out.close();
+		}
+		long oldLength = channel.size();
+		channel.close();
+		log.close();
+		// The old index points into the old log, so it must not survive a crash between here and writeIndex.
+		indexFile.delete();
+		Files.move(compacted.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		log = new RandomAccessFile(logFile, "rw");
+		channel = log.getChannel();
+		// every subject is in the new log, so each offset is replaced rather than the map cleared under lookups
+		recordSizes.clear();
+		liveBytes = 0;
+		for (String hash : newOffsets.keySet()) {
+			track(hash, newOffsets.get(hash).longValue(), newSizes.get(hash).intValue());
+		}
+		System.out.println("Subject registry compacted from " + oldLength + " to " + channel.size() + " bytes");
+	}
+
+	private long readIndex() throws IOException {
+		if (!indexFile.exists())
+			return 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != INDEX_MAGIC)
+				return resetIndex();
+			long covered = in.readLong();
+			if (covered > channel.size())
+				return resetIndex();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String hash = in.readUTF();
+				long offset = in.readLong();
+				int size = in.readInt();
+				track(hash, offset, size);
+			}
+			return covered;
+		} catch (EOFException e) {
+			return resetIndex();
+		} finally {
+			in.close();
+		}
+	}
+
+	private long resetIndex() {
+		System.out.println("Subject registry index " + indexFile + " is not usable, rebuilding it from the log");
+		offsets.clear();
+		recordSizes.clear();
+		liveBytes = 0;
+		return 0;
+	}
+
+	private void writeIndex() throws IOException {
+		File temporary = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(channel.size());
+			out.writeInt(offsets.size());
+			for (String hash : offsets.keySet()) {
+				out.writeUTF(hash);
+				out.writeLong(offsets.get(hash).longValue());
+				out.writeInt(recordSizes.get(hash).intValue());
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Adds the records appended after the index was written and cuts off a trailing partial record.
+	 */
+	private void replay(long position) throws IOException {
+		long length = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(4);
+		while (position < length) {
+			header.clear();
+			if (readFully(header, position) < 4)
+				break;
+			int size = header.getInt(0);
+			if (size <= 0 || size > MAX_RECORD || position + 4 + size > length)
+				break;
+			ByteBuffer body = ByteBuffer.allocate(size);
+			readFully(body, position + 4);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+			track(in.readUTF(), position, 4 + size);
+			position += 4 + size;
+		}
+		if (position < length) {
+			System.out.println("Subject registry log " + logFile + " ends with a partial record, truncating at " + position);
+			channel.truncate(position);
+		}
+	}
+
+	private int readFully(ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + total);
+			if (read < 0)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+	private PatientInfo readRecord(long offset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		if (readFully(header, offset) < 4)
+			throw new IOException("Subject registry record at " + offset + " is missing");
+		int size = header.getInt(0);
+		if (size <= 0 || size > MAX_RECORD)
+			throw new IOException("Subject registry record at " + offset + " is corrupt");
+		ByteBuffer body = ByteBuffer.allocate(size);
+		if (readFully(body, offset + 4) < size)
+			throw new IOException("Subject registry record at " + offset + " is truncated");
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+		in.readUTF();
+		PatientInfo patInfo = new PatientInfo();
+		patInfo.setPicuSubject(in.readBoolean());
+		patInfo.setFirstName(in.readUTF());
+		patInfo.setLastName(in.readUTF());
+		patInfo.setBirthDateTime(in.readUTF());
+		patInfo.setGender(in.readUTF());
+		patInfo.setBirthplace(in.readUTF());
+		patInfo.setEarliestDataPoint(in.readUTF());
+		patInfo.setLocations(readList(in));
+		patInfo.setVariables(readList(in));
+		return patInfo;
+	}
+
+	private static void writeRecord(DataOutputStream out, String hash, PatientInfo patInfo) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeUTF(hash);
+		record.writeBoolean(patInfo.isPicuSubject());
+		record.writeUTF(patInfo.getFirstName());
+		record.writeUTF(patInfo.getLastName());
+		record.writeUTF(patInfo.getBirthDateTime());
+		record.writeUTF(patInfo.getGender());
+		record.writeUTF(patInfo.getBirthplace());
+		record.writeUTF(patInfo.getEarliestDataPoint());
+		writeList(record, patInfo.getLocations());
+		writeList(record, patInfo.getVariables());
+		record.flush();
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	private static void writeList(DataOutputStream out, Collection<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			out.writeBoolean(value != null);
+			if (value != null)
+				out.writeUTF(value);
+		}
+	}
+
+	private static LinkedList<String> readList(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		LinkedList<String> values = new LinkedList<String>();
+		for (int i = 0; i < count; i++) {
+			values.add(in.readBoolean() ? in.readUTF() : null);
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,649 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This class replaces the one REST call per observation made through TimeSeriesStorer with a batching
+ * writer, and is the http sink of the sinks property.  Data points are serialized as they arrive into a
+ * JSON array body for the OpenTSDB put API, and the body is sent when it reaches a configured number of
+ * points, a configured size in bytes or when the oldest point in it has waited longer than the
+ * configured flush interval.  The HTTP connections are left to the JVM keep-alive cache, so the same
+ * socket is reused from batch to batch as long as every response is read to the end.  The body can
+ * optionally be gzip compressed, which OpenTSDB accepts when the Content-Encoding header is set.
+ *
+ * Full batches are handed to a ship stage with its own threads and a bounded queue, so parsing carries on
+ * while a batch is on the wire, and a slow OpenTSDB only holds up the threads adding points once that
+ * queue is full.  A flush waits for every batch handed over before it, so a file is only recorded as
+ * processed once all of its points have been stored.
+ *
+ * With a DurableSpool, batches are appended to the spool on local disk instead, and a dispatcher thread
+ * feeds the ship stage from the spool.  A flush then only waits for the spool to reach the disk, so files
+ * are recorded as processed at disk speed whether OpenTSDB is up or not.  A batch that cannot be stored
+ * is retried with an exponential backoff, from spoolRetryMillis up to spoolMaxRetryMillis, until it is,
+ * and only then acknowledged in the spool, so an outage holds up the sending but loses nothing.  Only
+ * failures that can pass are retried: the connection failing and HTTP 5xx, 408 and 429.  Any other 4xx
+ * means OpenTSDB refused the batch itself, such as for a value that is not a number, and sending it
+ * again would fail the same way for ever while the spool filled up behind it, so it is counted and
+ * rejected in the spool.
+ *
+ * The writer times every put request and records the points and bytes of every batch it closes, into
+ * histograms of its own or, once useMetrics is called, into the metrics of the loader.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.cvrgrid.hl7.fileparse.metrics.Counter;
+import org.cvrgrid.hl7.fileparse.metrics.Gauge;
+import org.cvrgrid.hl7.fileparse.metrics.Histogram;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+import org.cvrgrid.hl7.fileparse.pipeline.PipelineStage;
+
+import edu.jhu.cvrg.timeseriesstore.model.IncomingDataPoint;
+
+public class BatchingTimeSeriesWriter implements TimeSeriesSink {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 60000;
+
+	private final URL putUrl;
+	private final int maxPoints;
+	private final int maxBytes;
+	private final long flushIntervalMillis;
+	private final boolean gzip;
+	private final StringBuilder body = new StringBuilder();
+	private final StringBuilder seriesHead = new StringBuilder();
+	private final StringBuilder seriesTail = new StringBuilder();
+	private final ScheduledExecutorService flusher;
+	private final PipelineStage<Batch> shipStage;
+	private final LinkedHashSet<Batch> inFlight = new LinkedHashSet<Batch>();
+	private final AtomicLong pointsWritten = new AtomicLong();
+	private final AtomicLong batchesWritten = new AtomicLong();
+	private int pendingPoints = 0;
+	private long oldestPendingTime = 0;
+	private volatile IOException lastFailure = null;
+	private boolean closed = false;
+	private DurableSpool spool = null;
+	private long retryMillis = 0;
+	private long maxRetryMillis = 0;
+	private long drainMillis = 0;
+	private volatile boolean closing = false;
+	private Histogram storeLatency = new Histogram("us", 1000);
+	private Histogram batchPoints = new Histogram("", 1);
+	private Histogram batchBytes = new Histogram("", 1);
+	private Counter pointsFailed = new Counter();
+	private Counter putFailures = new Counter();
+	private Counter pointsRejected = new Counter();
+
+	/**
+	 * Creates a writer for the put API located at openTSDBUrl + apiPut.
+	 *
+	 * @param openTSDBUrl the web address of the OpenTSDB server
+	 * @param apiPut the put API path, /api/put when empty
+	 * @param maxPoints the number of points that triggers a flush
+	 * @param maxBytes the size of the JSON body in characters that triggers a flush
+	 * @param flushIntervalMillis the longest time a point may wait before it is sent, 0 to disable
+	 * @param gzip true to compress the request bodies
+	 * @param shipThreads the number of batches sent at the same time
+	 * @param shipQueue the number of full batches that may wait to be sent before adding points blocks
+	 */
+	public BatchingTimeSeriesWriter(String openTSDBUrl, String apiPut, int maxPoints, int maxBytes, long flushIntervalMillis, boolean gzip,
+			int shipThreads, int shipQueue) throws IOException {
+		if (apiPut == null || apiPut.trim().equalsIgnoreCase(""))
+			apiPut = "/api/put";
+		if (openTSDBUrl.endsWith("/") && apiPut.startsWith("/"))
+			apiPut = apiPut.substring(1);
+		else if (!openTSDBUrl.endsWith("/") && !apiPut.startsWith("/"))
+			apiPut = "/" + apiPut;
+		this.putUrl = new URL(openTSDBUrl + apiPut);
+		this.maxPoints = Math.max(1, maxPoints);
+		this.maxBytes = Math.max(1024, maxBytes);
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.gzip = gzip;
+		this.shipStage = new PipelineStage<Batch>("ship", shipThreads, shipQueue) {
+			@Override
+			protected void process(Batch batch) throws Exception {
+				ship(batch);
+			}
+		};
+		if (flushIntervalMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "opentsdb-flusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(10, flushIntervalMillis / 4);
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					flushIfStale();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Sends every batch through the given spool from now on, starting with what an earlier run left in it.
+	 *
+	 * @param spool the opened spool
+	 * @param retryMillis the wait before the first retry of a batch that could not be stored
+	 * @param maxRetryMillis the longest wait between retries
+	 * @param drainMillis how long close waits for the spool to be sent before leaving the rest for the next run
+	 */
+	public void useSpool(final DurableSpool spool, long retryMillis, long maxRetryMillis, long drainMillis) {
+		synchronized (this) {
+			this.spool = spool;
+			this.retryMillis = Math.max(1, retryMillis);
+			this.maxRetryMillis = Math.max(this.retryMillis, maxRetryMillis);
+			this.drainMillis = drainMillis;
+		}
+		Thread dispatcher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					DurableSpool.Record record;
+					while ((record = spool.next()) != null) {
+						shipStage.put(new Batch(record));
+					}
+				} catch (IllegalStateException e) {
+					// the ship stage stopped on close
+				} catch (InterruptedException e) {
+					// stopped on close
+				} catch (IOException e) {
+					lastFailure = e;
+					e.printStackTrace();
+				}
+			}
+		}, "spool-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Records into the given metrics from now on: the time of each put request, the points and bytes of
+	 * each batch, the points lost, rejected and requests failed, and the points stored, the ship queue and, when a
+	 * spool is in use, the bytes it holds.  Call it after useSpool and before any point is added.
+	 */
+	public void useMetrics(MetricsRegistry metrics) {
+		storeLatency = metrics.latency("store");
+		batchPoints = metrics.histogram("batchPoints");
+		batchBytes = metrics.histogram("batchBytes");
+		pointsFailed = metrics.counter("pointsFailed");
+		putFailures = metrics.counter("putFailures");
+		pointsRejected = metrics.counter("pointsRejected");
+		metrics.gauge("pointsStored", new Gauge() {
+			public long getValue() {
+				return pointsWritten.get();
+			}
+		});
+		metrics.gauge("shipQueue", new Gauge() {
+			public long getValue() {
+				return shipStage.getQueueDepth();
+			}
+		});
+		final DurableSpool spool = this.spool;
+		if (spool != null) {
+			metrics.gauge("spoolBytes", new Gauge() {
+				public long getValue() {
+					return spool.getPendingBytes();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues a data point, sending the current batch first if it is full.
+	 *
+	 * @param dataPoint the data point to store
+	 * @throws IOException when the batch could not be stored, or a background flush failed earlier
+	 */
+	public synchronized void add(IncomingDataPoint dataPoint) throws IOException {
+		add(dataPoint.getMetric(), dataPoint.getTimestamp(), dataPoint.getValue(), dataPoint.getTags());
+	}
+
+	/**
+	 * Queues a data point given as its separate parts.
+	 */
+	public synchronized void add(String metric, long timestamp, String value, Map<String,String> tags) throws IOException {
+		if (closed)
+			throw new IOException("Writer for " + putUrl + " is closed");
+		rethrowFailure();
+		body.append(pendingPoints == 0 ? '[' : ',');
+		body.append("{\"metric\":");
+		appendString(body, metric);
+		body.append(",\"timestamp\":").append(timestamp);
+		body.append(",\"value\":");
+		appendString(body, value);
+		appendTags(body, tags);
+		pointAdded();
+	}
+
+	/**
+	 * Queues the points of a series, writing the metric and tags of the series once and then copying them
+	 * in front of and behind the timestamp and value of each point.
+	 */
+	public synchronized void addSeries(String metric, Map<String,String> tags, SeriesColumn column) throws IOException {
+		if (closed)
+			throw new IOException("Writer for " + putUrl + " is closed");
+		rethrowFailure();
+		seriesHead.setLength(0);
+		seriesHead.append("{\"metric\":");
+		appendString(seriesHead, metric);
+		seriesHead.append(",\"timestamp\":");
+		seriesTail.setLength(0);
+		appendTags(seriesTail, tags);
+		for (int i = 0; i < column.getSize(); i++) {
+			body.append(pendingPoints == 0 ? '[' : ',');
+			body.append(seriesHead).append(column.getTimestamp(i));
+			body.append(",\"value\":\"");
+			SeriesColumn.appendValue(body, column.getValue(i));
+			body.append('"');
+			body.append(seriesTail);
+			pointAdded();
+		}
+	}
+
+	private static void appendTags(StringBuilder out, Map<String,String> tags) {
+		out.append(",\"tags\":{");
+		boolean first = true;
+		for (Map.Entry<String,String> tag : tags.entrySet()) {
+			if (!first)
+				out.append(',');
+			appendString(out, tag.getKey());
+			out.append(':');
+			appendString(out, tag.getValue());
+			first = false;
+		}
+		out.append("}}");
+	}
+
+	/*
+	 * Counts the point just written to the body, sending the batch if that filled it.
+	 */
+	private void pointAdded() throws IOException {
+		if (pendingPoints == 0)
+			oldestPendingTime = System.currentTimeMillis();
+		pendingPoints++;
+		if (pendingPoints >= maxPoints || body.length() >= maxBytes)
+			handOver();
+	}
+
+	/**
+	 * Sends whatever is queued and waits until every batch handed over so far has been stored.
+	 *
+	 * @throws IOException when one of those batches could not be stored
+	 */
+	public void flush() throws IOException {
+		List<Batch> waitFor;
+		synchronized (this) {
+			handOver();
+			if (spool != null) {
+				spool.sync();
+				rethrowFailure();
+				return;
+			}
+		}
+		synchronized (inFlight) {
+			waitFor = new ArrayList<Batch>(inFlight);
+		}
+		for (Batch batch : waitFor) {
+			try {
+				batch.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for OpenTSDB", e);
+			}
+			if (batch.failure != null) {
+				lastFailure = null;
+				throw batch.failure;
+			}
+		}
+		// a batch handed over by the background flusher may have failed and left inFlight before this flush
+		rethrowFailure();
+	}
+
+	/**
+	 * Does nothing, as the points are already on their way to OpenTSDB, which keeps one value for a metric,
+	 * time and tags however often it is sent.
+	 */
+	public void discard() {
+	}
+
+	/**
+	 * Sends whatever is queued, then stops the background flusher and the ship stage.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			if (flusher != null)
+				flusher.shutdownNow();
+		}
+		try {
+			flush();
+			if (spool != null) {
+				try {
+					if (!spool.awaitDrained(drainMillis))
+						System.out.println("Spool: " + spool.getPendingBytes() + " bytes not yet stored, left for the next run");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			rethrowFailure();
+		} finally {
+			synchronized (this) {
+				closed = true;
+			}
+			closing = true;
+			shipStage.shutdown();
+			if (spool != null)
+				spool.close();
+		}
+	}
+
+	/*
+	 * Closes the current batch and puts it on the ship queue, waiting for room if the queue is full.
+	 */
+	private synchronized void handOver() throws IOException {
+		if (pendingPoints == 0)
+			return;
+		body.append(']');
+		Batch batch = new Batch(body.toString().getBytes(UTF8), pendingPoints);
+		batchPoints.record(batch.count);
+		batchBytes.record(batch.payload.length);
+		body.setLength(0);
+		pendingPoints = 0;
+		if (spool != null) {
+			spool.append(batch.payload, batch.count);
+			return;
+		}
+		synchronized (inFlight) {
+			inFlight.add(batch);
+		}
+		try {
+			shipStage.put(batch);
+		} catch (InterruptedException e) {
+			synchronized (inFlight) {
+				inFlight.remove(batch);
+			}
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for OpenTSDB", e);
+		}
+	}
+
+	private void ship(Batch batch) throws IOException {
+		if (batch.record != null) {
+			shipSpooled(batch.record);
+			return;
+		}
+		try {
+			post(batch.payload);
+			pointsWritten.addAndGet(batch.count);
+			batchesWritten.incrementAndGet();
+		} catch (IOException e) {
+			pointsFailed.add(batch.count);
+			batch.failure = e;
+			lastFailure = e;
+		} finally {
+			synchronized (inFlight) {
+				inFlight.remove(batch);
+			}
+			batch.done.countDown();
+		}
+	}
+
+	/*
+	 * Sends a spooled batch, retrying with a growing wait until it is stored or the writer closes, unless
+	 * OpenTSDB refuses it, in which case it is rejected in the spool.
+	 */
+	private void shipSpooled(DurableSpool.Record record) throws IOException {
+		long wait = retryMillis;
+		while (true) {
+			try {
+				post(record.getPayload());
+				break;
+			} catch (RejectedException e) {
+				pointsRejected.add(record.getCount());
+				System.out.println("     OpenTSDB refused a batch of " + record.getCount() + " points, written to " + spool.getRejectedFile() + ": " + e.getMessage());
+				spool.reject(record);
+				return;
+			} catch (IOException e) {
+				if (closing)
+					return;
+				System.out.println("     OpenTSDB put failed, retrying in " + wait + " ms: " + e.getMessage());
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+				if (closing)
+					return;
+				wait = Math.min(wait * 2, maxRetryMillis);
+			}
+		}
+		spool.acknowledge(record);
+		pointsWritten.addAndGet(record.getCount());
+		batchesWritten.incrementAndGet();
+	}
+
+	private synchronized void flushIfStale() {
+		if (pendingPoints == 0 || lastFailure != null || closed)
+			return;
+		if (System.currentTimeMillis() - oldestPendingTime < flushIntervalMillis)
+			return;
+		try {
+			handOver();
+		} catch (IOException e) {
+			lastFailure = e;
+		}
+	}
+
+	private void rethrowFailure() throws IOException {
+		if (lastFailure != null) {
+			IOException failure = lastFailure;
+			lastFailure = null;
+			throw failure;
+		}
+	}
+
+	/*
+	 * Sends one request body, timing it and counting it if it fails.
+	 */
+	private void post(byte[] payload) throws IOException {
+		long start = System.nanoTime();
+		try {
+			send(payload);
+		} catch (IOException e) {
+			putFailures.increment();
+			throw e;
+		} finally {
+			storeLatency.recordSince(start);
+		}
+	}
+
+	private void send(byte[] payload) throws IOException {
+		if (gzip) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 4 + 64);
+			GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+			gzipStream.write(payload);
+			gzipStream.close();
+			payload = compressed.toByteArray();
+		}
+		HttpURLConnection connection = (HttpURLConnection) putUrl.openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/json");
+		if (gzip)
+			connection.setRequestProperty("Content-Encoding", "gzip");
+		connection.setFixedLengthStreamingMode(payload.length);
+		OutputStream out = connection.getOutputStream();
+		out.write(payload);
+		out.close();
+		int status = connection.getResponseCode();
+		InputStream in = (status >= 400) ? connection.getErrorStream() : connection.getInputStream();
+		String response = drain(in);
+		if (status >= 400 && status < 500 && status != 408 && status != 429)
+			throw new RejectedException("OpenTSDB put to " + putUrl + " refused with HTTP " + status + ": " + response);
+		if (status < 200 || status >= 300)
+			throw new IOException("OpenTSDB put to " + putUrl + " failed with HTTP " + status + ": " + response);
+	}
+
+	/**
+	 * Reads a response to the end, which is what allows the JVM to return the socket to its keep-alive cache.
+	 */
+	private static String drain(InputStream in) throws IOException {
+		if (in == null)
+			return "";
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		try {
+			while ((read = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return new String(bytes.toByteArray(), UTF8);
+	}
+
+	private static void appendString(StringBuilder out, String value) {
+		if (value == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.append(String.format("\\u%04x", (int) c));
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+
+	public String report() {
+		String report = "Points Stored: " + getPointsWritten() + " in " + getBatchesWritten() + " batches";
+		if (pointsRejected.getCount() > 0)
+			report += "\nPoints Refused by OpenTSDB: " + pointsRejected.getCount() + ", in " + spool.getRejectedFile();
+		return report;
+	}
+
+	/**
+	 * @return the number of points sent successfully
+	 */
+	public long getPointsWritten() {
+		return pointsWritten.get();
+	}
+
+	/**
+	 * @return the number of batches sent successfully
+	 */
+	public long getBatchesWritten() {
+		return batchesWritten.get();
+	}
+
+	/**
+	 * @return the stage sending the batches, for reporting
+	 */
+	public PipelineStage<?> getShipStage() {
+		return shipStage;
+	}
+
+	/*
+	 * The failure of a request OpenTSDB refused, which sending again would not change.
+	 */
+	private static class RejectedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		RejectedException(String message) {
+			super(message);
+		}
+
+	}
+
+	/*
+	 * One request body and the number of points in it, and where it sits in the spool when there is one.
+	 */
+	private static class Batch {
+
+		private final byte[] payload;
+		private final int count;
+		private final DurableSpool.Record record;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile IOException failure = null;
+
+		Batch(byte[] payload, int count) {
+			this.payload = payload;
+			this.count = count;
+			this.record = null;
+		}
+
+		Batch(DurableSpool.Record record) {
+			this.payload = record.getPayload();
+			this.count = record.getCount();
+			this.record = record;
+		}
+
+	}
+
+}
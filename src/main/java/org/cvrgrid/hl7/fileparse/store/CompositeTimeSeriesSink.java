@@ -0,0 +1,142 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This class sends every point to several sinks, such as OpenTSDB and a local export, in the order they
+ * are listed in the sinks property.  Each call goes to every sink even when one of them fails, so a failing
+ * OpenTSDB does not stop the export, and the first failure is thrown once all of them have been called.
+ * A flush is the exception: once a sink fails to store the points, the sinks after it drop theirs instead
+ * of storing them, as the points are loaded again, so the loader lists the export, which keeps points back
+ * until the flush, after the sinks that send them to OpenTSDB.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+
+public class CompositeTimeSeriesSink implements TimeSeriesSink {
+
+	private final List<TimeSeriesSink> sinks;
+
+	public CompositeTimeSeriesSink(List<TimeSeriesSink> sinks) {
+		this.sinks = new ArrayList<TimeSeriesSink>(sinks);
+	}
+
+	public void add(String metric, long timestamp, String value, Map<String,String> tags) throws IOException {
+		IOException failure = null;
+		for (TimeSeriesSink sink : sinks) {
+			try {
+				sink.add(metric, timestamp, value, tags);
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void addSeries(String metric, Map<String,String> tags, SeriesColumn column) throws IOException {
+		IOException failure = null;
+		for (TimeSeriesSink sink : sinks) {
+			try {
+				sink.addSeries(metric, tags, column);
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void flush() throws IOException {
+		IOException failure = null;
+		for (TimeSeriesSink sink : sinks) {
+			try {
+				if (failure == null)
+					sink.flush();
+				else
+					sink.discard();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void discard() throws IOException {
+		IOException failure = null;
+		for (TimeSeriesSink sink : sinks) {
+			try {
+				sink.discard();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void close() throws IOException {
+		IOException failure = null;
+		for (TimeSeriesSink sink : sinks) {
+			try {
+				sink.close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void useMetrics(MetricsRegistry metrics) {
+		for (TimeSeriesSink sink : sinks) {
+			sink.useMetrics(metrics);
+		}
+	}
+
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		for (TimeSeriesSink sink : sinks) {
+			if (report.length() > 0)
+				report.append(System.getProperty("line.separator"));
+			report.append(sink.report());
+		}
+		return report.toString();
+	}
+
+	/**
+	 * @return the sinks, in the order points are sent to them
+	 */
+	public List<TimeSeriesSink> getSinks() {
+		return new ArrayList<TimeSeriesSink>(sinks);
+	}
+
+}
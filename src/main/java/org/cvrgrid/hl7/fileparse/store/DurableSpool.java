@@ -0,0 +1,408 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This class is the write-ahead spool between the batching writer and OpenTSDB.  Batches are appended to
+ * segment files in the spoolDir, each named by the offset of its first byte in the spool as a whole, and a
+ * new segment is started once the current one passes spoolSegmentBytes.  Each record holds its length, its
+ * point count, a CRC-32 and the request body.  Batches are read back in order for sending, and once a batch
+ * is stored the acked offset, the point up to which every batch has been stored, is moved on and written to
+ * the acked file.  Segments wholly below the acked offset are deleted.  On start the spool reopens the
+ * segments, drops a record left half written by a crash and starts reading at the acked offset, so batches
+ * that were spooled but not stored are sent again and batches already stored are not, apart from those
+ * still in flight when the process stopped, which OpenTSDB simply overwrites with the same values.  A
+ * batch OpenTSDB refuses outright is rejected instead: its body is appended as one line to the rejected.json
+ * file in the spoolDir, where it can be looked at and sent again by hand, and it is then acknowledged like a
+ * stored batch, so it never holds up the batches after it.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+public class DurableSpool {
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".spool";
+	private static final int HEADER_BYTES = 12;
+	private static final String REJECTED_FILE = "rejected.json";
+
+	private final File directory;
+	private final long segmentBytes;
+	private final long maxBytes;
+	private final boolean sync;
+	private final TreeMap<Long,File> segments = new TreeMap<Long,File>();
+	private final TreeMap<Long,Long> completed = new TreeMap<Long,Long>();
+	private final RandomAccessFile ackedFile;
+	private RandomAccessFile appendFile;
+	private FileChannel appendChannel;
+	private long appendBase;
+	private long endOffset;
+	private long ackedOffset;
+	private long readOffset;
+	private long syncedOffset;
+	private RandomAccessFile readFile = null;
+	private long readBase = -1;
+	private boolean closed = false;
+
+	/**
+	 * Opens the spool, recovering whatever an earlier run left in it.
+	 *
+	 * @param spoolDir the directory holding the segments
+	 * @param segmentBytes the size at which a new segment is started
+	 * @param maxBytes the number of unacknowledged bytes at which appends wait, 0 for no limit
+	 * @param sync true to force every append to disk when the spool is synced
+	 */
+	public DurableSpool(String spoolDir, long segmentBytes, long maxBytes, boolean sync) throws IOException {
+		this.directory = new File(spoolDir);
+		this.segmentBytes = Math.max(1024 * 1024, segmentBytes);
+		this.maxBytes = maxBytes;
+		this.sync = sync;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create spool directory " + directory);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+					segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+			}
+		}
+		ackedFile = new RandomAccessFile(new File(directory, "acked"), "rw");
+		ackedOffset = (ackedFile.length() >= 8) ? ackedFile.readLong() : (segments.isEmpty() ? 0 : segments.firstKey());
+		if (segments.isEmpty()) {
+			openSegment(ackedOffset);
+		} else {
+			long base = segments.lastKey();
+			appendBase = base;
+			appendFile = new RandomAccessFile(segments.get(base), "rw");
+			appendChannel = appendFile.getChannel();
+			long valid = validLength(appendChannel);
+			if (valid < appendChannel.size()) {
+				System.out.println("Spool: dropping " + (appendChannel.size() - valid) + " bytes of a partly written batch");
+				appendChannel.truncate(valid);
+			}
+			appendChannel.position(valid);
+			endOffset = base + valid;
+		}
+		if (ackedOffset < segmentsStart())
+			ackedOffset = segmentsStart();
+		if (ackedOffset > endOffset)
+			ackedOffset = endOffset;
+		readOffset = ackedOffset;
+		syncedOffset = endOffset;
+		deleteAckedSegments();
+		if (endOffset > ackedOffset)
+			System.out.println("Spool: " + (endOffset - ackedOffset) + " bytes left from an earlier run will be sent again");
+	}
+
+	/**
+	 * Appends a batch, waiting while the spool holds maxBytes that have not been acknowledged.
+	 *
+	 * @param payload the request body
+	 * @param count the number of points in it
+	 */
+	public synchronized void append(byte[] payload, int count) throws IOException {
+		while (maxBytes > 0 && endOffset - ackedOffset >= maxBytes && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for room in the spool", e);
+			}
+		}
+		if (closed)
+			throw new IOException("Spool " + directory + " is closed");
+		if (endOffset - appendBase >= segmentBytes) {
+			appendChannel.force(false);
+			appendFile.close();
+			openSegment(endOffset);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+		record.putInt(payload.length);
+		record.putInt(count);
+		record.putInt((int) crc.getValue());
+		record.put(payload);
+		record.flip();
+		while (record.hasRemaining()) {
+			appendChannel.write(record);
+		}
+		endOffset += HEADER_BYTES + payload.length;
+		notifyAll();
+	}
+
+	/**
+	 * Forces what has been appended to disk, if the spool was opened with sync, and records the acked offset.
+	 */
+	public synchronized void sync() throws IOException {
+		if (closed)
+			return;
+		if (sync && syncedOffset < endOffset) {
+			appendChannel.force(false);
+			syncedOffset = endOffset;
+		}
+		ackedFile.getChannel().force(false);
+	}
+
+	/**
+	 * Waits for the next batch to send.
+	 *
+	 * @return the batch, or null once the spool is closed
+	 */
+	public synchronized Record next() throws IOException, InterruptedException {
+		while (readOffset >= endOffset && !closed) {
+			wait();
+		}
+		if (closed)
+			return null;
+		Long base = segments.floorKey(readOffset);
+		if (base.longValue() != readBase) {
+			if (readFile != null)
+				readFile.close();
+			readFile = new RandomAccessFile(segments.get(base), "r");
+			readBase = base;
+		}
+		FileChannel channel = readFile.getChannel();
+		long position = readOffset - readBase;
+		if (position >= channel.size()) {
+			// the rest of this segment was never written, so reading carries on in the next one
+			Long next = segments.higherKey(base);
+			if (next == null)
+				throw new IOException("Spool " + directory + " has no batch at offset " + readOffset);
+			readOffset = next;
+			return next();
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(channel, header, position);
+		header.flip();
+		int length = header.getInt();
+		int count = header.getInt();
+		header.getInt();
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(channel, payload, position + HEADER_BYTES);
+		Record record = new Record(readOffset, readOffset + HEADER_BYTES + length, count, payload.array());
+		readOffset = record.end;
+		return record;
+	}
+
+	/**
+	 * Marks a batch as stored.  The acked offset moves on once every batch before it is stored as well.
+	 */
+	public synchronized void acknowledge(Record record) throws IOException {
+		if (closed)
+			return;
+		completed.put(record.start, record.end);
+		long acked = ackedOffset;
+		while (completed.containsKey(acked)) {
+			acked = completed.remove(acked);
+		}
+		if (acked == ackedOffset)
+			return;
+		ackedOffset = acked;
+		ackedFile.seek(0);
+		ackedFile.writeLong(ackedOffset);
+		deleteAckedSegments();
+		notifyAll();
+	}
+
+	/**
+	 * Sets aside a batch that can never be stored, appending it to the rejected file, and acknowledges it.
+	 */
+	public synchronized void reject(Record record) throws IOException {
+		if (closed)
+			return;
+		FileOutputStream out = new FileOutputStream(new File(directory, REJECTED_FILE), true);
+		try {
+			out.write(record.payload);
+			out.write('\n');
+			if (sync)
+				out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		acknowledge(record);
+	}
+
+	/**
+	 * @return the file rejected batches are appended to
+	 */
+	public File getRejectedFile() {
+		return new File(directory, REJECTED_FILE);
+	}
+
+	/**
+	 * Waits until every batch appended so far has been acknowledged.
+	 *
+	 * @return true if the spool drained within the time given
+	 */
+	public synchronized boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long target = endOffset;
+		while (ackedOffset < target && !closed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return ackedOffset >= target;
+	}
+
+	/**
+	 * @return the number of bytes appended but not yet acknowledged
+	 */
+	public synchronized long getPendingBytes() {
+		return endOffset - ackedOffset;
+	}
+
+	/**
+	 * Syncs and closes the spool.  Batches not yet acknowledged are sent by the next run.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		appendChannel.force(false);
+		ackedFile.getChannel().force(false);
+		closed = true;
+		notifyAll();
+		appendFile.close();
+		ackedFile.close();
+		if (readFile != null)
+			readFile.close();
+	}
+
+	private void openSegment(long base) throws IOException {
+		File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, base, SEGMENT_SUFFIX));
+		segments.put(base, file);
+		appendFile = new RandomAccessFile(file, "rw");
+		appendChannel = appendFile.getChannel();
+		appendChannel.position(appendChannel.size());
+		appendBase = base;
+		endOffset = base + appendChannel.size();
+	}
+
+	private long segmentsStart() {
+		return segments.isEmpty() ? endOffset : segments.firstKey();
+	}
+
+	private void deleteAckedSegments() {
+		List<Long> deletable = new ArrayList<Long>();
+		for (Long base : segments.keySet()) {
+			Long next = segments.higherKey(base);
+			if (next != null && next.longValue() <= ackedOffset && base.longValue() != appendBase)
+				deletable.add(base);
+		}
+		Collections.sort(deletable);
+		for (Long base : deletable) {
+			if (base.longValue() == readBase) {
+				try {
+					readFile.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				readFile = null;
+				readBase = -1;
+			}
+			File file = segments.remove(base);
+			if (!file.delete())
+				System.out.println("Spool: unable to delete " + file);
+		}
+	}
+
+	/*
+	 * Returns the length of the segment up to the end of its last complete, undamaged record.
+	 */
+	private static long validLength(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (position + HEADER_BYTES <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			int length = header.getInt();
+			header.getInt();
+			int checksum = header.getInt();
+			if (length < 0 || position + HEADER_BYTES + length > size)
+				break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(channel, payload, position + HEADER_BYTES);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array());
+			if ((int) crc.getValue() != checksum)
+				break;
+			position += HEADER_BYTES + length;
+		}
+		return position;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of spool segment");
+			position += read;
+		}
+	}
+
+	/*
+	 * One spooled batch and where it sits in the spool.
+	 */
+	public static class Record {
+
+		private final long start;
+		private final long end;
+		private final int count;
+		private final byte[] payload;
+
+		Record(long start, long end, int count, byte[] payload) {
+			this.start = start;
+			this.end = end;
+			this.count = count;
+			this.payload = payload;
+		}
+
+		/**
+		 * @return the number of points in the batch
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the request body
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+
+	}
+
+}
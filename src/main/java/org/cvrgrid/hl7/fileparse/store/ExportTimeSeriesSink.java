@@ -0,0 +1,290 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This class writes points to a file of their own in a local directory, for research datasets that are
+ * taken away rather than queried in OpenTSDB.  Each run writes a new file named after the time it started,
+ * gzip compressed unless exportGzip is false, in one of two formats:
+ *
+ *     csv     a header line, then metric,timestamp,value,tags for each point, with the tags written as
+ *             key=value pairs separated by semicolons and the timestamp in epoch milliseconds
+ *     binary  the four bytes PTS1, then for each point the metric as modified UTF-8 (DataOutput.writeUTF),
+ *             the timestamp as a long, the value as a double, the number of tags as a byte and the key and
+ *             value of each tag as modified UTF-8, so a DataInputStream reads it back
+ *
+ * A value that is not a number cannot be written in the binary format, and is counted and left out, as is a
+ * point with no value, from an empty OBX-5, in either format.  Points are first written, uncompressed, to a
+ * pending file beside the export, and only a flush copies them through the compressor into the export and
+ * forces it to the disk, so the points of a file recorded as processed are in the export even if the
+ * machine stops.  When loading fails, or another sink fails to store the points at the flush, the pending
+ * file is emptied instead, so the points are not exported twice when the file or message is loaded again.  The pending file is deleted when the export is closed, with any points in it,
+ * as the files they came from were not recorded as processed.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.cvrgrid.hl7.fileparse.metrics.Gauge;
+import org.cvrgrid.hl7.fileparse.metrics.Histogram;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+
+public class ExportTimeSeriesSink implements TimeSeriesSink {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_BYTES = 65536;
+
+	private final File file;
+	private final File pendingFile;
+	private final boolean binary;
+	private final FileOutputStream fileOut;
+	private final DataOutputStream out;
+	private final FileOutputStream pendingFileOut;
+	private DataOutputStream pending;
+	private final StringBuilder row = new StringBuilder();
+	private final byte[] copyBuffer = new byte[BUFFER_BYTES];
+	private final AtomicLong pointsWritten = new AtomicLong();
+	private long pointsPending = 0;
+	private long pointsSkipped = 0;
+	private long pointsDiscarded = 0;
+	private boolean closed = false;
+	private Histogram flushLatency = new Histogram("us", 1000);
+
+	/**
+	 * Creates the export file of this run.
+	 *
+	 * @param directory the directory of the export files, made if it does not exist
+	 * @param format csv or binary
+	 * @param gzip true to compress the file
+	 */
+	public ExportTimeSeriesSink(String directory, String format, boolean gzip) throws IOException {
+		if (format.equalsIgnoreCase("csv"))
+			binary = false;
+		else if (format.equalsIgnoreCase("binary"))
+			binary = true;
+		else
+			throw new IllegalArgumentException("Unknown export format: " + format);
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		String name = "points-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + (binary ? ".bin" : ".csv") + (gzip ? ".gz" : "");
+		file = new File(dir, name);
+		fileOut = new FileOutputStream(file);
+		// a sync flush lets flush push the compressed points out without ending the gzip stream
+		OutputStream compressed = gzip ? new GZIPOutputStream(fileOut, BUFFER_BYTES, true) : fileOut;
+		out = new DataOutputStream(new BufferedOutputStream(compressed, BUFFER_BYTES));
+		if (binary)
+			out.writeBytes("PTS1");
+		else
+			out.write("metric,timestamp,value,tags\n".getBytes(UTF8));
+		pendingFile = new File(dir, name + ".pending");
+		pendingFileOut = new FileOutputStream(pendingFile);
+		// a run that stops on a failure without closing the export leaves nothing in it worth keeping
+		pendingFile.deleteOnExit();
+		pending = new DataOutputStream(new BufferedOutputStream(pendingFileOut, BUFFER_BYTES));
+	}
+
+	public void useMetrics(MetricsRegistry metrics) {
+		flushLatency = metrics.latency("exportFlush");
+		metrics.gauge("pointsExported", new Gauge() {
+			public long getValue() {
+				return pointsWritten.get();
+			}
+		});
+	}
+
+	public synchronized void add(String metric, long timestamp, String value, Map<String,String> tags) throws IOException {
+		if (closed)
+			throw new IOException("Export to " + file + " is closed");
+		if (value == null) {
+			pointsSkipped++;
+			return;
+		}
+		if (binary) {
+			double number;
+			try {
+				number = Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				pointsSkipped++;
+				return;
+			}
+			writeRecord(metric, timestamp, number, tags);
+		} else {
+			row.setLength(0);
+			appendField(row, metric);
+			row.append(',').append(timestamp).append(',');
+			appendField(row, value);
+			row.append(',');
+			appendField(row, joinTags(tags));
+			row.append('\n');
+			pending.write(row.toString().getBytes(UTF8));
+		}
+		pointsPending++;
+	}
+
+	/**
+	 * Writes the points of a series, with the metric and tags of the series turned into text once.
+	 */
+	public synchronized void addSeries(String metric, Map<String,String> tags, SeriesColumn column) throws IOException {
+		if (closed)
+			throw new IOException("Export to " + file + " is closed");
+		if (binary) {
+			for (int i = 0; i < column.getSize(); i++) {
+				writeRecord(metric, column.getTimestamp(i), column.getValue(i), tags);
+			}
+		} else {
+			StringBuilder head = new StringBuilder();
+			appendField(head, metric);
+			head.append(',');
+			StringBuilder tail = new StringBuilder(",");
+			appendField(tail, joinTags(tags));
+			tail.append('\n');
+			row.setLength(0);
+			for (int i = 0; i < column.getSize(); i++) {
+				row.append(head).append(column.getTimestamp(i)).append(',');
+				SeriesColumn.appendValue(row, column.getValue(i));
+				row.append(tail);
+			}
+			pending.write(row.toString().getBytes(UTF8));
+		}
+		pointsPending += column.getSize();
+	}
+
+	private void writeRecord(String metric, long timestamp, double value, Map<String,String> tags) throws IOException {
+		pending.writeUTF(metric);
+		pending.writeLong(timestamp);
+		pending.writeDouble(value);
+		pending.writeByte(tags.size());
+		for (Map.Entry<String,String> tag : tags.entrySet()) {
+			pending.writeUTF(tag.getKey());
+			pending.writeUTF(tag.getValue());
+		}
+	}
+
+	private static String joinTags(Map<String,String> tags) {
+		StringBuilder pairs = new StringBuilder();
+		for (Map.Entry<String,String> tag : tags.entrySet()) {
+			if (pairs.length() > 0)
+				pairs.append(';');
+			pairs.append(tag.getKey()).append('=').append(tag.getValue());
+		}
+		return pairs.toString();
+	}
+
+	/**
+	 * Copies the pending points into the export, forces it to the disk and empties the pending file.
+	 */
+	public synchronized void flush() throws IOException {
+		if (closed)
+			return;
+		long start = System.nanoTime();
+		pending.flush();
+		long length = pendingFileOut.getChannel().size();
+		FileInputStream in = new FileInputStream(pendingFile);
+		try {
+			long copied = 0;
+			int read;
+			while (copied < length && (read = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, length - copied))) > 0) {
+				out.write(copyBuffer, 0, read);
+				copied += read;
+			}
+		} finally {
+			in.close();
+		}
+		out.flush();
+		fileOut.getFD().sync();
+		pointsWritten.addAndGet(pointsPending);
+		clearPending();
+		flushLatency.recordSince(start);
+	}
+
+	/**
+	 * Empties the pending file, leaving the points added since the last flush out of the export.
+	 */
+	public synchronized void discard() throws IOException {
+		if (closed)
+			return;
+		pointsDiscarded += pointsPending;
+		clearPending();
+	}
+
+	/*
+	 * Truncates the pending file, which also moves the write position back to its start, and drops what is
+	 * still buffered for it.
+	 */
+	private void clearPending() throws IOException {
+		pendingFileOut.getChannel().truncate(0);
+		pending = new DataOutputStream(new BufferedOutputStream(pendingFileOut, BUFFER_BYTES));
+		pointsPending = 0;
+	}
+
+	/**
+	 * Ends the export, leaving out the points added since the last flush, and deletes the pending file.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		pointsDiscarded += pointsPending;
+		pointsPending = 0;
+		try {
+			out.close();
+		} finally {
+			pendingFileOut.close();
+			if (!pendingFile.delete())
+				System.out.println("Unable to delete " + pendingFile);
+		}
+	}
+
+	public synchronized String report() {
+		return "Points Exported: " + pointsWritten.get() + " to " + file + ((pointsSkipped > 0) ? ", " + pointsSkipped + " not numeric or empty left out" : "")
+				+ ((pointsDiscarded > 0) ? ", " + pointsDiscarded + " from failed loads left out" : "");
+	}
+
+	/**
+	 * @return the file of this run
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/*
+	 * Quotes a CSV field if it holds a comma, a quote or a line break.
+	 */
+	private static void appendField(StringBuilder out, String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			out.append(value);
+			return;
+		}
+		out.append('"').append(value.replace("\"", "\"\"")).append('"');
+	}
+
+}
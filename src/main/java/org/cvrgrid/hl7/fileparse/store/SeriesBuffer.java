@@ -0,0 +1,333 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This class sits between the processors and the sinks and collects points by series, a metric for a
+ * subject, in SeriesColumns of primitive timestamps and values, instead of passing each point on as text
+ * with a map of tags.  Once seriesBufferPoints points are held, a flush is asked for, or the oldest point
+ * has waited putFlushMillis, every series is handed to the sinks in one call that serializes it straight
+ * from its columns, and the columns go back to a pool to take the points of the next series.  The tags of
+ * a series are the map the processor passed with its first point, which a processor keeps for each subject
+ * it has cached, so a loaded point leaves no map, boxed number or data point object behind.
+ *
+ * Only points whose sole tag is subjectId are buffered, and any other point is passed on as it is.  A
+ * value that is not a number, which OpenTSDB would turn away, is counted and left out.
+ */
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.cvrgrid.hl7.fileparse.metrics.Counter;
+import org.cvrgrid.hl7.fileparse.metrics.Gauge;
+import org.cvrgrid.hl7.fileparse.metrics.Histogram;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+
+public class SeriesBuffer implements TimeSeriesSink {
+
+	private static final String SUBJECT_TAG = "subjectId";
+	private static final int MAX_POOLED_COLUMNS = 4096;
+	private static final int MAX_POOLED_CAPACITY = 4096;
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final TimeSeriesSink sink;
+	private final int maxPoints;
+	private final long flushIntervalMillis;
+	private final ScheduledExecutorService flusher;
+	private final LinkedHashMap<String,SubjectSeries> subjects = new LinkedHashMap<String,SubjectSeries>();
+	private final ArrayDeque<SeriesColumn> pool = new ArrayDeque<SeriesColumn>();
+	private int bufferedPoints = 0;
+	private long oldestBufferedTime = 0;
+	private volatile IOException lastFailure = null;
+	private boolean closed = false;
+	private Histogram drainLatency = new Histogram("us", 1000);
+	private Histogram drainSeries = new Histogram("", 1);
+	private Counter nonNumericValues = new Counter();
+
+	/**
+	 * @param sink the sink the series are handed to
+	 * @param maxPoints the number of buffered points that makes the buffer hand its series over
+	 * @param flushIntervalMillis the longest time a point may be buffered, 0 to only hand over when full or
+	 *        on flush
+	 */
+	public SeriesBuffer(TimeSeriesSink sink, int maxPoints, long flushIntervalMillis) {
+		this.sink = sink;
+		this.maxPoints = Math.max(1, maxPoints);
+		this.flushIntervalMillis = flushIntervalMillis;
+		if (flushIntervalMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "series-buffer-flusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(10, flushIntervalMillis / 4);
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					drainIfStale();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+
+	public void useMetrics(MetricsRegistry metrics) {
+		drainLatency = metrics.latency("bufferDrain");
+		drainSeries = metrics.histogram("drainSeries");
+		nonNumericValues = metrics.counter("nonNumericValues");
+		metrics.gauge("bufferedPoints", new Gauge() {
+			public long getValue() {
+				synchronized (SeriesBuffer.this) {
+					return bufferedPoints;
+				}
+			}
+		});
+		sink.useMetrics(metrics);
+	}
+
+	/**
+	 * Buffers a point of a subject, or passes on a point with other tags.  A point with no value, from an
+	 * empty OBX-5, is counted with the values that are not numbers and left out.
+	 */
+	public void add(String metric, long timestamp, String value, Map<String,String> tags) throws IOException {
+		String subjectId = (tags.size() == 1) ? tags.get(SUBJECT_TAG) : null;
+		if (subjectId == null) {
+			sink.add(metric, timestamp, value, tags);
+			return;
+		}
+		if (value == null || value.isEmpty()) {
+			nonNumericValues.increment();
+			return;
+		}
+		double number = parseValue(value);
+		if (Double.isNaN(number) || Double.isInfinite(number)) {
+			nonNumericValues.increment();
+			return;
+		}
+		add(metric, subjectId, tags, timestamp, number);
+	}
+
+	/**
+	 * Reads a value the way Double.parseDouble does, but without the objects it makes for every call for a
+	 * plain decimal such as 36.6 or -2, which is what monitors send.  Such a value with up to 15 digits is a
+	 * whole number below 2^53 divided by a power of ten below 10^23, both held exactly in a double, so the one
+	 * division is rounded correctly and gives the same double as parseDouble.  Anything else is left to it.
+	 *
+	 * @return the value, or NaN if it is not a number
+	 */
+	static double parseValue(String value) {
+		int length = value.length();
+		int position = 0;
+		boolean negative = false;
+		if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+			negative = value.charAt(0) == '-';
+			position = 1;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int significant = 0;
+		int scale = 0;
+		boolean point = false;
+		for (; position < length; position++) {
+			char c = value.charAt(position);
+			if (c == '.' && !point) {
+				point = true;
+				continue;
+			}
+			if (c < '0' || c > '9')
+				break;
+			digits++;
+			if (significant > 0 || c != '0')
+				significant++;
+			if (significant > 15)
+				break;
+			mantissa = mantissa * 10 + (c - '0');
+			if (point)
+				scale++;
+		}
+		if (position == length && digits > 0 && scale < POWERS_OF_TEN.length) {
+			double number = mantissa / POWERS_OF_TEN[scale];
+			return negative ? -number : number;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private synchronized void add(String metric, String subjectId, Map<String,String> tags, long timestamp, double value) throws IOException {
+		if (closed)
+			throw new IOException("Series buffer is closed");
+		rethrowFailure();
+		SubjectSeries subject = subjects.get(subjectId);
+		if (subject == null) {
+			subject = new SubjectSeries(tags);
+			subjects.put(subjectId, subject);
+		}
+		SeriesColumn column = subject.columns.get(metric);
+		if (column == null) {
+			column = pool.isEmpty() ? new SeriesColumn() : pool.pop();
+			subject.columns.put(metric, column);
+		}
+		column.add(timestamp, value);
+		if (bufferedPoints == 0)
+			oldestBufferedTime = System.currentTimeMillis();
+		bufferedPoints++;
+		if (bufferedPoints >= maxPoints)
+			drain();
+	}
+
+	/**
+	 * Passes a series on as it is, after the points already buffered.
+	 */
+	public synchronized void addSeries(String metric, Map<String,String> tags, SeriesColumn column) throws IOException {
+		drain();
+		sink.addSeries(metric, tags, column);
+	}
+
+	/**
+	 * Hands every buffered series to the sinks and waits for them to be stored.
+	 */
+	public void flush() throws IOException {
+		synchronized (this) {
+			rethrowFailure();
+			drain();
+		}
+		sink.flush();
+	}
+
+	/**
+	 * Drops the buffered series, then has the sinks drop what they have not stored.
+	 */
+	public void discard() throws IOException {
+		synchronized (this) {
+			for (SubjectSeries subject : subjects.values()) {
+				for (SeriesColumn column : subject.columns.values()) {
+					release(column);
+				}
+			}
+			subjects.clear();
+			bufferedPoints = 0;
+		}
+		sink.discard();
+	}
+
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			if (flusher != null)
+				flusher.shutdownNow();
+		}
+		try {
+			flush();
+		} finally {
+			synchronized (this) {
+				closed = true;
+			}
+			sink.close();
+		}
+	}
+
+	public String report() {
+		long skipped = nonNumericValues.getCount();
+		return sink.report() + ((skipped > 0) ? System.getProperty("line.separator") + "Values Not Numeric, Left Out: " + skipped : "");
+	}
+
+	/*
+	 * Hands every buffered series to the sinks and returns the columns to the pool.
+	 */
+	private synchronized void drain() throws IOException {
+		if (bufferedPoints == 0)
+			return;
+		long start = System.nanoTime();
+		int series = 0;
+		try {
+			for (SubjectSeries subject : subjects.values()) {
+				for (Map.Entry<String,SeriesColumn> entry : subject.columns.entrySet()) {
+					SeriesColumn column = entry.getValue();
+					if (column.getSize() > 0) {
+						sink.addSeries(entry.getKey(), subject.tags, column);
+						series++;
+					}
+					release(column);
+				}
+			}
+		} finally {
+			// once a sink has failed the rest of the points are dropped, as the flush will throw for them
+			subjects.clear();
+			bufferedPoints = 0;
+		}
+		drainLatency.recordSince(start);
+		drainSeries.record(series);
+	}
+
+	private void release(SeriesColumn column) {
+		column.clear();
+		if (pool.size() < MAX_POOLED_COLUMNS && column.getCapacity() <= MAX_POOLED_CAPACITY)
+			pool.push(column);
+	}
+
+	private synchronized void drainIfStale() {
+		if (bufferedPoints == 0 || lastFailure != null || closed)
+			return;
+		if (System.currentTimeMillis() - oldestBufferedTime < flushIntervalMillis)
+			return;
+		try {
+			drain();
+		} catch (IOException e) {
+			lastFailure = e;
+		}
+	}
+
+	private void rethrowFailure() throws IOException {
+		if (lastFailure != null) {
+			IOException failure = lastFailure;
+			lastFailure = null;
+			throw failure;
+		}
+	}
+
+	/*
+	 * The series of one subject, by metric, with the tags they are stored under.
+	 */
+	private static class SubjectSeries {
+
+		private final Map<String,String> tags;
+		private final HashMap<String,SeriesColumn> columns = new HashMap<String,SeriesColumn>();
+
+		SubjectSeries(Map<String,String> tags) {
+			this.tags = tags;
+		}
+
+	}
+
+}
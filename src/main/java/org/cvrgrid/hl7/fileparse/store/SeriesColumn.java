@@ -0,0 +1,100 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This class holds points of one series, one metric for one subject, as a column of timestamps and a column
+ * of values in primitive arrays, so a buffered point costs sixteen bytes and no objects.  The arrays grow
+ * by doubling and are kept when the column is cleared, so a column taken from the pool of a SeriesBuffer
+ * holds the next points of some series without allocating anything once it has grown to fit them.
+ */
+
+public class SeriesColumn {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	private double[] values = new double[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Adds a point at the end of the column.
+	 */
+	public void add(long timestamp, double value) {
+		if (size == timestamps.length) {
+			long[] grownTimestamps = new long[size * 2];
+			double[] grownValues = new double[size * 2];
+			System.arraycopy(timestamps, 0, grownTimestamps, 0, size);
+			System.arraycopy(values, 0, grownValues, 0, size);
+			timestamps = grownTimestamps;
+			values = grownValues;
+		}
+		timestamps[size] = timestamp;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Empties the column, keeping its arrays.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * @return the number of points in the column
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of points the column holds before its arrays grow
+	 */
+	public int getCapacity() {
+		return timestamps.length;
+	}
+
+	/**
+	 * @return the time of a point in epoch milliseconds
+	 */
+	public long getTimestamp(int index) {
+		return timestamps[index];
+	}
+
+	/**
+	 * @return the value of a point
+	 */
+	public double getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Appends a value the way OpenTSDB reads it: a whole number without a decimal point, so it is stored
+	 * as an integer as it was when the value was sent as text, and anything else as Double.toString gives it.
+	 */
+	public static void appendValue(StringBuilder out, double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			out.append((long) value);
+		else
+			out.append(value);
+	}
+
+}
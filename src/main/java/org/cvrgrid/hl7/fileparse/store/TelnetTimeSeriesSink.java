@@ -0,0 +1,382 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This class stores points in OpenTSDB with its line oriented telnet put command, one line per point,
+ * over a single TCP connection that is kept open for the whole run:
+ *
+ *     put <metric> <timestamp> <value> <tagk>=<tagv> ...
+ *
+ * A line is a fraction of the size of the same point in a JSON put body and costs OpenTSDB no JSON parsing,
+ * and there is no HTTP request or response per batch, so this is the cheapest way to send points.  The lines
+ * are collected in a buffer and written when it fills or, at the latest, every putFlushMillis.
+ *
+ * The put command answers nothing when a point is stored, only a line starting with "put:" when it is not.
+ * To know that the points sent so far are stored, a flush sends the version command and waits for its
+ * answer, which OpenTSDB only gives once every line before it has been handled, and any put errors that
+ * came back before the answer make the flush fail.  If the connection is lost, the points sent since the
+ * last flush are treated as lost and the failure is thrown from the next add or flush, as the HTTP writer
+ * does, and the add after that opens a new connection.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cvrgrid.hl7.fileparse.metrics.Counter;
+import org.cvrgrid.hl7.fileparse.metrics.Gauge;
+import org.cvrgrid.hl7.fileparse.metrics.Histogram;
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+
+public class TelnetTimeSeriesSink implements TimeSeriesSink {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int SYNC_TIMEOUT = 60000;
+	private static final int BUFFER_BYTES = 65536;
+
+	private final String host;
+	private final int port;
+	private final StringBuilder line = new StringBuilder();
+	private final StringBuilder seriesTail = new StringBuilder();
+	private final ScheduledExecutorService flusher;
+	private final AtomicLong pointsWritten = new AtomicLong();
+	private Connection connection = null;
+	private long pointsSinceSync = 0;
+	private boolean closed = false;
+	private Histogram syncLatency = new Histogram("us", 1000);
+	private Counter pointsFailed = new Counter();
+
+	/**
+	 * @param host the OpenTSDB server
+	 * @param port the port of its telnet interface, which is the same as its HTTP port unless set apart
+	 * @param flushIntervalMillis the longest time a line may wait in the buffer before it is written, 0 to
+	 *        only write when the buffer fills or on flush
+	 */
+	public TelnetTimeSeriesSink(String host, int port, long flushIntervalMillis) {
+		this.host = host;
+		this.port = port;
+		if (flushIntervalMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "telnet-flusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					writeBuffer();
+				}
+			}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+
+	public void useMetrics(MetricsRegistry metrics) {
+		syncLatency = metrics.latency("telnetSync");
+		pointsFailed = metrics.counter("telnetPointsFailed");
+		metrics.gauge("telnetPointsStored", new Gauge() {
+			public long getValue() {
+				return pointsWritten.get();
+			}
+		});
+	}
+
+	public synchronized void add(String metric, long timestamp, String value, Map<String,String> tags) throws IOException {
+		openConnection();
+		line.setLength(0);
+		line.append("put ").append(metric).append(' ').append(timestamp).append(' ').append(value);
+		appendTags(line, tags);
+		write(line);
+		pointsSinceSync++;
+	}
+
+	/**
+	 * Sends the points of a series as lines built in one buffer, with the tags of the series written once.
+	 */
+	public synchronized void addSeries(String metric, Map<String,String> tags, SeriesColumn column) throws IOException {
+		openConnection();
+		seriesTail.setLength(0);
+		appendTags(seriesTail, tags);
+		line.setLength(0);
+		for (int i = 0; i < column.getSize(); i++) {
+			line.append("put ").append(metric).append(' ').append(column.getTimestamp(i)).append(' ');
+			SeriesColumn.appendValue(line, column.getValue(i));
+			line.append(seriesTail);
+		}
+		write(line);
+		pointsSinceSync += column.getSize();
+	}
+
+	/**
+	 * Sends the buffered lines and waits for OpenTSDB to have handled them.
+	 *
+	 * @throws IOException when the connection was lost or OpenTSDB turned some of the points away
+	 */
+	public void flush() throws IOException {
+		Connection syncing;
+		long sync;
+		long points;
+		synchronized (this) {
+			if (connection == null || pointsSinceSync == 0)
+				return;
+			syncing = connection;
+			try {
+				syncing.out.write("version\n".getBytes(UTF8));
+				syncing.out.flush();
+			} catch (IOException e) {
+				lose(e);
+			}
+			sync = ++syncing.syncsSent;
+			points = pointsSinceSync;
+			pointsSinceSync = 0;
+		}
+		long start = System.nanoTime();
+		int rejected;
+		try {
+			rejected = syncing.awaitSync(sync);
+		} catch (IOException e) {
+			pointsFailed.add(points);
+			synchronized (this) {
+				if (connection == syncing) {
+					connection.close();
+					connection = null;
+				}
+			}
+			throw e;
+		}
+		syncLatency.recordSince(start);
+		pointsWritten.addAndGet(points - rejected);
+		if (rejected > 0) {
+			pointsFailed.add(rejected);
+			throw new IOException("OpenTSDB at " + host + ":" + port + " turned away " + rejected + " of " + points + " points: " 
+					+ syncing.getLastRejection());
+		}
+	}
+
+	/**
+	 * Does nothing, as the points are already on their way to OpenTSDB, which keeps one value for a metric,
+	 * time and tags however often it is sent.
+	 */
+	public void discard() {
+	}
+
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			if (flusher != null)
+				flusher.shutdownNow();
+		}
+		try {
+			flush();
+		} finally {
+			synchronized (this) {
+				closed = true;
+				if (connection != null) {
+					connection.close();
+					connection = null;
+				}
+			}
+		}
+	}
+
+	public String report() {
+		return "Points Stored by telnet put: " + pointsWritten.get();
+	}
+
+	/**
+	 * @return the number of points OpenTSDB has confirmed
+	 */
+	public long getPointsWritten() {
+		return pointsWritten.get();
+	}
+
+	/*
+	 * Makes sure there is a working connection, throwing if one was lost with points on it.
+	 */
+	private void openConnection() throws IOException {
+		if (closed)
+			throw new IOException("Telnet sink for " + host + ":" + port + " is closed");
+		if (connection != null && connection.isBroken()) {
+			if (pointsSinceSync > 0)
+				lose(connection.getFailure());
+			connection.close();
+			connection = null;
+		}
+		if (connection == null)
+			connection = new Connection(host, port);
+	}
+
+	private void write(StringBuilder lines) throws IOException {
+		try {
+			connection.out.write(lines.toString().getBytes(UTF8));
+		} catch (IOException e) {
+			lose(e);
+		}
+	}
+
+	private static void appendTags(StringBuilder out, Map<String,String> tags) {
+		for (Map.Entry<String,String> tag : tags.entrySet()) {
+			out.append(' ').append(tag.getKey()).append('=').append(tag.getValue());
+		}
+		out.append('\n');
+	}
+
+	private synchronized void writeBuffer() {
+		if (connection == null || closed)
+			return;
+		try {
+			connection.out.flush();
+		} catch (IOException e) {
+			connection.fail(e);
+		}
+	}
+
+	/*
+	 * Drops the connection, counting the points sent on it since the last flush as lost, and throws.
+	 */
+	private void lose(IOException cause) throws IOException {
+		pointsFailed.add(pointsSinceSync);
+		pointsSinceSync = 0;
+		if (connection != null) {
+			connection.close();
+			connection = null;
+		}
+		throw new IOException("Lost the connection to OpenTSDB at " + host + ":" + port, cause);
+	}
+
+	/*
+	 * One connection and the thread that reads what OpenTSDB answers on it.  The answer to version ends
+	 * with a line starting "Built on", which is how a sync is told apart from the put errors before it.
+	 */
+	private static class Connection implements Runnable {
+
+		private final Socket socket;
+		private final OutputStream out;
+		private long syncsSent = 0;
+		private long syncsAnswered = 0;
+		private int rejected = 0;
+		private String lastRejection = null;
+		private IOException failure = null;
+
+		Connection(String host, int port) throws IOException {
+			socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+				socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES);
+			Thread reader = new Thread(this, "telnet-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		public void run() {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+				String answer;
+				while ((answer = in.readLine()) != null) {
+					synchronized (this) {
+						if (answer.startsWith("Built on")) {
+							syncsAnswered++;
+							notifyAll();
+						} else if (answer.startsWith("put:")) {
+							rejected++;
+							lastRejection = answer;
+						}
+					}
+				}
+				fail(new IOException("OpenTSDB closed the connection"));
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/*
+		 * Waits for the answer to the given sync and returns the number of points turned away before it.
+		 */
+		synchronized int awaitSync(long sync) throws IOException {
+			long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+			while (syncsAnswered < sync && failure == null) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					throw new IOException("No answer from OpenTSDB within " + SYNC_TIMEOUT + " ms");
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for OpenTSDB", e);
+				}
+			}
+			if (syncsAnswered < sync)
+				throw new IOException("Lost the connection to OpenTSDB", failure);
+			int count = rejected;
+			rejected = 0;
+			return count;
+		}
+
+		synchronized void fail(IOException e) {
+			if (failure == null)
+				failure = e;
+			notifyAll();
+		}
+
+		synchronized boolean isBroken() {
+			return failure != null;
+		}
+
+		synchronized IOException getFailure() {
+			return failure;
+		}
+
+		synchronized String getLastRejection() {
+			return lastRejection;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+	}
+
+}
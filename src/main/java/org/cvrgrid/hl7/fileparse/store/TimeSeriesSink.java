@@ -0,0 +1,92 @@
+/* Copyright 2015 Cardiovascular Research Grid
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *	All rights reserved
+ *
+ * 	@author Stephen J Granite (Email: sgranite@jhu.edu)
+ */
+
+package org.cvrgrid.hl7.fileparse.store;
+
+/*
+ * This interface is where the processors send the points they make, so the loader can store them in
+ * OpenTSDB through the HTTP put API or the telnet put command, export them to local files, or do several
+ * of these at once, as the sinks property of server.properties says.  A sink may queue points, but once
+ * flush returns every point added before it must be stored, or flush must throw, as the loader only
+ * records a file as processed after a flush, and when loading fails the points since the last flush are
+ * discarded so a sink that keeps them back until the flush leaves them out.  Points may be added from
+ * several threads at the same time, one at a time or, from a SeriesBuffer, a whole series at a time.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.cvrgrid.hl7.fileparse.metrics.MetricsRegistry;
+
+public interface TimeSeriesSink {
+
+	/**
+	 * Queues a data point.
+	 *
+	 * @param metric the name of the series
+	 * @param timestamp the time of the point in epoch milliseconds
+	 * @param value the value as it was sent
+	 * @param tags the tags of the point, such as subjectId
+	 * @throws IOException when the point or points before it could not be stored
+	 */
+	void add(String metric, long timestamp, String value, Map<String,String> tags) throws IOException;
+
+	/**
+	 * Queues the points of one series.  The column is only read during the call, and is cleared and filled
+	 * with other points once the call returns, so a sink that keeps points must copy them.
+	 *
+	 * @param metric the name of the series
+	 * @param tags the tags of the series, such as subjectId
+	 * @param column the timestamps and values of the points, in the order they were added
+	 * @throws IOException when the points or points before them could not be stored
+	 */
+	void addSeries(String metric, Map<String,String> tags, SeriesColumn column) throws IOException;
+
+	/**
+	 * Waits for every point added so far to be stored.
+	 *
+	 * @throws IOException when some of them could not be stored
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Drops the points added since the last flush that the sink has not stored yet, after loading them
+	 * failed, so they are not stored twice when they are loaded again.  A sink that stores points as they
+	 * come, where storing them twice does no harm, does nothing.
+	 *
+	 * @throws IOException when the points could not be dropped
+	 */
+	void discard() throws IOException;
+
+	/**
+	 * Stores what is queued and releases the connections and files of the sink.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Records the work of the sink into the given metrics from now on.
+	 */
+	void useMetrics(MetricsRegistry metrics);
+
+	/**
+	 * @return what the sink has stored, as a line for the end of a run
+	 */
+	String report();
+
+}